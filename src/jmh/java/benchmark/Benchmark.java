@@ -0,0 +1,64 @@
+package benchmark;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * A single benchmark with fixed parameters. The runner calls setUp once,
+ * then invoke repeatedly and measures only the time spent in invoke.
+ * Work that must not be measured, e.g. creating the file that a delete
+ * removes, belongs in beforeInvocation and afterInvocation.
+ */
+public abstract class Benchmark {
+
+    private final String name;
+    private final Map<String, String> params = new LinkedHashMap<>();
+
+    /**
+     * @param name   The name of the benchmark, reported as "[class].[name]".
+     * @param params The parameter names and values, alternating.
+     */
+    protected Benchmark(String name, Object... params) {
+        Class<?> type = getClass().getEnclosingClass() != null ? getClass().getEnclosingClass() : getClass();
+        this.name = type.getName() + "." + name;
+        for (int i = 0; i < params.length; i += 2) {
+            this.params.put(params[i].toString(), params[i + 1].toString());
+        }
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public Map<String, String> params() {
+        return params;
+    }
+
+    /**
+     * @return The number of operations one call of invoke performs. Fast operations are repeated in a loop, so the
+     * time of a single operation is larger than the resolution of the clock.
+     */
+    public int operationsPerInvocation() {
+        return 1;
+    }
+
+    public void setUp() throws Exception {
+    }
+
+    public void beforeInvocation() throws Exception {
+    }
+
+    /**
+     * Perform the measured operations.
+     *
+     * @return A result that is consumed, so the JIT can't remove the work.
+     * @throws Exception If the operation fails.
+     */
+    public abstract Object invoke() throws Exception;
+
+    public void afterInvocation() throws Exception {
+    }
+
+    public void tearDown() throws Exception {
+    }
+}
@@ -0,0 +1,166 @@
+package benchmark;
+
+import server.RequestBenchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/*
+ * Runs the benchmarks and writes the results in the JSON format of JMH,
+ * so reports of different versions can be compared with the usual tools.
+ * Every benchmark is measured in average time per operation after some
+ * warmup iterations that let the JIT compile the code paths.
+ *
+ * Arguments: the report file, followed by optional regular expressions
+ * that select benchmarks by name. Settings are read from the system
+ * properties bench.warmup, bench.iterations, bench.time (milliseconds
+ * per iteration), bench.fileSizes, bench.mapSizes and bench.storeSizes.
+ */
+public class BenchmarkRunner {
+
+    private static final int WARMUP_ITERATIONS = Integer.getInteger("bench.warmup", 3);
+    private static final int MEASUREMENT_ITERATIONS = Integer.getInteger("bench.iterations", 5);
+    private static final long ITERATION_TIME = Long.getLong("bench.time", 1000) * 1_000_000;
+    // Student's t quantiles for a 99.9% confidence interval by degrees of freedom, like JMH reports
+    private static final double[] T_QUANTILES = {0, 636.62, 31.599, 12.924, 8.610, 6.869, 5.959, 5.408, 5.041, 4.781,
+            4.587};
+
+    // Consumes results, so the JIT can't remove the measured work
+    @SuppressWarnings("unused")
+    private static volatile int sink;
+
+    public static void main(String[] args) throws Exception {
+        Path report = Paths.get(args.length > 0 ? args[0] : "results.json");
+        List<Pattern> filters = new ArrayList<>();
+        for (String filter : Arrays.copyOfRange(args, Math.min(1, args.length), args.length)) {
+            filters.add(Pattern.compile(filter));
+        }
+
+        List<Benchmark> benchmarks = new ArrayList<>();
+        benchmarks.addAll(FileBenchmarks.create(sizes("bench.fileSizes", "1024,1048576,1073741824")));
+        benchmarks.addAll(IdMapBenchmarks.create(sizes("bench.mapSizes", "10000,1000000,10000000")));
+        benchmarks.addAll(StoreBenchmarks.create(sizes("bench.storeSizes", "1000,100000,1000000")));
+        benchmarks.addAll(RequestBenchmarks.create());
+        benchmarks.addAll(ConcurrencyBenchmarks.create());
+        benchmarks.addAll(IdGeneratorBenchmarks.create());
+
+        List<String> results = new ArrayList<>();
+        for (Benchmark benchmark : benchmarks) {
+            if (!filters.isEmpty() && filters.stream().noneMatch(f -> f.matcher(benchmark.name()).find())) continue;
+            results.add(run(benchmark));
+        }
+
+        Files.createDirectories(report.toAbsolutePath().getParent());
+        Files.writeString(report, "[\n" + String.join(",\n", results) + "\n]\n");
+        System.out.println("Results written to " + report.toAbsolutePath());
+    }
+
+    /**
+     * Measure a benchmark.
+     *
+     * @param benchmark The benchmark.
+     * @return The result as a JSON object in the format of JMH.
+     * @throws Exception If the benchmark fails.
+     */
+    private static String run(Benchmark benchmark) throws Exception {
+        System.out.println("# " + benchmark.name() + " " + benchmark.params());
+        benchmark.setUp();
+        double[] scores = new double[MEASUREMENT_ITERATIONS];
+        try {
+            for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+                System.out.printf("Warmup %d: %.3f us/op%n", i + 1, iteration(benchmark));
+            }
+            for (int i = 0; i < MEASUREMENT_ITERATIONS; i++) {
+                scores[i] = iteration(benchmark);
+                System.out.printf("Iteration %d: %.3f us/op%n", i + 1, scores[i]);
+            }
+        } finally {
+            benchmark.tearDown();
+        }
+
+        double score = Arrays.stream(scores).average().orElse(Double.NaN);
+        double error = error(scores, score);
+        System.out.printf("Result: %.3f +- %.3f us/op%n%n", score, error);
+        return toJson(benchmark, score, error, scores);
+    }
+
+    /**
+     * Invoke a benchmark until the measured time reaches the iteration time, at least once.
+     *
+     * @return The average time of an operation in microseconds.
+     */
+    private static double iteration(Benchmark benchmark) throws Exception {
+        long measured = 0;
+        long operations = 0;
+        while (measured < ITERATION_TIME) {
+            benchmark.beforeInvocation();
+            long start = System.nanoTime();
+            Object result = benchmark.invoke();
+            measured += System.nanoTime() - start;
+            sink ^= System.identityHashCode(result);
+            benchmark.afterInvocation();
+            operations += benchmark.operationsPerInvocation();
+        }
+        return measured / 1000.0 / operations;
+    }
+
+    /**
+     * @return Half the width of the 99.9% confidence interval of the mean.
+     */
+    private static double error(double[] scores, double mean) {
+        int n = scores.length;
+        if (n < 2) return Double.NaN;
+        double variance = 0;
+        for (double score : scores) variance += (score - mean) * (score - mean);
+        variance /= n - 1;
+        double quantile = n - 1 < T_QUANTILES.length ? T_QUANTILES[n - 1] : 3.291;
+        return quantile * Math.sqrt(variance / n);
+    }
+
+    private static String toJson(Benchmark benchmark, double score, double error, double[] scores) {
+        StringBuilder params = new StringBuilder();
+        for (Map.Entry<String, String> param : benchmark.params().entrySet()) {
+            if (params.length() > 0) params.append(", ");
+            params.append('"').append(param.getKey()).append("\": \"").append(param.getValue()).append('"');
+        }
+        StringBuilder rawData = new StringBuilder();
+        for (double value : scores) {
+            if (rawData.length() > 0) rawData.append(", ");
+            rawData.append(number(value));
+        }
+
+        return "  {\n"
+                + "    \"benchmark\": \"" + benchmark.name() + "\",\n"
+                + "    \"mode\": \"avgt\",\n"
+                + "    \"threads\": 1,\n"
+                + "    \"forks\": 1,\n"
+                + "    \"jdkVersion\": \"" + System.getProperty("java.version") + "\",\n"
+                + "    \"warmupIterations\": " + WARMUP_ITERATIONS + ",\n"
+                + "    \"measurementIterations\": " + MEASUREMENT_ITERATIONS + ",\n"
+                + "    \"params\": {" + params + "},\n"
+                + "    \"primaryMetric\": {\n"
+                + "      \"score\": " + number(score) + ",\n"
+                + "      \"scoreError\": " + number(error) + ",\n"
+                + "      \"scoreConfidence\": [" + number(score - error) + ", " + number(score + error) + "],\n"
+                + "      \"scoreUnit\": \"us/op\",\n"
+                + "      \"rawData\": [[" + rawData + "]]\n"
+                + "    }\n"
+                + "  }";
+    }
+
+    private static String number(double value) {
+        return Double.isFinite(value) ? Double.toString(value) : "\"NaN\"";
+    }
+
+    private static int[] sizes(String property, String defaultValue) {
+        return Arrays.stream(System.getProperty(property, defaultValue).split(","))
+                .map(String::trim).mapToInt(Integer::parseInt).toArray();
+    }
+}
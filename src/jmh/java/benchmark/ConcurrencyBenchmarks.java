@@ -0,0 +1,165 @@
+package benchmark;
+
+import util.HashIdIndex;
+import util.IdMap;
+import util.IdMapLog;
+import util.ServerUtils;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+
+/*
+ * Stress benchmark of concurrent PUT, GET and DELETE requests in
+ * ServerUtils. Several threads work on a few files that they fight over
+ * or on many files that rarely collide, which shows whether requests on
+ * different files wait for each other. After every invocation the id
+ * map has to agree with the stored files, and at the end the log has to
+ * replay to the same map, otherwise the benchmark fails with a lost
+ * update.
+ */
+public class ConcurrencyBenchmarks {
+
+    private static final int THREADS = 8;
+    private static final int OPERATIONS = 200;
+    private static final int[] FILES = {8, 4096};
+
+    public static List<Benchmark> create() {
+        List<Benchmark> benchmarks = new ArrayList<>();
+        for (int files : FILES) benchmarks.add(new Mixed(files));
+        return benchmarks;
+    }
+
+    private static class Mixed extends Benchmark {
+
+        private static final byte[] CONTENT = new byte[1024];
+
+        private final int files;
+        private final List<String> names = new ArrayList<>();
+        private Path mapDirectory;
+        private IdMap idMap;
+        private ExecutorService executor;
+
+        Mixed(int files) {
+            super("mixed", "threads", THREADS, "files", files);
+            this.files = files;
+        }
+
+        @Override
+        public int operationsPerInvocation() {
+            return THREADS * OPERATIONS;
+        }
+
+        @Override
+        public void setUp() throws Exception {
+            mapDirectory = Files.createTempDirectory("bench-map");
+            idMap = new IdMap(new HashIdIndex(), new IdMapLog(mapDirectory, false, Long.MAX_VALUE));
+            executor = Executors.newFixedThreadPool(THREADS);
+            for (int i = 0; i < files; i++) {
+                names.add("bench-stress-" + i + ".bin");
+                // Left behind by an aborted run
+                ServerUtils.removeFile(new String[]{"DELETE", "BY_NAME", names.get(i)}, idMap);
+            }
+        }
+
+        @Override
+        public Object invoke() throws Exception {
+            List<Future<Integer>> workers = new ArrayList<>();
+            for (int i = 0; i < THREADS; i++) workers.add(executor.submit(this::work));
+            int succeeded = 0;
+            for (Future<Integer> worker : workers) succeeded += worker.get();
+            return succeeded;
+        }
+
+        @Override
+        public void afterInvocation() {
+            for (String name : names) {
+                String id = idMap.findId(name);
+                boolean stored = ServerUtils.findFile(name) != null;
+                if ((id != null) != stored || (id != null && !name.equals(idMap.get(id)))) {
+                    throw new IllegalStateException("Lost update of " + name + ": id " + id + ", stored " + stored);
+                }
+            }
+        }
+
+        @Override
+        public void tearDown() throws Exception {
+            executor.shutdown();
+            checkReplay();
+            for (String name : names) ServerUtils.removeFile(new String[]{"DELETE", "BY_NAME", name}, idMap);
+            idMap.close();
+            deleteDirectory(mapDirectory);
+        }
+
+        /**
+         * Send a random mix of requests on random files.
+         *
+         * @return The number of successful requests.
+         */
+        private int work() throws IOException {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            DataOutputStream output = new DataOutputStream(OutputStream.nullOutputStream());
+            WritableByteChannel channel = Channels.newChannel(OutputStream.nullOutputStream());
+            int succeeded = 0;
+            for (int i = 0; i < OPERATIONS; i++) {
+                String name = names.get(random.nextInt(names.size()));
+                int operation = random.nextInt(4);
+                String response;
+                if (operation == 0) {
+                    Path tempFile = ServerUtils.createTempFile();
+                    try {
+                        Files.write(tempFile, CONTENT);
+                        response = ServerUtils.commitFile(new String[]{"PUT", name}, tempFile, null, idMap);
+                    } finally {
+                        ServerUtils.deleteTempFile(tempFile);
+                    }
+                } else if (operation == 1) {
+                    response = ServerUtils.removeFile(new String[]{"DELETE", "BY_NAME", name}, idMap);
+                } else {
+                    response = ServerUtils.getFile(new String[]{"GET", "BY_NAME", name}, output, channel, idMap);
+                }
+                if (response.startsWith("200")) succeeded++;
+            }
+            return succeeded;
+        }
+
+        /**
+         * Restore a copy of the log and compare it with the map in memory.
+         */
+        private void checkReplay() throws IOException {
+            Path copy = Files.createTempDirectory("bench-map");
+            try {
+                try (var logs = Files.list(mapDirectory)) {
+                    for (Path log : logs.toList()) Files.copy(log, copy.resolve(log.getFileName()));
+                }
+                try (IdMap restored = new IdMap(new HashIdIndex(), new IdMapLog(copy, false, Long.MAX_VALUE))) {
+                    for (String name : names) {
+                        if (!Objects.equals(restored.findId(name), idMap.findId(name))) {
+                            throw new IllegalStateException("Lost update of " + name + " in the log");
+                        }
+                    }
+                }
+            } finally {
+                deleteDirectory(copy);
+            }
+        }
+
+        private static void deleteDirectory(Path directory) throws IOException {
+            try (var files = Files.list(directory)) {
+                for (Path file : files.toList()) Files.delete(file);
+            }
+            Files.delete(directory);
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package benchmark;
+
+import util.HashIdIndex;
+import util.IdMap;
+import util.IdMapLog;
+import util.ServerUtils;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/*
+ * Benchmarks of the PUT, GET and DELETE paths in ServerUtils. Uploads
+ * are read from a stream that generates the file data and downloads
+ * are sent over a loopback connection, so no client has to run. The
+ * files are stored in the data directory below the working directory.
+ */
+public class FileBenchmarks {
+
+    /**
+     * @param sizes The file sizes in bytes.
+     * @return The benchmarks for every file size.
+     */
+    public static List<Benchmark> create(int[] sizes) {
+        List<Benchmark> benchmarks = new ArrayList<>();
+        for (int size : sizes) {
+            benchmarks.add(new AddFile(size));
+            benchmarks.add(new GetFile(size));
+            benchmarks.add(new DeleteFile(size));
+        }
+        return benchmarks;
+    }
+
+    private abstract static class FileBenchmark extends Benchmark {
+
+        final int size;
+        Path mapDirectory;
+        IdMap idMap;
+
+        FileBenchmark(String name, int size) {
+            super(name, "size", size);
+            this.size = size;
+        }
+
+        @Override
+        public void setUp() throws Exception {
+            mapDirectory = Files.createTempDirectory("bench-map");
+            idMap = new IdMap(new HashIdIndex(), new IdMapLog(mapDirectory, false, Long.MAX_VALUE));
+        }
+
+        @Override
+        public void tearDown() throws Exception {
+            idMap.close();
+            try (var files = Files.list(mapDirectory)) {
+                for (Path file : files.toList()) Files.delete(file);
+            }
+            Files.delete(mapDirectory);
+        }
+
+        /**
+         * Upload a file of the benchmark size like a client would.
+         *
+         * @return The response of the server.
+         */
+        String upload(String filename) {
+            DataInputStream input = new DataInputStream(new SequenceInputStream(new ByteArrayInputStream(
+                    ByteBuffer.allocate(8).putLong(size).array()), new GeneratingStream(size)));
+            return ServerUtils.addFile(new String[]{"PUT", filename}, input, idMap);
+        }
+
+        void delete(String filename) throws IOException {
+            ServerUtils.removeFile(new String[]{"DELETE", "BY_NAME", filename}, idMap);
+        }
+    }
+
+    private static class AddFile extends FileBenchmark {
+
+        private String response;
+
+        AddFile(int size) {
+            super("addFile", size);
+        }
+
+        @Override
+        public Object invoke() {
+            response = upload("*");
+            return response;
+        }
+
+        @Override
+        public void afterInvocation() throws IOException {
+            ServerUtils.removeFile(new String[]{"DELETE", "BY_ID", response.split(" ")[1]}, idMap);
+        }
+    }
+
+    private static class GetFile extends FileBenchmark {
+
+        private final String filename;
+        private SocketChannel client;
+        private Thread reader;
+
+        GetFile(int size) {
+            super("getFile", size);
+            this.filename = "bench-get-" + size + ".bin";
+        }
+
+        @Override
+        public void setUp() throws Exception {
+            super.setUp();
+            delete(filename);
+            upload(filename);
+
+            // A loopback connection whose other end is drained, so transferTo sends the file like to a client
+            try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+                serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+                client = SocketChannel.open(serverChannel.getLocalAddress());
+                SocketChannel peer = serverChannel.accept();
+                reader = new Thread(() -> drain(peer), "bench-client");
+                reader.start();
+            }
+        }
+
+        @Override
+        public Object invoke() {
+            DataOutputStream output = new DataOutputStream(OutputStream.nullOutputStream());
+            return ServerUtils.getFile(new String[]{"GET", "BY_NAME", filename}, output, client, idMap);
+        }
+
+        @Override
+        public void tearDown() throws Exception {
+            client.close();
+            reader.join();
+            delete(filename);
+            super.tearDown();
+        }
+
+        private static void drain(SocketChannel peer) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(256 * 1024);
+            try (peer) {
+                while (peer.read(buffer.clear()) != -1) {
+                    // Discard the data
+                }
+            } catch (IOException e) {
+                System.out.println("Error reading the download: " + e.getMessage());
+            }
+        }
+    }
+
+    private static class DeleteFile extends FileBenchmark {
+
+        private final String filename;
+
+        DeleteFile(int size) {
+            super("deleteFile", size);
+            this.filename = "bench-delete-" + size + ".bin";
+        }
+
+        @Override
+        public void beforeInvocation() {
+            upload(filename);
+        }
+
+        @Override
+        public Object invoke() {
+            DataOutputStream output = new DataOutputStream(OutputStream.nullOutputStream());
+            return ServerUtils.deleteFile(new String[]{"DELETE", "BY_NAME", filename}, output, idMap);
+        }
+    }
+
+    /**
+     * Stream that produces a fixed number of bytes like an uploading client.
+     */
+    private static class GeneratingStream extends InputStream {
+
+        private static final byte[] DATA = new byte[64 * 1024];
+
+        static {
+            new Random(42).nextBytes(DATA);
+        }
+
+        private long remaining;
+
+        GeneratingStream(long size) {
+            this.remaining = size;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (remaining == 0) return -1;
+            length = (int) Math.min(Math.min(length, remaining), DATA.length);
+            System.arraycopy(DATA, 0, bytes, offset, length);
+            remaining -= length;
+            return length;
+        }
+
+        @Override
+        public int read() {
+            if (remaining == 0) return -1;
+            remaining--;
+            return DATA[0] & 0xff;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package benchmark;
+
+import util.IdGenerator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.IntStream;
+
+/*
+ * Benchmark of the file id generator with several threads requesting
+ * ids at the same time. Every invocation also checks that all ids are
+ * unique, so it doubles as a stress test of the generator.
+ */
+public class IdGeneratorBenchmarks {
+
+    private static final int IDS_PER_THREAD = 100_000;
+
+    public static List<Benchmark> create() {
+        List<Benchmark> benchmarks = new ArrayList<>();
+        int processors = Runtime.getRuntime().availableProcessors();
+        for (int threads : IntStream.of(1, processors, processors * 4).distinct().toArray()) {
+            benchmarks.add(new NextId(threads));
+        }
+        return benchmarks;
+    }
+
+    private static class NextId extends Benchmark {
+
+        private final int threads;
+        private ExecutorService executor;
+        private IdGenerator generator;
+        private long[][] ids;
+
+        NextId(int threads) {
+            super("nextId", "threads", threads);
+            this.threads = threads;
+        }
+
+        @Override
+        public int operationsPerInvocation() {
+            return threads * IDS_PER_THREAD;
+        }
+
+        @Override
+        public void setUp() {
+            executor = Executors.newFixedThreadPool(threads);
+            generator = new IdGenerator(0);
+            ids = new long[threads][IDS_PER_THREAD];
+        }
+
+        @Override
+        public Object invoke() throws Exception {
+            List<Callable<Void>> tasks = new ArrayList<>();
+            for (long[] threadIds : ids) {
+                tasks.add(() -> {
+                    for (int i = 0; i < threadIds.length; i++) threadIds[i] = generator.next();
+                    return null;
+                });
+            }
+            for (Future<Void> future : executor.invokeAll(tasks)) future.get();
+            return ids;
+        }
+
+        @Override
+        public void afterInvocation() {
+            long[] all = Arrays.stream(ids).flatMapToLong(Arrays::stream).sorted().toArray();
+            for (int i = 1; i < all.length; i++) {
+                if (all[i] == all[i - 1]) throw new IllegalStateException("Duplicate id: " + all[i]);
+            }
+            // Each thread must see increasing ids
+            for (long[] threadIds : ids) {
+                for (int i = 1; i < threadIds.length; i++) {
+                    if (threadIds[i] <= threadIds[i - 1]) throw new IllegalStateException("Ids aren't increasing.");
+                }
+            }
+        }
+
+        @Override
+        public void tearDown() {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package benchmark;
+
+import util.IdIndex;
+import util.IdMap;
+import util.IdMapLog;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Benchmarks of saving the id map as a snapshot and loading it at
+ * startup, for both index types and different numbers of entries.
+ */
+public class IdMapBenchmarks {
+
+    private static final String[] INDEX_TYPES = {"hash", "offheap"};
+
+    /**
+     * @param sizes The numbers of entries in the map.
+     * @return The benchmarks for every size and index type.
+     */
+    public static List<Benchmark> create(int[] sizes) {
+        List<Benchmark> benchmarks = new ArrayList<>();
+        for (int entries : sizes) {
+            for (String indexType : INDEX_TYPES) {
+                benchmarks.add(new Save(entries, indexType));
+                benchmarks.add(new Load(entries, indexType));
+            }
+        }
+        return benchmarks;
+    }
+
+    private abstract static class IdMapBenchmark extends Benchmark {
+
+        final int entries;
+        final String indexType;
+        Path directory;
+
+        IdMapBenchmark(String name, int entries, String indexType) {
+            super(name, "entries", entries, "index", indexType);
+            this.entries = entries;
+            this.indexType = indexType;
+        }
+
+        @Override
+        public void setUp() throws Exception {
+            directory = Files.createTempDirectory("bench-map");
+        }
+
+        @Override
+        public void tearDown() throws Exception {
+            try (var files = Files.list(directory)) {
+                for (Path file : files.toList()) Files.delete(file);
+            }
+            Files.delete(directory);
+        }
+
+        /**
+         * @return An index with the benchmark number of entries.
+         */
+        IdIndex createIndex() {
+            IdIndex index = IdIndex.create(indexType);
+            long firstId = System.currentTimeMillis() << 20;
+            for (int i = 0; i < entries; i++) {
+                index.put(Long.toString(firstId + i), "file-" + i + ".dat");
+            }
+            return index;
+        }
+
+        IdMapLog openLog() {
+            return new IdMapLog(directory, false, Long.MAX_VALUE);
+        }
+    }
+
+    private static class Save extends IdMapBenchmark {
+
+        private IdMapLog log;
+
+        Save(int entries, String indexType) {
+            super("save", entries, indexType);
+        }
+
+        @Override
+        public void setUp() throws Exception {
+            super.setUp();
+            log = openLog();
+            log.recover(createIndex());
+        }
+
+        @Override
+        public Object invoke() throws IOException {
+            log.compact();
+            return log;
+        }
+
+        @Override
+        public void tearDown() throws Exception {
+            log.close();
+            super.tearDown();
+        }
+    }
+
+    private static class Load extends IdMapBenchmark {
+
+        private IdMap idMap;
+
+        Load(int entries, String indexType) {
+            super("load", entries, indexType);
+        }
+
+        @Override
+        public void setUp() throws Exception {
+            super.setUp();
+            IdMapLog log = openLog();
+            log.recover(createIndex());
+            log.close();
+        }
+
+        @Override
+        public Object invoke() throws IOException {
+            idMap = new IdMap(IdIndex.create(indexType), openLog());
+            return idMap;
+        }
+
+        @Override
+        public void afterInvocation() throws IOException {
+            idMap.close();
+            idMap = null;
+        }
+    }
+}
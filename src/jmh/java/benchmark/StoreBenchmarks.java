@@ -0,0 +1,123 @@
+package benchmark;
+
+import util.FileStore;
+import util.PlainFileStore;
+import util.ShardedFileStore;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Stream;
+
+/*
+ * Benchmarks of looking up and creating files in the flat and in the
+ * sharded layout of the data directory, for stores of different sizes.
+ * The store is filled with empty files once per benchmark, the files
+ * created by the measurement are removed again without being measured.
+ */
+public class StoreBenchmarks {
+
+    private static final String[] LAYOUTS = {"plain", "sharded"};
+
+    /**
+     * @param sizes The numbers of files in the store.
+     * @return The benchmarks for every size and layout.
+     */
+    public static List<Benchmark> create(int[] sizes) {
+        List<Benchmark> benchmarks = new ArrayList<>();
+        for (int files : sizes) {
+            for (String layout : LAYOUTS) {
+                benchmarks.add(new Lookup(files, layout));
+                benchmarks.add(new Create(files, layout));
+            }
+        }
+        return benchmarks;
+    }
+
+    private abstract static class StoreBenchmark extends Benchmark {
+
+        final int files;
+        final String layout;
+        Path directory;
+        FileStore store;
+
+        StoreBenchmark(String name, int files, String layout) {
+            super(name, "files", files, "layout", layout);
+            this.files = files;
+            this.layout = layout;
+        }
+
+        @Override
+        public void setUp() throws Exception {
+            directory = Files.createTempDirectory("bench-store");
+            store = layout.equals("sharded") ? new ShardedFileStore(directory) : new PlainFileStore(directory);
+            for (int i = 0; i < files; i++) store.add(fileName(i), Files.createFile(tempPath(i)), null);
+        }
+
+        @Override
+        public void tearDown() throws Exception {
+            store.close();
+            try (Stream<Path> paths = Files.walk(directory)) {
+                for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) Files.delete(path);
+            }
+        }
+
+        static String fileName(int i) {
+            return "file-" + i + ".dat";
+        }
+
+        Path tempPath(int i) {
+            return directory.resolve(".upload-" + i + ".part");
+        }
+    }
+
+    private static class Lookup extends StoreBenchmark {
+
+        Lookup(int files, String layout) {
+            super("lookup", files, layout);
+        }
+
+        @Override
+        public int operationsPerInvocation() {
+            return 100;
+        }
+
+        @Override
+        public Object invoke() {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            Path found = null;
+            for (int i = 0; i < 100; i++) found = store.find(fileName(random.nextInt(files)));
+            return found;
+        }
+    }
+
+    private static class Create extends StoreBenchmark {
+
+        private int next;
+        private Path tempFile;
+
+        Create(int files, String layout) {
+            super("create", files, layout);
+        }
+
+        @Override
+        public void beforeInvocation() throws IOException {
+            next = files + ThreadLocalRandom.current().nextInt(files);
+            tempFile = Files.createFile(tempPath(next));
+        }
+
+        @Override
+        public Object invoke() throws IOException {
+            return store.add(fileName(next), tempFile, null);
+        }
+
+        @Override
+        public void afterInvocation() throws IOException {
+            store.remove(fileName(next));
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package server;
+
+import benchmark.Benchmark;
+import util.HashIdIndex;
+import util.IdMap;
+import util.IdMapLog;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+/*
+ * Benchmarks of splitting request lines and dispatching them in
+ * Server.processRequest. They live in the server package, because
+ * both methods are package-private.
+ */
+public class RequestBenchmarks {
+
+    private static final int BATCH = 1000;
+    private static final String[] REQUESTS = {
+            "GET BY_NAME report 2022.pdf",
+            "GET BY_ID 1879384899741286400",
+            "DELETE BY_NAME notes.txt",
+            "PUT *",
+            "LIST log-"
+    };
+
+    public static List<Benchmark> create() {
+        return List.of(new ParseRequest(), new ProcessRequest());
+    }
+
+    private static class ParseRequest extends Benchmark {
+
+        ParseRequest() {
+            super("parseRequest");
+        }
+
+        @Override
+        public int operationsPerInvocation() {
+            return BATCH;
+        }
+
+        @Override
+        public Object invoke() {
+            int tokens = 0;
+            for (int i = 0; i < BATCH; i++) {
+                tokens += Server.parseRequest(REQUESTS[i % REQUESTS.length]).length;
+            }
+            return tokens;
+        }
+    }
+
+    /**
+     * Parses and dispatches requests that are answered without file I/O: unknown ids and invalid commands.
+     */
+    private static class ProcessRequest extends Benchmark {
+
+        private static final String[] LOOKUPS = {"GET BY_ID 1879384899741286400", "GET BY_ID 42", "STATUS"};
+
+        private final DataInputStream input = new DataInputStream(InputStream.nullInputStream());
+        private final DataOutputStream output = new DataOutputStream(OutputStream.nullOutputStream());
+        private Path directory;
+        private IdMap idMap;
+
+        ProcessRequest() {
+            super("processRequest");
+        }
+
+        @Override
+        public int operationsPerInvocation() {
+            return BATCH;
+        }
+
+        @Override
+        public void setUp() throws Exception {
+            directory = Files.createTempDirectory("bench-map");
+            idMap = new IdMap(new HashIdIndex(), new IdMapLog(directory, false, Long.MAX_VALUE));
+        }
+
+        @Override
+        public Object invoke() throws Exception {
+            int length = 0;
+            for (int i = 0; i < BATCH; i++) {
+                String[] tokens = Server.parseRequest(LOOKUPS[i % LOOKUPS.length]);
+                length += Server.processRequest(tokens, input, output, null, idMap).length();
+            }
+            return length;
+        }
+
+        @Override
+        public void tearDown() throws Exception {
+            idMap.close();
+            try (var files = Files.list(directory)) {
+                for (Path file : files.toList()) Files.delete(file);
+            }
+            Files.delete(directory);
+        }
+    }
+}
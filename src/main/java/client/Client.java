@@ -1,5 +1,6 @@
 package client;
 
+import util.BlockCodec;
 import util.ClientUtils;
 import util.SetupUtils;
 
@@ -15,10 +16,18 @@ public class Client {
 
     private String IP_ADDRESS;
     private int PORT;
+    private final boolean KEEP_ALIVE = Boolean.parseBoolean(SetupUtils.readProperty("client.keep.alive", "false"));
+    private final int STREAMS = SetupUtils.readInt("client.streams", 4);
+    private final int CHUNK_SIZE = SetupUtils.readInt("client.chunk.size", 8388608);
+    private final boolean SKIP_DUPLICATES =
+            Boolean.parseBoolean(SetupUtils.readProperty("client.skip.duplicates", "false"));
+    private final boolean COMPRESSION = SetupUtils.readProperty("client.compression", "none").equals(BlockCodec.NAME);
 
     private final Scanner scanner = new Scanner(System.in);
     private boolean isRunning = true;
     private String fileName;
+    // The cursor of the next page of the last listed page or "-" if it was the last one
+    private String listCursor = "-";
 
     public Client() {
         try {
@@ -28,7 +37,7 @@ public class Client {
             this.IP_ADDRESS = SetupUtils.readProperty("app.address");
             this.PORT = Integer.parseInt(SetupUtils.readProperty("app.port"));
         } catch (IOException e) {
-            System.err.println("Server address or port is not specified in the config file!" + e.getMessage());
+            System.err.println("Server address or port is not specified in the config file! " + e.getMessage());
         }
     }
 
@@ -36,7 +45,11 @@ public class Client {
      * Process the request from the client.
      * The user can choose between sending, receiving or receiving a file.
      * The response is sent to the client.
-     * After that the client terminates the connection.
+     * After that the client terminates the connection, unless keep-alive is enabled in the config file.
+     * In that case the connection is reused for further requests until the user enters an empty action.
+     * Files larger than the chunk size are transferred in chunks over several connections at the same time.
+     * If compression is enabled, transfers use the "_Z" variants of the commands, which send the content in
+     * compressed blocks.
      */
     public void start() {
         try (
@@ -47,27 +60,54 @@ public class Client {
                 DataOutputStream output = new DataOutputStream(socket.getOutputStream())
         ) {
             while (isRunning) {
-                System.out.println("Enter action (1 - get a file, 2 - save a file, 3 - delete a file): ");
+                System.out.println("Enter action (1 - get a file, 2 - save a file, 3 - delete a file, 4 - list files, "
+                        + "5 - show the details of a file, 6 - list files page by page"
+                        + (KEEP_ALIVE ? ", press enter to quit): " : "): "));
 
                 // Read the action from the user
                 String action = scanner.nextLine();
+                if (KEEP_ALIVE && action.isBlank()) {
+                    stop(input, output, socket);
+                    break;
+                }
                 String command = processUserAction(action);
 
-                // Send the command to the server
-                output.writeUTF(command);
-                output.flush();
-                if (action.equals("2")) ClientUtils.sendFile(fileName, output);
-                System.out.println("The request was sent.");
+                // A server that already has the content stores the file without receiving it again
+                String duplicateResponse = action.equals("2") && SKIP_DUPLICATES
+                        ? ClientUtils.sendDigest(fileName, command.split(" ", 2)[1], input, output) : "404";
 
-                // Read the response from the server
-                try {
-                    String response = input.readUTF();
+                if (!duplicateResponse.equals("404")) {
+                    processServerResponse(command, duplicateResponse, input);
+                } else if (action.equals("2") && ClientUtils.isChunked(fileName, STREAMS, CHUNK_SIZE)) {
+                    // The chunks are sent over their own connections
+                    String serverFileName = command.split(" ", 2)[1];
+                    String response = ClientUtils.sendFileChunked(IP_ADDRESS, PORT, fileName, serverFileName,
+                            STREAMS, CHUNK_SIZE, command.startsWith("PUT_Z"));
                     processServerResponse(command, response, input);
-                } catch (EOFException e) {
-                    System.out.println("The server has been shut down.");
+                } else {
+                    // The pages of a list are requested one after another on the same connection
+                    String request = command;
+                    while (request != null) {
+                        // Send the command to the server
+                        output.writeUTF(request);
+                        output.flush();
+                        if (action.equals("2")) ClientUtils.sendFile(fileName, output, command.startsWith("PUT_Z"));
+                        System.out.println("The request was sent.");
+
+                        // Read the response from the server
+                        try {
+                            String response = input.readUTF();
+                            processServerResponse(request, response, input);
+                        } catch (EOFException e) {
+                            System.out.println("The server has been shut down.");
+                            stop(input, output, socket);
+                            break;
+                        }
+                        request = nextPage(request);
+                    }
                 }
 
-                stop(input, output, socket);
+                if (!KEEP_ALIVE || command.equals("exit")) stop(input, output, socket);
             }
         } catch (IOException e) {
             System.out.println("The server is not available. " + e.getMessage());
@@ -77,7 +117,8 @@ public class Client {
     /**
      * Process the user action and return the command to be sent to the server.
      *
-     * @param action The action from the user. The action is either "1" (GET), "2" (PUT) or "3" (DELETE).
+     * @param action The action from the user. The action is either "1" (GET), "2" (PUT), "3" (DELETE), "4" (LIST),
+     *               "5" (STAT) or "6" (LIST_PAGE).
      * @return A command to be sent to the server.
      */
     private String processUserAction(String action) {
@@ -86,7 +127,7 @@ public class Client {
         String nameOrId;
         switch (action) {
             case "1" -> {
-                command = "GET";
+                command = COMPRESSION ? "GET_Z" : "GET";
                 System.out.print("Do you want to get the file by name or by id (1 - name, 2 - id): ");
                 nameOrId = scanner.nextLine();
                 if (nameOrId.equals("1")) {
@@ -98,11 +139,19 @@ public class Client {
                 }
                 fileName = scanner.nextLine();
                 command += " " + nameOrId + " " + fileName;
+                // Continue an interrupted download, with several streams only the first chunk is requested here and
+                // the response tells whether the rest is worth fetching in parallel
+                long offset = resumeOffset(nameOrId, fileName);
+                if (STREAMS > 1 || offset > 0) {
+                    command = (COMPRESSION ? "GET_RANGE_Z " : "GET_RANGE ") + offset + ":"
+                            + (STREAMS > 1 ? CHUNK_SIZE : "") + " " + nameOrId + " " + fileName;
+                }
             }
             case "2" -> {
-                command = "PUT";
                 System.out.print("Enter filename: ");
                 fileName = scanner.nextLine();
+                // Formats that are already compressed are sent as they are
+                command = COMPRESSION && BlockCodec.isCompressible(fileName) ? "PUT_Z" : "PUT";
                 System.out.print("Enter name of the file to be saved on server: ");
                 String serverFileName = scanner.nextLine();
                 if (serverFileName.trim().length() == 0) serverFileName = "*";
@@ -122,12 +171,70 @@ public class Client {
                 fileName = scanner.nextLine();
                 command += " " + nameOrId + " " + fileName;
             }
+            case "4" -> {
+                command = "LIST";
+                System.out.print("Enter the beginning of the filenames or press enter to list all files: ");
+                String prefix = scanner.nextLine();
+                if (!prefix.isEmpty()) command += " " + prefix;
+            }
+            case "5" -> {
+                command = "STAT";
+                System.out.print("Do you want to look up the file by name or by id (1 - name, 2 - id): ");
+                nameOrId = scanner.nextLine();
+                if (nameOrId.equals("1")) {
+                    nameOrId = "BY_NAME";
+                    System.out.print("Enter filename: ");
+                } else {
+                    nameOrId = "BY_ID";
+                    System.out.print("Enter id: ");
+                }
+                fileName = scanner.nextLine();
+                command += " " + nameOrId + " " + fileName;
+            }
+            case "6" -> {
+                System.out.print("Enter the beginning of the filenames or press enter to list all files: ");
+                String prefix = scanner.nextLine();
+                System.out.print("Enter the number of files per page (at most 1000): ");
+                command = "LIST_PAGE " + scanner.nextLine().trim() + " -" + (prefix.isEmpty() ? "" : " " + prefix);
+            }
             case "exit" -> command = "exit";
             default -> System.out.println("Invalid action.");
         }
         return command;
     }
 
+    /**
+     * @param nameOrId Either "BY_NAME" or "BY_ID".
+     * @param key      The filename or the id of the file.
+     * @return The position an interrupted download of the file continues at or 0.
+     */
+    private long resumeOffset(String nameOrId, String key) {
+        try {
+            long offset = ClientUtils.resumeOffset(nameOrId, key);
+            if (offset > 0) System.out.println("Continuing the interrupted download at byte " + offset + ".");
+            return offset;
+        } catch (IOException e) {
+            System.out.println("Error reading the interrupted download: " + e.getMessage());
+            return 0;
+        }
+    }
+
+    /**
+     * Ask the user whether the next page of a list is shown.
+     *
+     * @param request The request that was answered.
+     * @return The request of the next page or null if the request wasn't a LIST_PAGE, the list is complete or the
+     * user stops.
+     */
+    private String nextPage(String request) {
+        if (!request.startsWith("LIST_PAGE ") || listCursor.equals("-")) return null;
+        System.out.print("Press enter to show the next page or enter anything to stop: ");
+        if (!scanner.nextLine().isEmpty()) return null;
+        String[] requestTokens = request.split(" ", 4);
+        return "LIST_PAGE " + requestTokens[1] + " " + listCursor
+                + (requestTokens.length > 3 ? " " + requestTokens[3] : "");
+    }
+
     /**
      * Process the server response and print the result to the user.
      *
@@ -140,22 +247,54 @@ public class Client {
 
         String[] responseTokens = response.split(" ");
         String[] commandTokens = command.split(" ");
-        String commandName = commandTokens[0];
+        // The compressed variants are answered like the plain commands
+        String commandName = commandTokens[0].replaceFirst("_Z$", "");
+        boolean compressed = response.endsWith(" " + BlockCodec.NAME);
+        listCursor = "-";
 
         switch (responseTokens[0]) {
             case "200":
                 switch (commandName) {
-                    case "GET" -> ClientUtils.receiveFile(input);
+                    case "GET" -> ClientUtils.receiveFile(input, commandTokens[1], command.split(" ", 3)[2],
+                            Long.parseLong(responseTokens[1]), compressed);
+                    case "GET_RANGE" -> {
+                        String[] target = command.split(" ", 4);
+                        long offset = Long.parseLong(target[1].substring(0, target[1].indexOf(':')));
+                        ClientUtils.receiveFileRange(input, Long.parseLong(responseTokens[1]),
+                                Long.parseLong(responseTokens[2]), offset, IP_ADDRESS, PORT, target[2], target[3],
+                                STREAMS, CHUNK_SIZE, compressed);
+                    }
                     case "PUT" -> System.out.println("Response says that file is saved! ID = " + responseTokens[1]);
                     case "DELETE" -> System.out.println("The response says that this file was deleted successfully!");
+                    case "LIST" -> ClientUtils.printFileList(input, Integer.parseInt(responseTokens[1]));
+                    case "STAT" -> ClientUtils.printFileDetails(responseTokens);
+                    case "LIST_PAGE" -> {
+                        ClientUtils.printFilePage(input, Integer.parseInt(responseTokens[1]));
+                        listCursor = responseTokens[2];
+                    }
                 }
                 break;
+            case "400":
+                System.out.println("The response says that the request was invalid!");
+                break;
             case "403":
                 System.out.println("The response says that creating the file was forbidden!");
                 break;
             case "404":
                 System.out.println("The response says that this file is not found!");
                 break;
+            case "429":
+                System.out.println("The server is busy, please try again later!");
+                break;
+            case "500":
+                System.out.println("The server failed to receive the file, please try again!");
+                break;
+            case "416":
+                // The file on the server is shorter than the interrupted download
+                String[] target = command.split(" ", 4);
+                ClientUtils.discardDownload(target[2], target[3]);
+                System.out.println("The response says that the file has changed, please download it again!");
+                break;
         }
     }
 
@@ -0,0 +1,361 @@
+package client;
+
+import util.BlockCodec;
+import util.Transfer;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+
+/*
+ * A persistent connection to the server. Several requests can be sent
+ * before the responses are read, the server answers them in the same
+ * order. Keep the number of outstanding requests small, because the
+ * server stops reading while its responses are not consumed.
+ */
+public class Connection implements Closeable {
+
+    private final Socket socket;
+    private final DataInputStream input;
+    private final DataOutputStream output;
+    private final Queue<String> pending = new ArrayDeque<>();
+
+    public Connection(String address, int port) throws IOException {
+        this.socket = new Socket(InetAddress.getByName(address), port);
+        // Requests are flushed explicitly, so small ones don't have to be delayed
+        socket.setTcpNoDelay(true);
+        this.input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        this.output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+    }
+
+    /**
+     * Queue a GET request. The response is "200 [version of the file]", followed by "deflate" if the server
+     * compresses the file.
+     *
+     * @param nameOrId Either "BY_NAME" or "BY_ID".
+     * @param key      The filename or the id of the file.
+     * @throws IOException If an I/O error occurs.
+     */
+    public void get(String nameOrId, String key) throws IOException {
+        send("GET " + nameOrId + " " + key);
+    }
+
+    /**
+     * Queue a PUT request. The file is streamed to the server.
+     *
+     * @param serverFileName The name of the file on the server or "*" to let the server choose one.
+     * @param file           The file to upload.
+     * @throws IOException If an I/O error occurs.
+     */
+    public void put(String serverFileName, Path file) throws IOException {
+        send("PUT " + serverFileName);
+        long size = Files.size(file);
+        output.writeLong(size);
+        Transfer.send(file, size, output);
+    }
+
+    /**
+     * Queue a GET_BATCH request that downloads many files at once. The response is "200 [number of files]",
+     * followed by the response to a GET for every file.
+     *
+     * @param nameOrId Either "BY_NAME" or "BY_ID".
+     * @param keys     The filenames or the ids of the files, at most 1000.
+     * @throws IOException If an I/O error occurs.
+     */
+    public void getBatch(String nameOrId, List<String> keys) throws IOException {
+        send("GET_BATCH " + nameOrId + " " + keys.size());
+        for (String key : keys) output.writeUTF(key);
+    }
+
+    /**
+     * Queue a PUT_BATCH request that uploads many files at once. The response is "200 [number of files]", followed
+     * by the response to a PUT for every file.
+     *
+     * @param serverFileNames The names of the files on the server or "*" to let the server choose one, at most 1000.
+     * @param files           The files to upload in the same order.
+     * @throws IOException If an I/O error occurs.
+     */
+    public void putBatch(List<String> serverFileNames, List<Path> files) throws IOException {
+        send("PUT_BATCH " + files.size());
+        for (int i = 0; i < files.size(); i++) {
+            output.writeUTF(serverFileNames.get(i));
+            long size = Files.size(files.get(i));
+            output.writeLong(size);
+            Transfer.send(files.get(i), size, output);
+        }
+    }
+
+    /**
+     * Queue a GET_RANGE request for a part of a file. The response is "200 [size of the whole file] [version of the
+     * file]", followed by "deflate" if the server compresses the part.
+     *
+     * @param nameOrId   Either "BY_NAME" or "BY_ID".
+     * @param key        The filename or the id of the file.
+     * @param offset     The position of the part in the file.
+     * @param length     The length of the part or -1 for the rest of the file.
+     * @param compressed Whether the part may be sent in compressed blocks.
+     * @throws IOException If an I/O error occurs.
+     */
+    public void getRange(String nameOrId, String key, long offset, long length, boolean compressed)
+            throws IOException {
+        send((compressed ? "GET_RANGE_Z " : "GET_RANGE ") + offset + ":" + (length < 0 ? "" : length) + " " + nameOrId
+                + " " + key);
+    }
+
+    /**
+     * Queue a CHUNK_BEGIN request that starts a chunked upload. The response is "200 [upload id]".
+     *
+     * @param size           The size of the file.
+     * @param chunkSize      The size of every chunk except the last one.
+     * @param serverFileName The name of the file on the server or "*" to let the server choose one.
+     * @throws IOException If an I/O error occurs.
+     */
+    public void beginUpload(long size, int chunkSize, String serverFileName) throws IOException {
+        send("CHUNK_BEGIN " + size + " " + chunkSize + " " + serverFileName);
+    }
+
+    /**
+     * Queue a CHUNK_PUT request. The chunk is read from the file with positional reads, so several connections can
+     * send chunks of the same file at the same time.
+     *
+     * @param uploadId   The id of the upload.
+     * @param index      The index of the chunk.
+     * @param file       The file to upload.
+     * @param offset     The position of the chunk in the file.
+     * @param length     The length of the chunk.
+     * @param compressed Whether the chunk is sent in compressed blocks.
+     * @throws IOException If an I/O error occurs.
+     */
+    public void putChunk(String uploadId, int index, FileChannel file, long offset, long length, boolean compressed)
+            throws IOException {
+        send((compressed ? "CHUNK_PUT_Z " : "CHUNK_PUT ") + uploadId + " " + index);
+        output.writeLong(length);
+        if (compressed) {
+            BlockCodec codec = new BlockCodec();
+            try {
+                for (long end = offset + length; offset < end; ) {
+                    int blockLength = (int) Math.min(BlockCodec.BLOCK_SIZE, end - offset);
+                    ByteBuffer frame = codec.encode(file, offset, blockLength);
+                    output.write(frame.array(), 0, frame.limit());
+                    offset += blockLength;
+                }
+            } finally {
+                codec.close();
+            }
+            return;
+        }
+        Transfer.send(file, offset, length, output);
+    }
+
+    /**
+     * Queue a CHUNK_STATUS request. The response is "200 [number of missing chunks]".
+     *
+     * @param uploadId The id of the upload.
+     * @throws IOException If an I/O error occurs.
+     */
+    public void uploadStatus(String uploadId) throws IOException {
+        send("CHUNK_STATUS " + uploadId);
+    }
+
+    /**
+     * Queue a CHUNK_COMMIT request that stores a completely sent upload. The response is the same as for PUT.
+     *
+     * @param uploadId The id of the upload.
+     * @throws IOException If an I/O error occurs.
+     */
+    public void commitUpload(String uploadId) throws IOException {
+        send("CHUNK_COMMIT " + uploadId);
+    }
+
+    /**
+     * Queue a DELETE request.
+     *
+     * @param nameOrId Either "BY_NAME" or "BY_ID".
+     * @param key      The filename or the id of the file.
+     * @throws IOException If an I/O error occurs.
+     */
+    public void delete(String nameOrId, String key) throws IOException {
+        send("DELETE " + nameOrId + " " + key);
+    }
+
+    /**
+     * Queue a DELETE_BATCH request that deletes many files at once. The response is "200 [number of files]",
+     * followed by the response to a DELETE for every file.
+     *
+     * @param nameOrId Either "BY_NAME" or "BY_ID".
+     * @param keys     The filenames or the ids of the files, at most 1000.
+     * @throws IOException If an I/O error occurs.
+     */
+    public void deleteBatch(String nameOrId, List<String> keys) throws IOException {
+        send("DELETE_BATCH " + nameOrId + " " + keys.size());
+        for (String key : keys) output.writeUTF(key);
+    }
+
+    /**
+     * Queue a LIST request.
+     *
+     * @param prefix The beginning of the filenames, an empty prefix lists all files.
+     * @throws IOException If an I/O error occurs.
+     */
+    public void list(String prefix) throws IOException {
+        send(prefix.isEmpty() ? "LIST" : "LIST " + prefix);
+    }
+
+    /**
+     * Queue a LIST_PAGE request for a page of the files in the order of their names. The response is
+     * "200 [number of files] [cursor]", the cursor asks for the next page or is "-" after the last page.
+     *
+     * @param limit  The maximum number of files of the page, at most 1000.
+     * @param cursor The cursor of the previous response or "-" for the first page.
+     * @param prefix The beginning of the filenames, an empty prefix lists all files.
+     * @throws IOException If an I/O error occurs.
+     */
+    public void listPage(int limit, String cursor, String prefix) throws IOException {
+        send("LIST_PAGE " + limit + " " + cursor + (prefix.isEmpty() ? "" : " " + prefix));
+    }
+
+    /**
+     * Queue a STAT request. The response is "200 [size] [time of the last modification in milliseconds] [id or -]
+     * [SHA-256 checksum or -]" without reading the file on the server.
+     *
+     * @param nameOrId Either "BY_NAME" or "BY_ID".
+     * @param key      The filename or the id of the file.
+     * @throws IOException If an I/O error occurs.
+     */
+    public void stat(String nameOrId, String key) throws IOException {
+        send("STAT " + nameOrId + " " + key);
+    }
+
+    /**
+     * Send all queued requests to the server.
+     *
+     * @throws IOException If an I/O error occurs.
+     */
+    public void flush() throws IOException {
+        output.flush();
+    }
+
+    /**
+     * @return The number of requests whose responses weren't read yet.
+     */
+    public int pendingResponses() {
+        return pending.size();
+    }
+
+    /**
+     * Read the response to the oldest outstanding request.
+     *
+     * @param body The stream the content of a downloaded file or part, the lines "[id] [name]" of a file list, the
+     *             lines "[id or -] [size] [modified] [name]" of a page of files, the lines "[index]" of the missing
+     *             chunks of an upload or the lines "[status]" of the items of a PUT_BATCH or DELETE_BATCH are written
+     *             to, or null to discard them. The files of a GET_BATCH are written one after another.
+     * @return The response of the server, e.g. "200", "200 [id]" or "404".
+     * @throws IOException If an I/O error occurs.
+     */
+    public String readResponse(OutputStream body) throws IOException {
+        String command = pending.remove();
+        flush();
+
+        String response = input.readUTF();
+        if (command.contains("_BATCH ")) {
+            List<String> statuses = readItems(command, response, null, body);
+            if (body != null && !command.startsWith("GET")) {
+                for (String status : statuses) body.write((status + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+            return response;
+        }
+        // GET_RANGE responds with the size and the version of the whole file after the status
+        if (command.startsWith("GET") && response.startsWith("200")) {
+            long remaining = input.readLong();
+            if (response.endsWith(" " + BlockCodec.NAME)) readCompressed(remaining, body);
+            else Transfer.copy(input, body, remaining);
+        }
+        if (command.startsWith("LIST_PAGE") && response.startsWith("200")) {
+            int count = Integer.parseInt(response.split(" ")[1]);
+            for (int i = 0; i < count; i++) {
+                String name = input.readUTF();
+                String id = input.readUTF();
+                String line = (id.isEmpty() ? "-" : id) + " " + input.readLong() + " " + input.readLong() + " " + name
+                        + "\n";
+                if (body != null) body.write(line.getBytes(StandardCharsets.UTF_8));
+            }
+        } else if (command.startsWith("LIST") && response.startsWith("200")) {
+            int count = Integer.parseInt(response.split(" ")[1]);
+            for (int i = 0; i < count; i++) {
+                String line = input.readUTF() + " " + input.readUTF() + "\n";
+                if (body != null) body.write(line.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        if (command.startsWith("CHUNK_STATUS") && response.startsWith("200")) {
+            int count = Integer.parseInt(response.split(" ")[1]);
+            for (int i = 0; i < count; i++) {
+                String line = input.readInt() + "\n";
+                if (body != null) body.write(line.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        return response;
+    }
+
+    /**
+     * Read the response to the oldest outstanding request, which is a GET_BATCH, PUT_BATCH or DELETE_BATCH.
+     *
+     * @param bodies The streams the files of a GET_BATCH are written to, one for every file, or null to discard them.
+     * @return The status of every item, e.g. "200", "200 [id]" or "404".
+     * @throws IOException If an I/O error occurs or the oldest request isn't a batch.
+     */
+    public List<String> readBatchResponse(List<? extends OutputStream> bodies) throws IOException {
+        String command = pending.peek();
+        if (command == null || !command.contains("_BATCH ")) throw new IOException("No batch response is pending.");
+        pending.remove();
+        flush();
+        return readItems(command, input.readUTF(), bodies, null);
+    }
+
+    private List<String> readItems(String command, String response, List<? extends OutputStream> bodies,
+                                   OutputStream body) throws IOException {
+        if (!response.startsWith("200 ")) throw new IOException("The batch was rejected: " + response);
+        int count = Integer.parseInt(response.substring(4));
+        List<String> statuses = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String status = input.readUTF();
+            statuses.add(status);
+            if (command.startsWith("GET") && status.startsWith("200")) {
+                long size = input.readLong();
+                Transfer.copy(input, bodies == null ? body : bodies.get(i), size);
+            }
+        }
+        return statuses;
+    }
+
+    private void readCompressed(long remaining, OutputStream body) throws IOException {
+        BlockCodec codec = new BlockCodec();
+        try {
+            while (remaining > 0) {
+                int length = codec.read(input, codec.block(), remaining);
+                if (body != null) body.write(codec.block(), 0, length);
+                remaining -= length;
+            }
+        } finally {
+            codec.close();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    private void send(String command) throws IOException {
+        output.writeUTF(command);
+        pending.add(command);
+    }
+}
@@ -0,0 +1,343 @@
+package client;
+
+import util.Config;
+import util.Histogram;
+import util.SetupUtils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Headless client that puts load on the server. It runs a number of
+ * connections in parallel, each sending a random mix of GET, PUT and
+ * DELETE requests, and reports the throughput and latency percentiles
+ * of every operation. With a target rate the requests are scheduled at
+ * fixed intervals and the latency is measured from the scheduled time,
+ * so a stalled server shows up in the percentiles instead of slowing
+ * the generator down.
+ *
+ * The settings are read from the "load." properties of the config file
+ * and can be overridden by arguments like "load.connections=32".
+ */
+public class LoadGenerator {
+
+    private enum Operation {GET, PUT, DELETE}
+
+    private final String address = SetupUtils.readProperty("app.address", "127.0.0.1");
+    private final int port = SetupUtils.readInt("app.port", 23456);
+    private final Map<String, String> overrides = new HashMap<>();
+
+    private final int connections;
+    private final long duration;
+    private final long warmup;
+    private final double rate;
+    private final int baseFiles;
+    private final int batch;
+    private final Operation[] operations;
+    private final double[] operationWeights;
+    private final long[] sizes;
+    private final double[] sizeWeights;
+
+    private final Map<Operation, Histogram> latencies = new EnumMap<>(Operation.class);
+    private final Map<Operation, LongAdder> errors = new EnumMap<>(Operation.class);
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+
+    private final Map<Long, Path> sampleFiles = new HashMap<>();
+    private List<String> baseNames;
+    private long measureStart;
+    private long measureEnd;
+
+    /**
+     * @param args Settings that override the config file, e.g. "load.rate=1000".
+     */
+    public LoadGenerator(String[] args) {
+        for (String arg : args) {
+            String[] setting = arg.split("=", 2);
+            String problem = setting.length == 2 ? Config.check(setting[0].trim(), setting[1].trim()) : null;
+            if (setting.length == 2 && problem == null) overrides.put(setting[0].trim(), setting[1].trim());
+            else System.out.println("Ignoring invalid argument: " + (problem != null ? problem : arg));
+        }
+
+        this.connections = Integer.parseInt(setting("load.connections", "8"));
+        this.duration = Long.parseLong(setting("load.duration", "30")) * 1_000_000_000L;
+        this.warmup = Long.parseLong(setting("load.warmup", "5")) * 1_000_000_000L;
+        this.rate = Double.parseDouble(setting("load.rate", "0"));
+        this.baseFiles = Integer.parseInt(setting("load.files", "100"));
+        this.batch = Integer.parseInt(setting("load.batch", "1"));
+
+        Map<String, Double> mix = parseWeights(setting("load.mix", "get:80,put:15,delete:5"));
+        this.operations = mix.keySet().stream().map(o -> Operation.valueOf(o.toUpperCase())).toArray(Operation[]::new);
+        this.operationWeights = cumulative(mix.values());
+        Map<String, Double> sizeMix = parseWeights(setting("load.sizes", "1024:70,65536:25,1048576:5"));
+        this.sizes = sizeMix.keySet().stream().mapToLong(Long::parseLong).toArray();
+        this.sizeWeights = cumulative(sizeMix.values());
+
+        for (Operation operation : Operation.values()) {
+            latencies.put(operation, new Histogram());
+            errors.put(operation, new LongAdder());
+        }
+    }
+
+    /**
+     * Upload the files that are downloaded during the run, run the connections and print the report.
+     * All files created by the run are deleted afterwards.
+     */
+    public void start() {
+        System.out.printf("Load: %d connections, %s, mix %s, sizes %s, %d s after %d s warmup against %s:%d%n",
+                connections, rate > 0 ? rate + " requests/s" : "unlimited rate",
+                setting("load.mix", "default") + (batch > 1 ? " with " + batch + " files per GET" : ""),
+                setting("load.sizes", "default"), duration / 1_000_000_000L, warmup / 1_000_000_000L, address, port);
+        Path sampleDirectory = null;
+        try {
+            sampleDirectory = createSampleFiles();
+            baseNames = uploadBaseFiles();
+
+            long start = System.nanoTime();
+            measureStart = start + warmup;
+            measureEnd = measureStart + duration;
+            List<Thread> workers = new ArrayList<>();
+            for (int i = 0; i < connections; i++) {
+                int worker = i;
+                Thread thread = new Thread(() -> runConnection(worker, start), "load-" + i);
+                thread.start();
+                workers.add(thread);
+            }
+            for (Thread worker : workers) worker.join();
+
+            printReport();
+            deleteFiles(baseNames);
+        } catch (IOException e) {
+            System.out.println("The server is not available. " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            deleteSampleFiles(sampleDirectory);
+        }
+    }
+
+    /**
+     * Send requests over one connection until the run is over.
+     *
+     * @param worker The number of the connection.
+     * @param start  The start of the run in nanoseconds.
+     */
+    private void runConnection(int worker, long start) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        List<String> ownFiles = new ArrayList<>();
+        long interval = rate > 0 ? (long) (connections * 1e9 / rate) : 0;
+        // Spread the connections over the interval
+        long next = start + interval * worker / connections;
+        int sequence = 0;
+
+        try (Connection connection = new Connection(address, port)) {
+            while (true) {
+                long scheduled;
+                if (interval > 0) {
+                    scheduled = next;
+                    next += interval;
+                    while (System.nanoTime() < scheduled) LockSupport.parkNanos(scheduled - System.nanoTime());
+                } else {
+                    scheduled = System.nanoTime();
+                }
+                if (scheduled >= measureEnd) break;
+
+                Operation operation = operations[pick(operationWeights, random)];
+                if (operation == Operation.DELETE && ownFiles.isEmpty()) operation = Operation.PUT;
+
+                String response;
+                switch (operation) {
+                    case GET -> {
+                        List<String> names = new ArrayList<>();
+                        for (int i = 0; i < batch; i++) {
+                            int index = random.nextInt(baseNames.size() + ownFiles.size());
+                            names.add(index < baseNames.size()
+                                    ? baseNames.get(index) : ownFiles.get(index - baseNames.size()));
+                        }
+                        CountingStream body = new CountingStream();
+                        if (batch > 1) {
+                            connection.getBatch("BY_NAME", names);
+                            List<String> statuses = connection.readBatchResponse(Collections.nCopies(batch, body));
+                            response = statuses.stream().filter(s -> !s.startsWith("200")).findFirst().orElse("200");
+                        } else {
+                            connection.get("BY_NAME", names.get(0));
+                            response = connection.readResponse(body);
+                        }
+                        bytesReceived.add(body.count);
+                    }
+                    case PUT -> {
+                        String name = "load-" + worker + "-" + sequence++;
+                        long size = sizes[pick(sizeWeights, random)];
+                        connection.put(name, sampleFiles.get(size));
+                        response = connection.readResponse(null);
+                        bytesSent.add(size);
+                        if (response.startsWith("200")) ownFiles.add(name);
+                    }
+                    default -> {
+                        // Swap with the last file, so the removal doesn't shift the list
+                        int index = random.nextInt(ownFiles.size());
+                        String name = ownFiles.set(index, ownFiles.get(ownFiles.size() - 1));
+                        ownFiles.remove(ownFiles.size() - 1);
+                        connection.delete("BY_NAME", name);
+                        response = connection.readResponse(null);
+                    }
+                }
+
+                if (scheduled >= measureStart) {
+                    latencies.get(operation).record(System.nanoTime() - scheduled);
+                    if (!response.startsWith("200")) errors.get(operation).increment();
+                }
+            }
+
+            for (String name : ownFiles) connection.delete("BY_NAME", name);
+            while (connection.pendingResponses() > 0) connection.readResponse(null);
+        } catch (IOException e) {
+            System.out.println("Connection " + worker + " failed: " + e.getMessage());
+        }
+    }
+
+    private void printReport() {
+        double seconds = duration / 1e9;
+        System.out.printf("%n%-8s %10s %8s %10s %10s %10s %10s %10s%n",
+                "", "requests", "errors", "req/s", "p50 ms", "p99 ms", "p99.9 ms", "max ms");
+        Histogram all = new Histogram();
+        long allErrors = 0;
+        for (Operation operation : Operation.values()) {
+            Histogram histogram = latencies.get(operation);
+            all.add(histogram);
+            allErrors += errors.get(operation).sum();
+            printLine(operation.name(), histogram, errors.get(operation).sum(), seconds);
+        }
+        printLine("total", all, allErrors, seconds);
+        System.out.printf("%nSent %.1f MB/s, received %.1f MB/s%n",
+                bytesSent.sum() / seconds / 1e6, bytesReceived.sum() / seconds / 1e6);
+    }
+
+    private static void printLine(String name, Histogram histogram, long errorCount, double seconds) {
+        System.out.printf("%-8s %10d %8d %10.1f %10.3f %10.3f %10.3f %10.3f%n", name, histogram.count(), errorCount,
+                histogram.count() / seconds, histogram.percentile(50) / 1e6, histogram.percentile(99) / 1e6,
+                histogram.percentile(99.9) / 1e6, histogram.max() / 1e6);
+    }
+
+    /**
+     * Create one file with random content for every file size, they are uploaded under different names.
+     *
+     * @return The directory of the files.
+     * @throws IOException If a file can't be written.
+     */
+    private Path createSampleFiles() throws IOException {
+        Path directory = Files.createTempDirectory("load");
+        byte[] chunk = new byte[64 * 1024];
+        for (long size : sizes) {
+            Path file = directory.resolve(size + ".bin");
+            try (OutputStream output = Files.newOutputStream(file)) {
+                for (long written = 0; written < size; written += chunk.length) {
+                    ThreadLocalRandom.current().nextBytes(chunk);
+                    output.write(chunk, 0, (int) Math.min(chunk.length, size - written));
+                }
+            }
+            sampleFiles.put(size, file);
+        }
+        return directory;
+    }
+
+    private static void deleteSampleFiles(Path directory) {
+        if (directory == null) return;
+        try (var files = Files.list(directory)) {
+            for (Path file : files.toList()) Files.delete(file);
+            Files.delete(directory);
+        } catch (IOException e) {
+            System.out.println("Error deleting the sample files: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Upload the files that every connection downloads. They are never deleted during the run.
+     *
+     * @return The names of the files.
+     * @throws IOException If an I/O error occurs.
+     */
+    private List<String> uploadBaseFiles() throws IOException {
+        List<String> names = new ArrayList<>();
+        try (Connection connection = new Connection(address, port)) {
+            for (int i = 0; i < baseFiles; i++) {
+                String name = "load-base-" + i;
+                // The server fails a PUT if a previous run left the file behind
+                connection.delete("BY_NAME", name);
+                connection.put(name, sampleFiles.get(sizes[pick(sizeWeights, ThreadLocalRandom.current())]));
+                names.add(name);
+                if (connection.pendingResponses() >= 16) connection.readResponse(null);
+            }
+            while (connection.pendingResponses() > 0) connection.readResponse(null);
+        }
+        return names;
+    }
+
+    private void deleteFiles(List<String> names) throws IOException {
+        try (Connection connection = new Connection(address, port)) {
+            for (String name : names) {
+                connection.delete("BY_NAME", name);
+                if (connection.pendingResponses() >= 16) connection.readResponse(null);
+            }
+            while (connection.pendingResponses() > 0) connection.readResponse(null);
+        }
+    }
+
+    private String setting(String property, String defaultValue) {
+        String value = overrides.get(property);
+        return value != null ? value : SetupUtils.readProperty(property, defaultValue);
+    }
+
+    /**
+     * @param weights Comma-separated "[name]:[weight]" pairs, e.g. "get:80,put:20".
+     * @return The weights by name in the given order.
+     */
+    private static Map<String, Double> parseWeights(String weights) {
+        Map<String, Double> parsed = new LinkedHashMap<>();
+        for (String entry : weights.split(",")) {
+            String[] parts = entry.trim().split(":");
+            parsed.put(parts[0].trim(), parts.length > 1 ? Double.parseDouble(parts[1].trim()) : 1);
+        }
+        return parsed;
+    }
+
+    private static double[] cumulative(Collection<Double> weights) {
+        double[] cumulative = new double[weights.size()];
+        double sum = 0;
+        int i = 0;
+        for (double weight : weights) cumulative[i++] = sum += weight;
+        return cumulative;
+    }
+
+    private static int pick(double[] cumulativeWeights, Random random) {
+        double value = random.nextDouble() * cumulativeWeights[cumulativeWeights.length - 1];
+        for (int i = 0; i < cumulativeWeights.length - 1; i++) {
+            if (value < cumulativeWeights[i]) return i;
+        }
+        return cumulativeWeights.length - 1;
+    }
+
+    /**
+     * Discards a downloaded file and counts its bytes.
+     */
+    private static class CountingStream extends OutputStream {
+
+        private long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
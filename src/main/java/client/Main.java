@@ -1,7 +1,11 @@
 package client;
 
+import java.util.Arrays;
+
 public class Main {
     public static void main(String[] args) {
-        new Client().start();
+        // "load" starts the headless load generator instead of the interactive client
+        if (args.length > 0 && args[0].equals("load")) new LoadGenerator(Arrays.copyOfRange(args, 1, args.length)).start();
+        else new Client().start();
     }
 }
@@ -0,0 +1,53 @@
+package server;
+
+import com.sun.net.httpserver.HttpServer;
+import util.Metrics;
+import util.SetupUtils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/*
+ * Local HTTP endpoint for monitoring. GET /metrics returns the current
+ * metrics as "[name] [value]" lines. It only listens on the loopback
+ * interface and is disabled unless "server.admin.port" is set.
+ */
+class AdminServer {
+
+    private static HttpServer httpServer;
+
+    /**
+     * Register the metrics MBean and start the admin endpoint if a port is configured.
+     */
+    static synchronized void start() {
+        Metrics.registerMBean();
+
+        int port = SetupUtils.readInt("server.admin.port", 0);
+        if (port <= 0) return;
+        try {
+            httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+            httpServer.createContext("/metrics", exchange -> {
+                byte[] body = Metrics.report().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream output = exchange.getResponseBody()) {
+                    output.write(body);
+                }
+            });
+            httpServer.start();
+        } catch (IOException e) {
+            System.out.println("Error starting the admin endpoint: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Stop the admin endpoint if it is running.
+     */
+    static synchronized void stop() {
+        if (httpServer != null) httpServer.stop(0);
+        httpServer = null;
+    }
+}
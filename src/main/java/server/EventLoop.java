@@ -0,0 +1,249 @@
+package server;
+
+import util.Metrics;
+
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/*
+ * A selector loop that drives the connections assigned to it by the
+ * acceptor. All reads, writes and request handling of a connection
+ * happen on the thread of its loop, except for the blocking parts of
+ * requests, which workers hand back to the loop once they are done.
+ * A connection whose client is over its bandwidth pauses on a timer of
+ * the loop instead of holding up the other connections.
+ * Connections stay open for further
+ * commands until the client closes them or they are idle for too long.
+ * When the server stops, the loop finishes the running requests and
+ * closes every connection once it is between two requests.
+ */
+class EventLoop implements Runnable {
+
+    private final NioServer server;
+    private final int idleTimeout;
+    private final Selector selector;
+    private final Queue<Accepted> pending = new ConcurrentLinkedQueue<>();
+    private final Queue<Resumed> resumed = new ConcurrentLinkedQueue<>();
+    // Paused connections by the time in nanoseconds they continue, only used by the thread of the loop
+    private final PriorityQueue<Delayed> delayed = new PriorityQueue<>(Comparator.comparingLong(Delayed::time));
+
+    private volatile boolean isRunning = true;
+    // The time in milliseconds after which running requests are aborted when the loop is stopped
+    private volatile long drainDeadline;
+    private long lastIdleCheck = System.currentTimeMillis();
+
+    EventLoop(NioServer server, int idleTimeout) throws IOException {
+        this.server = server;
+        this.idleTimeout = idleTimeout;
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Hand a freshly accepted channel over to this loop.
+     *
+     * @param channel The channel to the client.
+     */
+    void register(SocketChannel channel) {
+        pending.add(new Accepted(channel, System.nanoTime()));
+        selector.wakeup();
+    }
+
+    /**
+     * Continue a paused connection on the thread of this loop, e.g. after a worker finished the blocking part of
+     * its request.
+     *
+     * @param connection The connection of this loop.
+     * @param step       The part of the request that continues it.
+     */
+    void resume(NioConnection connection, NioConnection.Step step) {
+        resumed.add(new Resumed(connection, step));
+        selector.wakeup();
+    }
+
+    /**
+     * Continue a paused connection after a delay, e.g. once its client may transfer again. Only the thread of the
+     * loop calls it.
+     *
+     * @param connection The connection of this loop.
+     * @param step       The part of the request that continues it.
+     * @param delay      The delay in nanoseconds.
+     */
+    void resumeLater(NioConnection connection, NioConnection.Step step, long delay) {
+        delayed.add(new Delayed(new Resumed(connection, step), System.nanoTime() + delay));
+    }
+
+    /**
+     * Stop the loop. Running requests are finished for at most the given time, then all connections are closed.
+     *
+     * @param drainTimeout The time in milliseconds the running requests may take.
+     */
+    void shutdown(long drainTimeout) {
+        drainDeadline = System.currentTimeMillis() + drainTimeout;
+        isRunning = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (isRunning || isDraining()) {
+                selector.select(selectTimeout());
+                registerPending();
+                resumeDelayed();
+                resumeConnections();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    NioConnection connection = (NioConnection) key.attachment();
+                    handle(connection, () -> {
+                        if (key.isValid() && key.isReadable()) connection.onReadable();
+                        if (key.isValid() && key.isWritable()) connection.onWritable();
+                    });
+                }
+                closeIdleConnections();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                ((NioConnection) key.attachment()).close();
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Run a handler of a connection and close the connection if it fails.
+     *
+     * @param connection The connection.
+     * @param step       The handler.
+     */
+    private static void handle(NioConnection connection, NioConnection.Step step) {
+        try {
+            step.run();
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Error handling the connection: " + e.getMessage());
+            Metrics.error();
+            connection.close();
+        }
+    }
+
+    /**
+     * @return The time in milliseconds the selector waits at most, until the next idle check or paused connection.
+     */
+    private long selectTimeout() {
+        long timeout = !isRunning ? 100 : idleTimeout > 0 ? Math.min(idleTimeout, 1000) : 0;
+        Delayed next = delayed.peek();
+        if (next == null) return timeout;
+        long untilNext = Math.max(1, (next.time() - System.nanoTime() + 999_999) / 1_000_000);
+        return timeout == 0 ? untilNext : Math.min(timeout, untilNext);
+    }
+
+    /**
+     * Hand the paused connections whose delay is over to resumeConnections().
+     */
+    private void resumeDelayed() {
+        long now = System.nanoTime();
+        while (!delayed.isEmpty() && delayed.peek().time() <= now) resumed.add(delayed.poll().resumed());
+    }
+
+    /**
+     * Continue the connections whose paused requests can go on.
+     */
+    private void resumeConnections() {
+        Resumed next;
+        while ((next = resumed.poll()) != null) {
+            NioConnection connection = next.connection();
+            NioConnection.Step step = next.step();
+            // A connection closed by the shutdown in the meantime drops the result
+            if (connection.isOpen()) handle(connection, () -> connection.resume(step));
+        }
+    }
+
+    /**
+     * Close the connections that are between two requests, once the loop is stopped.
+     *
+     * @return Whether requests are still running and may continue.
+     */
+    private boolean isDraining() {
+        if (System.currentTimeMillis() > drainDeadline) return false;
+        for (SelectionKey key : selector.keys()) {
+            NioConnection connection = (NioConnection) key.attachment();
+            if (key.isValid() && connection.isBetweenRequests()) connection.close();
+        }
+        return selector.keys().stream().anyMatch(SelectionKey::isValid);
+    }
+
+    /**
+     * Close the connections that were idle for longer than the timeout.
+     */
+    private void closeIdleConnections() {
+        long now = System.currentTimeMillis();
+        if (idleTimeout <= 0 || now - lastIdleCheck < Math.min(idleTimeout, 1000)) return;
+        lastIdleCheck = now;
+        for (SelectionKey key : selector.keys()) {
+            NioConnection connection = (NioConnection) key.attachment();
+            if (key.isValid() && connection.isIdle(now, idleTimeout)) connection.close();
+        }
+    }
+
+    /**
+     * Register the channels handed over by the acceptor with the selector.
+     */
+    private void registerPending() {
+        Accepted accepted;
+        while ((accepted = pending.poll()) != null) {
+            SocketChannel channel = accepted.channel();
+            Metrics.connectionOpened(accepted.time());
+            try {
+                channel.configureBlocking(false);
+                // Responses are written in several parts, don't hold them back until the client acknowledges the first
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                key.attach(new NioConnection(server, this, channel, key));
+            } catch (IOException e) {
+                // E.g. the client reset the connection right after it was accepted, the other connections go on
+                System.out.println("Error registering the connection: " + e.getMessage());
+                Metrics.error();
+                Metrics.connectionClosed();
+                try {
+                    channel.close();
+                } catch (IOException closeError) {
+                    // The channel is unusable anyway
+                }
+            }
+        }
+    }
+
+    /**
+     * A channel waiting to be registered and the time it was accepted in nanoseconds.
+     */
+    private record Accepted(SocketChannel channel, long time) {
+    }
+
+    /**
+     * A paused connection and the part of its request that continues it.
+     */
+    private record Resumed(NioConnection connection, NioConnection.Step step) {
+    }
+
+    /**
+     * A paused connection and the time in nanoseconds it continues.
+     */
+    private record Delayed(Resumed resumed, long time) {
+    }
+}
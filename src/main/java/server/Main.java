@@ -1,8 +1,46 @@
 package server;
 
+import util.FileSync;
+import util.SetupUtils;
+import util.ShardedFileStore;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
 public class Main {
 
     public static void main(String[] args) {
-        new Server().start();
+        // "migrate" moves the files of a flat data directory into shards, also while a server is running
+        if (args.length > 0 && args[0].equals("migrate")) {
+            migrate();
+            return;
+        }
+
+        SetupUtils.watchConfig();
+        AdminServer.start();
+        if (SetupUtils.readProperty("server.engine", "blocking").equals("nio")) new NioServer().start();
+        else new Server().start();
+    }
+
+    /**
+     * Move the files stored by the "plain" mode into the shards of the "sharded" mode. A running server has to use the
+     * "sharded" mode already, it finds the files in both places until they are moved. The store is opened on its
+     * own, so nothing of a running server, like its uploads in progress, is touched.
+     */
+    private static void migrate() {
+        if (!SetupUtils.readProperty("storage.mode", "plain").equals("sharded")) {
+            System.out.println("Set storage.mode=sharded and restart the server before migrating.");
+            return;
+        }
+        long start = System.nanoTime();
+        Path dataDirectory = Paths.get(SetupUtils.setUpFileStorage("/server/data/"));
+        FileSync sync = new FileSync(SetupUtils.readProperty("storage.sync", "none"), dataDirectory);
+        try (ShardedFileStore store = new ShardedFileStore(dataDirectory, sync)) {
+            long moved = store.migrate();
+            System.out.printf("Moved %d file(s) into shards in %.1f s.%n", moved, (System.nanoTime() - start) / 1e9);
+        } catch (IOException e) {
+            System.out.println("Error migrating the files: " + e.getMessage());
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,854 @@
+package server;
+
+import util.Admission;
+import util.BlockCodec;
+import util.ChunkedUpload;
+import util.FileBatch;
+import util.Metrics;
+import util.PossessionChallenge;
+import util.ServerUtils;
+import util.Transfer;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+
+/*
+ * State machine of a single non-blocking connection. It parses the
+ * writeUTF command frames and writeLong length-prefixed payloads sent
+ * by the client, even if they arrive in several partial reads, and
+ * writes the response as soon as the channel accepts more data.
+ * Parts of a request that block, like waiting for the log of the id
+ * map, the name locks or the disk, run on a worker thread while the
+ * connection pauses, and its event loop continues it with the result.
+ */
+class NioConnection {
+
+    /**
+     * A part of a request that runs on the thread of the event loop.
+     */
+    interface Step {
+        void run() throws IOException;
+    }
+
+    /**
+     * A blocking part of a request that runs on a worker thread.
+     */
+    private interface Work<T> {
+        T run() throws IOException;
+    }
+
+    /**
+     * The part of a request that continues with the result of its work on the thread of the event loop.
+     */
+    private interface Then<T> {
+        void accept(T result) throws IOException;
+    }
+
+    private enum State {COMMAND, ITEM, PAYLOAD_LENGTH, PAYLOAD, BLOCK, PROOF, RESPONSE}
+
+    private static final int BUFFER_SIZE = 8192;
+    // Bytes sent by one transferTo call, so the bandwidth of the client is charged while the file goes out
+    private static final long TRANSFER_SLICE = 1024 * 1024;
+
+    private final NioServer server;
+    private final EventLoop loop;
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final Queue<ByteBuffer> writeQueue = new ArrayDeque<>();
+    private final Admission.Client client;
+
+    private State state = State.COMMAND;
+    private ByteBuffer readBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private int requiredBytes;
+    private String[] requestTokens;
+    private Path uploadFile;
+    private FileChannel uploadChannel;
+    private MessageDigest uploadDigest;
+    // Target of a CHUNK_PUT, the file of the upload is shared with other connections
+    private ChunkedUpload chunkUpload;
+    private long uploadPosition;
+    private boolean discardPayload;
+    private long payloadRemaining;
+    private FileChannel fileChannel;
+    private long filePosition;
+    private long fileEnd;
+    // Compression of the current upload or download, null if it is sent raw
+    private BlockCodec codec;
+    // Items of a GET_BATCH, PUT_BATCH or DELETE_BATCH, the name of a PUT_BATCH item is kept until its payload arrives
+    private FileBatch batch;
+    // The challenge of a PUT_HASH whose proof is still expected
+    private PossessionChallenge challenge;
+    private int batchItems;
+    private String batchFilename;
+    private long lastActivity = System.currentTimeMillis();
+    private Metrics.Command command;
+    private long requestStart;
+    private String status;
+    // The command that holds a transfer slot until its response is complete
+    private String admitted;
+    // A rejected command whose data wasn't read, the connection is closed after the response
+    private boolean closeAfterResponse;
+    // The connection neither reads nor writes until a worker or a read ahead file lets it continue
+    private boolean suspended;
+
+    NioConnection(NioServer server, EventLoop loop, SocketChannel channel, SelectionKey key) {
+        this.server = server;
+        this.loop = loop;
+        this.channel = channel;
+        this.key = key;
+        this.client = Admission.of(channel);
+    }
+
+    /**
+     * Read the available bytes from the channel and process every complete frame.
+     *
+     * @throws IOException If an I/O error occurs.
+     */
+    void onReadable() throws IOException {
+        lastActivity = System.currentTimeMillis();
+        int read = channel.read(readBuffer);
+        if (read == -1) {
+            close();
+            return;
+        }
+        parseBuffered();
+
+        // A command frame can be larger than the buffer
+        if (requiredBytes > readBuffer.capacity()) {
+            ByteBuffer larger = ByteBuffer.allocate(requiredBytes);
+            readBuffer.flip();
+            larger.put(readBuffer);
+            readBuffer = larger;
+        }
+        // A client over its bandwidth isn't read from until the refill has paid for the received bytes, a request
+        // that waits for a worker pays with the next read
+        if (!suspended && channel.isOpen()) pace(read, () -> { });
+    }
+
+    /**
+     * Continue writing the pending response. Once it is complete the connection waits for the next command.
+     *
+     * @throws IOException If an I/O error occurs.
+     */
+    void onWritable() throws IOException {
+        lastActivity = System.currentTimeMillis();
+        while (true) {
+            while (!writeQueue.isEmpty()) {
+                ByteBuffer buffer = writeQueue.peek();
+                int written = channel.write(buffer);
+                if (!buffer.hasRemaining()) writeQueue.poll();
+                if (pace(written, this::onWritable) || buffer.hasRemaining()) return;
+            }
+
+            if (fileChannel != null) {
+                while (filePosition < fileEnd) {
+                    if (codec != null) {
+                        // The next block is only encoded once the previous one is written completely
+                        int length = (int) Math.min(BlockCodec.BLOCK_SIZE, fileEnd - filePosition);
+                        ByteBuffer frame = codec.encode(fileChannel, filePosition, length);
+                        filePosition += length;
+                        int written = channel.write(frame);
+                        if (frame.hasRemaining()) writeQueue.add(frame);
+                        if (pace(written, this::onWritable) || frame.hasRemaining()) return;
+                        continue;
+                    }
+                    long slice = Math.min(TRANSFER_SLICE, fileEnd - filePosition);
+                    long sent = fileChannel.transferTo(filePosition, slice, channel);
+                    if (sent == 0) return;
+                    filePosition += sent;
+                    if (pace(sent, this::onWritable)) return;
+                }
+                fileChannel.close();
+                fileChannel = null;
+                closeCodec();
+            }
+
+            // Continue with the next file of a GET_BATCH, it was read ahead while the previous ones were sent
+            if (batch == null || !batch.hasNext()) break;
+            CompletableFuture<?> read = batch.nextRead();
+            if (!read.isDone()) {
+                suspend();
+                read.whenComplete((item, error) -> loop.resume(this, this::onWritable));
+                return;
+            }
+            respondItem(batch.next());
+        }
+        batch = null;
+
+        // The challenge of a PUT_HASH was sent, the request continues with the proof of the client
+        if (challenge != null) {
+            state = State.PROOF;
+            key.interestOps(SelectionKey.OP_READ);
+            parseBuffered();
+            return;
+        }
+
+        // The response is complete, handle commands that were already received
+        if (command != null) Metrics.request(command, requestStart, status);
+        command = null;
+        releaseTransfer();
+        if (closeAfterResponse) {
+            close();
+            return;
+        }
+        state = State.COMMAND;
+        requestTokens = null;
+        key.interestOps(SelectionKey.OP_READ);
+        parseBuffered();
+    }
+
+    /**
+     * Check whether nothing was read or written for longer than the idle timeout.
+     *
+     * @param now         The current time in milliseconds.
+     * @param idleTimeout The idle timeout in milliseconds.
+     * @return True if the connection should be closed.
+     */
+    boolean isIdle(long now, long idleTimeout) {
+        return !suspended && now - lastActivity > idleTimeout;
+    }
+
+    boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    /**
+     * Continue the paused connection on the thread of its event loop.
+     *
+     * @param step The part of the request that continues it.
+     * @throws IOException If an I/O error occurs.
+     */
+    void resume(Step step) throws IOException {
+        suspended = false;
+        lastActivity = System.currentTimeMillis();
+        key.interestOps(state == State.RESPONSE ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        step.run();
+        // Handle the bytes that arrived before the connection was paused
+        if (!suspended && state != State.RESPONSE && channel.isOpen()) parseBuffered();
+    }
+
+    /**
+     * Run a blocking part of the request on a worker thread. The connection pauses meanwhile, afterwards its event
+     * loop continues it with the result.
+     *
+     * @param work The blocking part, it must not change the state of the connection.
+     * @param then The part that continues with the result.
+     */
+    private <T> void offload(Work<T> work, Then<T> then) {
+        suspend();
+        server.execute(() -> {
+            try {
+                T result = work.run();
+                loop.resume(this, () -> then.accept(result));
+            } catch (IOException e) {
+                loop.resume(this, () -> {
+                    throw e;
+                });
+            } catch (RuntimeException e) {
+                loop.resume(this, () -> {
+                    throw e;
+                });
+            }
+        });
+    }
+
+    /**
+     * Charge transferred bytes to the bandwidth of the client. A client over its limit pauses the connection, the
+     * event loop continues it once the refill has paid for the bytes.
+     *
+     * @param bytes The number of bytes.
+     * @param step  The part of the request that continues the connection.
+     * @return Whether the connection paused.
+     */
+    private boolean pace(long bytes, Step step) {
+        long pause = client.charge(bytes);
+        if (pause <= 0) return false;
+        suspend();
+        loop.resumeLater(this, step, pause);
+        return true;
+    }
+
+    private void suspend() {
+        suspended = true;
+        key.interestOps(0);
+    }
+
+    /**
+     * @return Whether the connection waits for a command and hasn't received any part of it yet.
+     */
+    boolean isBetweenRequests() {
+        return state == State.COMMAND && readBuffer.position() == 0;
+    }
+
+    /**
+     * Close the connection and release its resources.
+     */
+    void close() {
+        if (!channel.isOpen()) return;
+        Metrics.connectionClosed();
+        releaseTransfer();
+        key.cancel();
+        try {
+            if (fileChannel != null) fileChannel.close();
+            if (uploadChannel != null) uploadChannel.close();
+            channel.close();
+            closeCodec();
+            // The items of a batch that were already processed keep their ids
+            if (batch != null) commitAbandoned(batch);
+            batch = null;
+        } catch (IOException e) {
+            System.out.println("Error closing the connection: " + e.getMessage());
+        }
+        // Drop an incomplete upload
+        ServerUtils.deleteTempFile(uploadFile);
+    }
+
+    /**
+     * Persist the items of a batch whose connection failed. Waiting for them mustn't hold up the event loop.
+     *
+     * @param abandoned The batch.
+     */
+    private void commitAbandoned(FileBatch abandoned) {
+        abandoned.close();
+        server.execute(() -> {
+            try {
+                abandoned.commit(null);
+            } catch (IOException e) {
+                System.out.println("Error committing the batch: " + e.getMessage());
+                Metrics.error();
+            }
+        });
+    }
+
+    /**
+     * Advance the state machine as far as the buffered bytes allow.
+     *
+     * @throws IOException If an I/O error occurs.
+     */
+    private void parseBuffered() throws IOException {
+        readBuffer.flip();
+        try {
+            parse();
+        } finally {
+            readBuffer.compact();
+        }
+    }
+
+    private void parse() throws IOException {
+        while (channel.isOpen() && !suspended && state != State.RESPONSE) {
+            switch (state) {
+                case COMMAND -> {
+                    String request = readFrame();
+                    if (request == null) return;
+                    processRequest(request);
+                }
+                case ITEM -> {
+                    String item = readFrame();
+                    if (item == null) return;
+                    batchItems++;
+                    switch (requestTokens[0]) {
+                        case "GET_BATCH" -> batch.read(requestTokens[1], item);
+                        case "DELETE_BATCH" -> batch.remove(requestTokens[1], item);
+                        default -> {
+                            // The size and the content of a PUT_BATCH item follow its name
+                            batchFilename = item;
+                            state = State.PAYLOAD_LENGTH;
+                        }
+                    }
+                    if (state == State.ITEM) nextItem();
+                }
+                case PROOF -> {
+                    String proof = readFrame();
+                    if (proof == null) return;
+                    PossessionChallenge answered = challenge;
+                    challenge = null;
+                    String[] tokens = requestTokens;
+                    offload(() -> ServerUtils.addDuplicate(tokens, answered, proof, Server.idMap), this::respond);
+                }
+                case PAYLOAD_LENGTH -> {
+                    if (readBuffer.remaining() < 8) return;
+                    payloadRemaining = readBuffer.getLong();
+                    if (payloadRemaining < 0) throw new IOException("Invalid file size: " + payloadRemaining);
+                    if (requestTokens[0].startsWith("CHUNK_PUT")) {
+                        beginChunk();
+                    } else {
+                        uploadDigest = ServerUtils.newDigest();
+                        offload(NioConnection::openUpload, upload -> {
+                            uploadFile = upload.file();
+                            uploadChannel = upload.channel();
+                        });
+                    }
+                    if (ServerUtils.isCompressedUpload(requestTokens)) {
+                        codec = new BlockCodec();
+                        state = State.BLOCK;
+                    } else {
+                        state = State.PAYLOAD;
+                    }
+                }
+                case PAYLOAD -> {
+                    // Write the received part to the temporary file
+                    int length = (int) Math.min(readBuffer.remaining(), payloadRemaining);
+                    writePayload(readBuffer.slice(readBuffer.position(), length));
+                    readBuffer.position(readBuffer.position() + length);
+                    payloadRemaining -= length;
+                    if (payloadRemaining > 0) return;
+                    completePayload();
+                }
+                case BLOCK -> {
+                    // A compressed block is decoded once it is buffered completely
+                    if (payloadRemaining > 0) {
+                        if (readBuffer.remaining() < 8) return;
+                        int frameLength = BlockCodec.frameLength(readBuffer);
+                        if (readBuffer.remaining() < frameLength) {
+                            requiredBytes = frameLength;
+                            return;
+                        }
+                        requiredBytes = 0;
+                        int length = codec.decode(readBuffer, codec.block(), payloadRemaining);
+                        writePayload(ByteBuffer.wrap(codec.block(), 0, length));
+                        payloadRemaining -= length;
+                    }
+                    if (payloadRemaining == 0) completePayload();
+                }
+            }
+        }
+    }
+
+    /**
+     * Read a modified UTF-8 string with an unsigned short length prefix, if it is buffered completely.
+     *
+     * @return The string or null if more bytes are needed.
+     * @throws IOException If the string is invalid.
+     */
+    private String readFrame() throws IOException {
+        if (readBuffer.remaining() < 2) return null;
+        int frameLength = 2 + Short.toUnsignedInt(readBuffer.getShort(readBuffer.position()));
+        if (readBuffer.remaining() < frameLength) {
+            requiredBytes = frameLength;
+            return null;
+        }
+        requiredBytes = 0;
+        byte[] frame = new byte[frameLength];
+        readBuffer.get(frame);
+        return new DataInputStream(new ByteArrayInputStream(frame)).readUTF();
+    }
+
+    /**
+     * Wait for the next item of a batch or send the response once all items were received.
+     *
+     * @throws IOException If an I/O error occurs.
+     */
+    private void nextItem() throws IOException {
+        if (batchItems < batch.size()) {
+            state = State.ITEM;
+            return;
+        }
+        if (requestTokens[0].equals("GET_BATCH")) {
+            // The files are sent one after another by onWritable
+            status = "200 " + batch.size();
+            respond(encode(status, -1));
+            return;
+        }
+        FileBatch committed = batch;
+        batch = null;
+        offload(() -> {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            String response = committed.commit(new DataOutputStream(bytes));
+            return new Reply(response, ByteBuffer.wrap(bytes.toByteArray()));
+        }, reply -> {
+            status = reply.status();
+            respond(reply.content());
+        });
+    }
+
+    /**
+     * Write a received part of the payload to the temporary file or the chunked upload.
+     *
+     * @param part The received bytes.
+     * @throws IOException If an I/O error occurs.
+     */
+    private void writePayload(ByteBuffer part) throws IOException {
+        if (discardPayload) return;
+        int length = part.remaining();
+        long writeStart = System.nanoTime();
+        if (chunkUpload != null) {
+            while (part.hasRemaining()) uploadPosition += chunkUpload.write(part, uploadPosition);
+        } else {
+            if (uploadDigest != null) uploadDigest.update(part.duplicate());
+            while (part.hasRemaining()) uploadChannel.write(part);
+        }
+        Metrics.diskWrite(System.nanoTime() - writeStart);
+        Transfer.received(length);
+    }
+
+    /**
+     * Finish the completely received payload of a PUT or CHUNK_PUT.
+     *
+     * @throws IOException If an I/O error occurs.
+     */
+    private void completePayload() throws IOException {
+        closeCodec();
+        if (requestTokens[0].startsWith("CHUNK_PUT")) completeChunk();
+        else completeUpload();
+    }
+
+    /**
+     * Give back the transfer slot of the current request.
+     */
+    private void releaseTransfer() {
+        if (admitted != null) client.done(admitted);
+        admitted = null;
+    }
+
+    private void closeCodec() {
+        if (codec != null) codec.close();
+        codec = null;
+    }
+
+    /**
+     * Move the completely received upload to its final name and send the response. The upload of a PUT_BATCH item
+     * is stored in the background while the next item is received.
+     *
+     * @throws IOException If an I/O error occurs.
+     */
+    private void completeUpload() throws IOException {
+        try {
+            uploadChannel.close();
+            uploadChannel = null;
+            byte[] digest = uploadDigest == null ? null : uploadDigest.digest();
+            uploadDigest = null;
+            if (batch != null) {
+                // The batch deletes the temporary file once it is stored
+                batch.add(batchFilename, uploadFile, digest);
+                uploadFile = null;
+                nextItem();
+                return;
+            }
+            // The worker deletes the temporary file once it is stored
+            String[] tokens = requestTokens;
+            Path stored = uploadFile;
+            uploadFile = null;
+            offload(() -> {
+                try {
+                    return ServerUtils.commitFile(tokens, stored, digest, Server.idMap);
+                } finally {
+                    ServerUtils.deleteTempFile(stored);
+                }
+            }, this::respond);
+        } finally {
+            ServerUtils.deleteTempFile(uploadFile);
+            uploadFile = null;
+        }
+    }
+
+    /**
+     * Check the chunk announced by a CHUNK_PUT. A chunk that doesn't belong to an upload is read and discarded, so
+     * the connection stays in sync with the client.
+     */
+    private void beginChunk() {
+        chunkUpload = requestTokens.length < 3 ? null : ServerUtils.findUpload(requestTokens[1]);
+        status = ServerUtils.checkChunk(chunkUpload, requestTokens, payloadRemaining);
+        discardPayload = !status.equals("200");
+        if (discardPayload) {
+            chunkUpload = null;
+            return;
+        }
+        uploadPosition = chunkUpload.offsetOf(Integer.parseInt(requestTokens[2]));
+    }
+
+    /**
+     * Mark the completely received chunk and send the response.
+     *
+     * @throws IOException If an I/O error occurs.
+     */
+    private void completeChunk() throws IOException {
+        if (chunkUpload != null) chunkUpload.markReceived(Integer.parseInt(requestTokens[2]));
+        chunkUpload = null;
+        discardPayload = false;
+        respond(status);
+    }
+
+    /**
+     * Handle a complete command frame.
+     *
+     * @param request The command string sent by the client.
+     * @throws IOException If an I/O error occurs.
+     */
+    private void processRequest(String request) throws IOException {
+        if (request.equalsIgnoreCase("exit")) {
+            server.stop();
+            close();
+            return;
+        }
+
+        requestTokens = Server.parseRequest(request);
+        command = Metrics.Command.of(requestTokens[0]);
+        requestStart = System.nanoTime();
+        if (!client.admit(requestTokens[0])) {
+            // The data that follows the command isn't read, the client has to connect again
+            closeAfterResponse = Admission.isFollowedByData(requestTokens[0]);
+            respond(Admission.REJECTED);
+            return;
+        }
+        admitted = requestTokens[0];
+        switch (requestTokens[0]) {
+            case "PUT", "PUT_Z" -> state = State.PAYLOAD_LENGTH;
+            case "GET", "GET_Z" -> {
+                String[] tokens = requestTokens;
+                offload(() -> {
+                    String filename = ServerUtils.resolveFilename(tokens, Server.idMap);
+                    boolean compressed = ServerUtils.isCompressedResponse(tokens, filename);
+                    long version = ServerUtils.fileVersion(filename);
+                    ByteBuffer cached = compressed ? null : ServerUtils.findCachedFile(filename);
+                    FileChannel opened = cached == null ? ServerUtils.openFile(filename) : null;
+                    return new Download(cached, opened, version, compressed);
+                }, download -> status = respondFile(download));
+            }
+            case "GET_BATCH", "DELETE_BATCH" -> {
+                batch = new FileBatch(requestTokens.length < 3 ? "" : requestTokens[2], Server.idMap);
+                batchItems = 0;
+                state = State.ITEM;
+            }
+            case "PUT_BATCH" -> {
+                batch = new FileBatch(requestTokens.length < 2 ? "" : requestTokens[1], Server.idMap);
+                batchItems = 0;
+                state = State.ITEM;
+            }
+            case "GET_RANGE", "GET_RANGE_Z" -> {
+                String[] tokens = requestTokens;
+                offload(() -> openRange(tokens), this::respondRange);
+            }
+            case "DELETE" -> {
+                String[] tokens = requestTokens;
+                offload(() -> ServerUtils.removeFile(tokens, Server.idMap), this::respond);
+            }
+            case "LIST" -> {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                status = ServerUtils.listFiles(requestTokens, new DataOutputStream(bytes), Server.idMap);
+                respond(ByteBuffer.wrap(bytes.toByteArray()));
+            }
+            case "LIST_PAGE" -> {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                status = ServerUtils.listPage(requestTokens, new DataOutputStream(bytes), Server.idMap);
+                respond(ByteBuffer.wrap(bytes.toByteArray()));
+            }
+            case "STAT" -> respond(ServerUtils.statFile(requestTokens, Server.idMap));
+            case "PUT_HASH" -> {
+                challenge = ServerUtils.challengeDuplicate(requestTokens);
+                if (challenge == null) {
+                    respond("404");
+                    return;
+                }
+                respond(encode(challenge.response(), -1));
+            }
+            case "CHUNK_BEGIN" -> {
+                String[] tokens = requestTokens;
+                offload(() -> ServerUtils.beginUpload(tokens), this::respond);
+            }
+            case "CHUNK_PUT", "CHUNK_PUT_Z" -> state = State.PAYLOAD_LENGTH;
+            case "CHUNK_STATUS" -> {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                status = ServerUtils.uploadStatus(requestTokens, new DataOutputStream(bytes));
+                respond(ByteBuffer.wrap(bytes.toByteArray()));
+            }
+            case "CHUNK_COMMIT" -> {
+                String[] tokens = requestTokens;
+                offload(() -> ServerUtils.commitUpload(tokens, Server.idMap), this::respond);
+            }
+            default -> respond("Invalid command!");
+        }
+    }
+
+    /**
+     * Send the status, the size and the content of a file or 404 if it doesn't exist.
+     *
+     * @param download The file found by a worker.
+     * @return The status of the response.
+     * @throws IOException If the size of the file can't be read.
+     */
+    private String respondFile(Download download) throws IOException {
+        ByteBuffer cached = download.cached();
+        FileChannel opened = download.file();
+        boolean compressed = download.compressed();
+        if (cached != null) {
+            String response = "200 " + download.version();
+            Transfer.sent(cached.remaining());
+            respond(encode(response, cached.remaining()));
+            respond(cached);
+            return response;
+        }
+        if (opened == null) {
+            respond(encode("404", -1));
+            return "404";
+        }
+
+        fileChannel = opened;
+        filePosition = 0;
+        fileEnd = fileChannel.size();
+        if (compressed) codec = new BlockCodec();
+        String response = "200 " + download.version() + (compressed ? " " + BlockCodec.NAME : "");
+        Transfer.sent(fileEnd);
+        respond(encode(response, fileEnd));
+        return response;
+    }
+
+    /**
+     * Create the temporary file of an upload. Runs on a worker.
+     *
+     * @return The temporary file opened for writing.
+     * @throws IOException If the file can't be created.
+     */
+    private static Upload openUpload() throws IOException {
+        Path tempFile = ServerUtils.createTempFile();
+        try {
+            return new Upload(tempFile, FileChannel.open(tempFile, StandardOpenOption.WRITE));
+        } catch (IOException e) {
+            ServerUtils.deleteTempFile(tempFile);
+            throw e;
+        }
+    }
+
+    /**
+     * Open the file of a GET_RANGE and resolve the range. Runs on a worker.
+     *
+     * @param tokens The tokens of the request.
+     * @return The opened range or the status that refuses the request.
+     * @throws IOException If the file can't be opened.
+     */
+    private static RangeDownload openRange(String[] tokens) throws IOException {
+        String filename = ServerUtils.findRangeFilename(tokens, Server.idMap);
+        long version = ServerUtils.fileVersion(filename);
+        FileChannel rangeChannel = ServerUtils.openFile(filename);
+        if (rangeChannel == null) return new RangeDownload("404", null, 0, 0, null, false);
+        long size = rangeChannel.size();
+        long[] range = ServerUtils.resolveRange(tokens[1], size);
+        if (range == null) {
+            rangeChannel.close();
+            return new RangeDownload("416", null, size, version, null, false);
+        }
+        boolean compressed = ServerUtils.isCompressedResponse(tokens, filename);
+        return new RangeDownload(null, rangeChannel, size, version, range, compressed);
+    }
+
+    /**
+     * Send the status, the size of the file and the requested range, 404 if the file doesn't exist or 416 if the
+     * range is invalid.
+     *
+     * @param download The range opened by a worker.
+     * @throws IOException If the response can't be encoded.
+     */
+    private void respondRange(RangeDownload download) throws IOException {
+        if (download.refused() != null) {
+            respond(download.refused());
+            return;
+        }
+        long[] range = download.range();
+        fileChannel = download.file();
+        filePosition = range[0];
+        fileEnd = range[0] + range[1];
+        if (download.compressed()) codec = new BlockCodec();
+        status = "200 " + download.size() + " " + download.version()
+                + (download.compressed() ? " " + BlockCodec.NAME : "");
+        Transfer.sent(range[1]);
+        respond(encode(status, range[1]));
+    }
+
+    /**
+     * Send the status, the size and the content of a file of a GET_BATCH or 404 if it doesn't exist.
+     *
+     * @param item The file with the part of its content that was read ahead.
+     * @throws IOException If the response can't be encoded.
+     */
+    private void respondItem(FileBatch.Item item) throws IOException {
+        if (item.head() == null) {
+            respond(encode("404", -1));
+            return;
+        }
+        Transfer.sent(item.size());
+        respond(encode("200", item.size()));
+        respond(item.head());
+        if (item.rest() == null) return;
+        fileChannel = item.rest();
+        filePosition = item.head().limit();
+        fileEnd = item.size();
+    }
+
+    private void respond(String response) throws IOException {
+        status = response;
+        respond(encode(response, -1));
+    }
+
+    private void respond(ByteBuffer response) {
+        writeQueue.add(response);
+        state = State.RESPONSE;
+        key.interestOps(SelectionKey.OP_WRITE);
+    }
+
+    /**
+     * Encode a response the same way the blocking server writes it with a DataOutputStream.
+     *
+     * @param response The response string.
+     * @param size     The size of the following file or -1 if there is none.
+     * @return The encoded frame ready to be written.
+     * @throws IOException If the response can't be encoded.
+     */
+    private static ByteBuffer encode(String response, long size) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(bytes);
+        output.writeUTF(response);
+        if (size >= 0) output.writeLong(size);
+        return ByteBuffer.wrap(bytes.toByteArray());
+    }
+
+    /**
+     * A response built by a worker.
+     *
+     * @param status  The status of the response.
+     * @param content The encoded response.
+     */
+    private record Reply(String status, ByteBuffer content) {
+    }
+
+    /**
+     * A file found by a worker for a GET.
+     *
+     * @param cached     The content of the file from the file cache or null to stream it from the disk.
+     * @param file       The opened file or null if it doesn't exist or is cached.
+     * @param version    The version of the file, looked up before the content.
+     * @param compressed Whether the file is sent in compressed blocks.
+     */
+    private record Download(ByteBuffer cached, FileChannel file, long version, boolean compressed) {
+    }
+
+    /**
+     * A range of a file opened by a worker for a GET_RANGE.
+     *
+     * @param refused    404 if the file doesn't exist, 416 if the range is invalid or null if the range is sent.
+     * @param file       The opened file or null if the request is refused.
+     * @param size       The size of the file.
+     * @param version    The version of the file, looked up before the content.
+     * @param range      The offset and the length of the range or null if the request is refused.
+     * @param compressed Whether the range is sent in compressed blocks.
+     */
+    private record RangeDownload(String refused, FileChannel file, long size, long version, long[] range,
+                                 boolean compressed) {
+    }
+
+    /**
+     * The temporary file of an upload created by a worker.
+     *
+     * @param file    The path of the temporary file.
+     * @param channel The file opened for writing.
+     */
+    private record Upload(Path file, FileChannel channel) {
+    }
+}
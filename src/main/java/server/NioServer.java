@@ -0,0 +1,147 @@
+package server;
+
+import util.BufferPool;
+import util.ServerUtils;
+import util.SetupUtils;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Non-blocking server engine. A single acceptor hands the accepted
+ * channels round-robin to a small pool of selector loops that speak
+ * the same protocol as the blocking server. The blocking parts of the
+ * requests run on a pool of workers, so they don't hold up a loop.
+ */
+public class NioServer {
+
+    private final String IP_ADDRESS;
+    private final int PORT;
+    private final EventLoop[] loops;
+    private final Thread[] loopThreads;
+    private final ExecutorService workers;
+    private final int IDLE_TIMEOUT;
+
+    private volatile boolean isRunning = true;
+    private Selector acceptSelector;
+
+    public NioServer() {
+        this.IP_ADDRESS = SetupUtils.setUpServerAddress();
+        this.PORT = SetupUtils.setUpServerPort();
+        SetupUtils.setUpIdMap();
+        this.loops = new EventLoop[SetupUtils.readInt("server.loops", Runtime.getRuntime().availableProcessors())];
+        this.loopThreads = new Thread[loops.length];
+        this.workers = Executors.newFixedThreadPool(
+                SetupUtils.readInt("server.threads", Runtime.getRuntime().availableProcessors() * 2), runnable -> {
+                    Thread thread = new Thread(runnable, "nio-worker");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        this.IDLE_TIMEOUT = SetupUtils.readInt("server.idle.timeout", 30000);
+    }
+
+    /**
+     * Accept connections and distribute them to the event loops until a client sends the "exit" command.
+     */
+    public void start() {
+        try (
+                // Establish the connection
+                ServerSocketChannel serverChannel = ServerSocketChannel.open();
+                Selector selector = Selector.open()
+        ) {
+            serverChannel.bind(new InetSocketAddress(InetAddress.getByName(IP_ADDRESS), PORT), 50);
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            acceptSelector = selector;
+
+            ServerUtils.deleteStaleTempFiles();
+            Server.idMap = ServerUtils.getIdMap();
+
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new EventLoop(this, IDLE_TIMEOUT);
+                loopThreads[i] = new Thread(loops[i], "event-loop-" + i);
+                loopThreads[i].start();
+            }
+            System.out.println("Server started!");
+
+            int next = 0;
+            while (isRunning) {
+                selector.select();
+                selector.selectedKeys().clear();
+
+                // Accept every pending connection before waiting again
+                SocketChannel channel;
+                while (isRunning && (channel = serverChannel.accept()) != null) {
+                    loops[next].register(channel);
+                    next = (next + 1) % loops.length;
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            for (EventLoop loop : loops) {
+                if (loop != null) loop.shutdown(30000);
+            }
+            awaitLoops();
+            awaitWorkers();
+            // Nothing uses the id map and the store anymore
+            if (Server.idMap != null) ServerUtils.saveIdMap(Server.idMap);
+            ServerUtils.closeFileStore();
+            System.out.println(ServerUtils.getFileCache().stats());
+            System.out.println(BufferPool.heap().stats());
+            AdminServer.stop();
+        }
+    }
+
+    /**
+     * Wait until the event loops finished their running requests and closed their connections.
+     */
+    private void awaitLoops() {
+        try {
+            for (Thread thread : loopThreads) {
+                if (thread != null) thread.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Wait until the workers finished the blocking parts of the requests that were still running.
+     */
+    private void awaitWorkers() {
+        workers.shutdown();
+        try {
+            if (!workers.awaitTermination(30, TimeUnit.SECONDS)) workers.shutdownNow();
+        } catch (InterruptedException e) {
+            workers.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Run a blocking part of a request on a worker.
+     *
+     * @param work The blocking part.
+     */
+    void execute(Runnable work) {
+        workers.execute(work);
+    }
+
+    /**
+     * Stop accepting connections. Called from an event loop when a client sends the "exit" command, the server
+     * terminates once the running requests are finished.
+     */
+    void stop() {
+        isRunning = false;
+        acceptSelector.wakeup();
+    }
+}
@@ -1,110 +1,328 @@
 package server;
 
+import util.BufferPool;
+import util.Admission;
+import util.IdMap;
+import util.PossessionChallenge;
+import util.Metrics;
 import util.ServerUtils;
 import util.SetupUtils;
 
 import java.io.*;
 import java.net.InetAddress;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.util.HashMap;
+import java.net.SocketTimeoutException;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 public class Server {
 
+    // Milliseconds a connection waits for its next request while other connections wait for a worker, long
+    // enough for a client that sends its requests back to back
+    private static final int BUSY_KEEP_ALIVE_TIMEOUT = 100;
+
     private final String IP_ADDRESS;
     private final int PORT;
+    private final ExecutorService executor;
+    private final int IDLE_TIMEOUT;
+    private final int KEEP_ALIVE_TIMEOUT;
 
-    private boolean isRunning = true;
-    public static HashMap<String, String> idMap;
+    private volatile boolean isRunning = true;
+    private ServerSocketChannel serverChannel;
+    public static IdMap idMap;
 
     public Server() {
         this.IP_ADDRESS = SetupUtils.setUpServerAddress();
         this.PORT = SetupUtils.setUpServerPort();
         SetupUtils.setUpIdMap();
+        this.executor = createExecutor();
+        this.IDLE_TIMEOUT = SetupUtils.readInt("server.idle.timeout", 30000);
+        this.KEEP_ALIVE_TIMEOUT = SetupUtils.readInt("server.keepalive.timeout", 5000);
     }
 
     /**
      * Process the request from the client. The server receives a command string from the client and processes it
      * accordingly. The server then sends a response to the client.
+     * Each accepted connection is handed over to the executor selected in the config file, so a slow client
+     * doesn't block the others.
      * The user can terminate the connection by typing "exit" on the client side.
      * This should be avoided in a production environment.
      */
-    @SuppressWarnings("unchecked")
     public void start() {
         try (
-                // Establish the connection
-                ServerSocket serverSocket = new ServerSocket(PORT, 50, InetAddress.getByName(IP_ADDRESS))
+                // Establish the connection, the channel lets GET responses be sent with zero-copy transfers
+                ServerSocketChannel serverChannel = ServerSocketChannel.open()
         ) {
+            serverChannel.bind(new InetSocketAddress(InetAddress.getByName(IP_ADDRESS), PORT), 50);
+            this.serverChannel = serverChannel;
             System.out.println("Server started!");
 
-            idMap = (HashMap<String, String>) ServerUtils.getIdMap();
+            ServerUtils.deleteStaleTempFiles();
+            idMap = ServerUtils.getIdMap();
 
             while (isRunning) {
                 // Wait for a client to connect
-                Socket socket = serverSocket.accept();
+                SocketChannel channel;
+                try {
+                    channel = serverChannel.accept();
+                } catch (AsynchronousCloseException e) {
+                    // The server channel was closed by stop()
+                    break;
+                }
+
+                long acceptTime = System.nanoTime();
+                if (executor == null) {
+                    handleConnection(channel, acceptTime);
+                    continue;
+                }
+                try {
+                    executor.execute(() -> handleConnection(channel, acceptTime));
+                } catch (RejectedExecutionException e) {
+                    reject(channel);
+                }
+            }
+
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            shutdownExecutor();
+            // Nothing uses the id map and the store anymore
+            if (idMap != null) ServerUtils.saveIdMap(idMap);
+            ServerUtils.closeFileStore();
+            System.out.println(ServerUtils.getFileCache().stats());
+            System.out.println(BufferPool.heap().stats());
+            AdminServer.stop();
+        }
+    }
+
+    /**
+     * Serve the commands of a connected client one after another until it closes the connection or stays idle
+     * for longer than the configured timeout. Pipelined commands are answered in the order they were sent.
+     * Between two commands the connection holds its worker only for the short keep-alive timeout, and hardly at
+     * all when other connections wait for a worker.
+     *
+     * @param channel    The channel to the client.
+     * @param acceptTime The time the connection was accepted in nanoseconds, to measure how long it waited.
+     */
+    private void handleConnection(SocketChannel channel, long acceptTime) {
+        Metrics.connectionOpened(acceptTime);
+        Admission.Client client = Admission.of(channel);
+        Admission.enter(client);
+        try (
+                channel;
+                Socket socket = channel.socket();
                 DataInputStream input = new DataInputStream(socket.getInputStream());
-                DataOutputStream output = new DataOutputStream(socket.getOutputStream());
+                DataOutputStream output = new DataOutputStream(socket.getOutputStream())
+        ) {
+            // Responses are written in several parts, don't hold them back until the client acknowledges the first
+            socket.setTcpNoDelay(true);
 
+            while (isRunning) {
                 // Read the action from the client
-                String request = input.readUTF();
-                if (request.equalsIgnoreCase("exit")) {
-                    stop(input, output, socket, idMap);
+                String request;
+                try {
+                    socket.setSoTimeout(hasWaitingConnections() ? BUSY_KEEP_ALIVE_TIMEOUT : KEEP_ALIVE_TIMEOUT);
+                    request = input.readUTF();
+                } catch (EOFException | SocketTimeoutException e) {
+                    // The client closed the connection or was idle for too long
                     break;
                 }
+                // A transfer may stall for the longer idle timeout before it fails
+                socket.setSoTimeout(IDLE_TIMEOUT);
 
-                String[] requestTokens = request.split(" ", 3);
-                String response = processRequest(requestTokens, input, output, idMap);
+                if (request.equalsIgnoreCase("exit")) {
+                    stop(input, output, socket);
+                    return;
+                }
 
-                output.writeUTF(response);
-                output.flush();
+                long requestStart = System.nanoTime();
+                String[] requestTokens = parseRequest(request);
+                String command = requestTokens[0];
+                if (!client.admit(command)) {
+                    output.writeUTF(Admission.REJECTED);
+                    output.flush();
+                    Metrics.request(Metrics.Command.of(command), requestStart, Admission.REJECTED);
+                    // The data that follows the command isn't read, the client has to connect again
+                    if (Admission.isFollowedByData(command)) break;
+                    continue;
+                }
+
+                String response;
+                try {
+                    response = processRequest(requestTokens, input, output, channel, idMap);
+                    output.flush();
+                } finally {
+                    client.done(command);
+                }
+                Metrics.request(Metrics.Command.of(command), requestStart, response);
+                // The rest of a failed upload may still arrive, so the stream is out of sync with the client
+                if (response.equals(ServerUtils.FAILED)) break;
             }
+        } catch (IOException e) {
+            System.out.println("Error handling the connection: " + e.getMessage());
+            Metrics.error();
+        } finally {
+            Admission.exit();
+            Metrics.connectionClosed();
+        }
+    }
 
+    /**
+     * Turn a connection away because all workers are busy and the queue of waiting connections is full. The client
+     * gets "429" as the response to its first request.
+     *
+     * @param channel The channel to the client.
+     */
+    private static void reject(SocketChannel channel) {
+        Admission.countRejected();
+        try (channel) {
+            DataOutputStream output = new DataOutputStream(channel.socket().getOutputStream());
+            output.writeUTF(Admission.REJECTED);
+            output.flush();
         } catch (IOException e) {
-            e.printStackTrace();
+            // The client is gone already
         }
     }
 
     /**
-     * Handle the request from the client and return the response.
+     * @return Whether accepted connections wait for a worker of the pool.
+     */
+    private boolean hasWaitingConnections() {
+        return executor instanceof ThreadPoolExecutor pool && !pool.getQueue().isEmpty();
+    }
+
+    /**
+     * Split a request into the command, the type of the key and the key, which may contain spaces.
+     *
+     * @param request The command string sent by the client.
+     * @return The tokens of the request.
+     */
+    static String[] parseRequest(String request) {
+        return request.split(" ", 3);
+    }
+
+    /**
+     * Handle the request from the client and send the response.
      *
      * @param requestTokens The request from the client as an array of strings to separate the command and the file/id.
      * @param input         The input stream from the client.
      * @param output        The output stream to the client.
+     * @param channel       The channel to the client, used to send files with zero-copy transfers.
      * @param idMap         The map of ids to files to avoid collisions in case of similar file names.
      * @return The response to the client as a string.
      * @throws IOException If an error occurs while reading from the input stream.
      */
-    private String processRequest(String[] requestTokens, DataInputStream input,
-                                  DataOutputStream output, HashMap<String, String> idMap) throws IOException {
+    static String processRequest(String[] requestTokens, DataInputStream input, DataOutputStream output,
+                                 SocketChannel channel, IdMap idMap) throws IOException {
         String response;
         String command = requestTokens[0];
         switch (command) {
-            case "PUT" -> {
+            case "PUT", "PUT_Z" -> {
                 response = ServerUtils.addFile(requestTokens, input, idMap);
                 output.writeUTF(response);
             }
-            case "GET" -> response = ServerUtils.getFile(requestTokens, output, idMap);
+            case "GET", "GET_Z" -> response = ServerUtils.getFile(requestTokens, output, channel, idMap);
             case "DELETE" -> response = ServerUtils.deleteFile(requestTokens, output, idMap);
-            default -> response = "Invalid command!";
+            case "LIST" -> response = ServerUtils.listFiles(requestTokens, output, idMap);
+            case "LIST_PAGE" -> response = ServerUtils.listPage(requestTokens, output, idMap);
+            case "STAT" -> {
+                response = ServerUtils.statFile(requestTokens, idMap);
+                output.writeUTF(response);
+            }
+            case "PUT_HASH" -> {
+                PossessionChallenge challenge = ServerUtils.challengeDuplicate(requestTokens);
+                if (challenge == null) {
+                    response = "404";
+                } else {
+                    output.writeUTF(challenge.response());
+                    output.flush();
+                    response = ServerUtils.addDuplicate(requestTokens, challenge, input.readUTF(), idMap);
+                }
+                output.writeUTF(response);
+            }
+            case "GET_RANGE", "GET_RANGE_Z" ->
+                    response = ServerUtils.getFileRange(requestTokens, output, channel, idMap);
+            case "CHUNK_BEGIN" -> {
+                response = ServerUtils.beginUpload(requestTokens);
+                output.writeUTF(response);
+            }
+            case "CHUNK_PUT", "CHUNK_PUT_Z" -> {
+                response = ServerUtils.addChunk(requestTokens, input);
+                output.writeUTF(response);
+            }
+            case "GET_BATCH" -> response = ServerUtils.getFiles(requestTokens, input, output, channel, idMap);
+            case "PUT_BATCH" -> response = ServerUtils.addFiles(requestTokens, input, output, idMap);
+            case "DELETE_BATCH" -> response = ServerUtils.deleteFiles(requestTokens, input, output, idMap);
+            case "CHUNK_STATUS" -> response = ServerUtils.uploadStatus(requestTokens, output);
+            case "CHUNK_COMMIT" -> {
+                response = ServerUtils.commitUpload(requestTokens, idMap);
+                output.writeUTF(response);
+            }
+            default -> {
+                response = "Invalid command!";
+                output.writeUTF(response);
+            }
         }
         return response;
     }
 
     /**
-     * Stop the server.
+     * Stop the server. No further connections are accepted, the running requests are finished before the id map
+     * and the file store are closed.
      *
      * @param input  The input stream from the client.
      * @param output The output stream to the client.
      * @param socket The socket to the client.
-     * @param idMap  To save the map before closing the server.
      */
-    public void stop(DataInputStream input, DataOutputStream output,
-                     Socket socket, HashMap<String, String> idMap) throws IOException {
+    public void stop(DataInputStream input, DataOutputStream output, Socket socket) throws IOException {
+        isRunning = false;
         // Close streams and socket
-        ServerUtils.saveIdMap(idMap);
         input.close();
         output.close();
         socket.close();
-        isRunning = false;
+        // Unblock the accept loop
+        if (serverChannel != null) serverChannel.close();
+    }
+
+    /**
+     * Create the executor that runs the accepted connections. The mode is read from the config file:
+     * "inline" handles every connection on the accept thread, "thread" starts a new thread per connection
+     * and "pooled" (default) uses a bounded pool of "server.threads" workers. At most "server.queue.size"
+     * connections wait for a worker of the pool, further ones are rejected.
+     *
+     * @return The executor or null if connections are handled inline.
+     */
+    private static ExecutorService createExecutor() {
+        String mode = SetupUtils.readProperty("server.executor", "pooled");
+        int threads = SetupUtils.readInt("server.threads", Runtime.getRuntime().availableProcessors() * 2);
+
+        return switch (mode) {
+            case "inline" -> null;
+            case "thread" -> Executors.newCachedThreadPool();
+            default -> new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(SetupUtils.readInt("server.queue.size", 100)));
+        };
+    }
+
+    /**
+     * Let the running requests finish before the server terminates.
+     */
+    private void shutdownExecutor() {
+        if (executor == null) return;
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(30, TimeUnit.SECONDS)) executor.shutdownNow();
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
     }
 }
@@ -0,0 +1,214 @@
+package util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Admission control of the server. Every client address, or every
+ * connection, gets a token bucket for its requests per second and one
+ * for its bandwidth, and the whole server has a fixed number of slots
+ * for file transfers. A request over the request rate or without a free
+ * slot is answered with "429" right away instead of waiting, so an
+ * overloaded server keeps answering quickly. The bandwidth doesn't
+ * reject anything: a transfer is charged buffer by buffer and pauses
+ * while its client is over the limit, so a single client can't take all
+ * of the disk and network bandwidth of the server. The blocking engine
+ * charges the client whose request the current thread is serving.
+ */
+public class Admission {
+
+    public static final String REJECTED = "429";
+
+    private static final long REQUEST_RATE = SetupUtils.readLong("limit.requests", 0);
+    private static final long BANDWIDTH = SetupUtils.readLong("limit.bandwidth", 0);
+    private static final int TRANSFERS = SetupUtils.readInt("limit.transfers", 0);
+    private static final boolean PER_CONNECTION = SetupUtils.readProperty("limit.scope", "address")
+            .equals("connection");
+    // Client addresses that are tracked at most, the connections of further addresses get limits of their own
+    private static final int MAX_CLIENTS = 10_000;
+
+    private static final Semaphore TRANSFER_SLOTS = new Semaphore(TRANSFERS > 0 ? TRANSFERS : Integer.MAX_VALUE);
+    private static final Client UNLIMITED = new Client();
+    private static final Map<InetAddress, Client> CLIENTS = new ConcurrentHashMap<>();
+    private static final ThreadLocal<Client> CURRENT = new ThreadLocal<>();
+    private static final LongAdder REJECTED_REQUESTS = new LongAdder();
+    private static final AtomicInteger ACTIVE_TRANSFERS = new AtomicInteger();
+
+    static {
+        if ((REQUEST_RATE > 0 || BANDWIDTH > 0) && !PER_CONNECTION) {
+            // Addresses are forgotten once their buckets are full again
+            Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "admission-expiry");
+                thread.setDaemon(true);
+                return thread;
+            }).scheduleWithFixedDelay(() -> CLIENTS.values().removeIf(Client::isIdle), 10, 10, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Find the limits of a newly accepted connection.
+     *
+     * @param channel The channel to the client.
+     * @return The limits shared by the connections from the same address or the limits of this connection.
+     */
+    public static Client of(SocketChannel channel) {
+        if (REQUEST_RATE <= 0 && BANDWIDTH <= 0) return UNLIMITED;
+        if (PER_CONNECTION) return new Client();
+
+        InetAddress address;
+        try {
+            address = ((InetSocketAddress) channel.getRemoteAddress()).getAddress();
+        } catch (IOException e) {
+            return new Client();
+        }
+        Client client = CLIENTS.get(address);
+        if (client != null) return client;
+        if (CLIENTS.size() >= MAX_CLIENTS) return new Client();
+        return CLIENTS.computeIfAbsent(address, key -> new Client());
+    }
+
+    /**
+     * Let the current thread serve a client, the bytes it transfers are charged to the client.
+     *
+     * @param client The limits of the client.
+     */
+    public static void enter(Client client) {
+        CURRENT.set(client);
+    }
+
+    /**
+     * The current thread no longer serves a client.
+     */
+    public static void exit() {
+        CURRENT.remove();
+    }
+
+    /**
+     * Charge transferred bytes to the bandwidth of the client that is being served and pause the thread while the
+     * client is over its limit.
+     *
+     * @param bytes The number of bytes.
+     * @throws InterruptedIOException If the thread is interrupted while it pauses.
+     */
+    static void throttle(long bytes) throws InterruptedIOException {
+        Client client = CURRENT.get();
+        long pause = client == null ? 0 : client.charge(bytes);
+        if (pause <= 0) return;
+        try {
+            TimeUnit.NANOSECONDS.sleep(pause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while pausing for the bandwidth limit.");
+        }
+    }
+
+    /**
+     * Count a request that was rejected before it reached admit(), e.g. because all workers were busy.
+     */
+    public static void countRejected() {
+        REJECTED_REQUESTS.increment();
+    }
+
+    /**
+     * @param command The command of a request.
+     * @return Whether the command is followed by data, which isn't read if the request is rejected. The connection
+     * has to be closed then.
+     */
+    public static boolean isFollowedByData(String command) {
+        return switch (command) {
+            case "PUT", "PUT_Z", "CHUNK_PUT", "CHUNK_PUT_Z", "GET_BATCH", "PUT_BATCH", "DELETE_BATCH" -> true;
+            default -> false;
+        };
+    }
+
+    /**
+     * @return The number of rejected requests.
+     */
+    public static long rejected() {
+        return REJECTED_REQUESTS.sum();
+    }
+
+    /**
+     * @return The number of transfers that are running.
+     */
+    public static int activeTransfers() {
+        return ACTIVE_TRANSFERS.get();
+    }
+
+    /**
+     * @return Whether the command transfers the content of files.
+     */
+    private static boolean isTransfer(String command) {
+        return switch (command) {
+            case "GET", "GET_Z", "GET_RANGE", "GET_RANGE_Z", "GET_BATCH", "PUT", "PUT_Z", "CHUNK_PUT", "CHUNK_PUT_Z",
+                 "PUT_BATCH" -> true;
+            default -> false;
+        };
+    }
+
+    /**
+     * The limits of a client address or a connection.
+     */
+    public static class Client {
+
+        private final TokenBucket requests = REQUEST_RATE > 0 ? new TokenBucket(REQUEST_RATE, REQUEST_RATE) : null;
+        private final TokenBucket bandwidth = BANDWIDTH > 0 ? new TokenBucket(BANDWIDTH, BANDWIDTH) : null;
+
+        /**
+         * Check a request against the limits. A transfer takes one of the transfer slots of the server, which has
+         * to be given back with done() once the request is complete. A rejected request takes nothing.
+         *
+         * @param command The command of the request.
+         * @return False if the request has to be rejected.
+         */
+        public boolean admit(String command) {
+            boolean transfer = isTransfer(command);
+            if (transfer && !TRANSFER_SLOTS.tryAcquire()) {
+                REJECTED_REQUESTS.increment();
+                return false;
+            }
+            if (requests != null && !requests.tryTake()) {
+                if (transfer) TRANSFER_SLOTS.release();
+                REJECTED_REQUESTS.increment();
+                return false;
+            }
+            if (transfer) ACTIVE_TRANSFERS.incrementAndGet();
+            return true;
+        }
+
+        /**
+         * Charge transferred bytes to the bandwidth of the client.
+         *
+         * @param bytes The number of bytes.
+         * @return The time in nanoseconds the transfer has to pause before it continues, 0 if it may go on.
+         */
+        public long charge(long bytes) {
+            return bandwidth == null ? 0 : bandwidth.charge(bytes);
+        }
+
+        /**
+         * Give back the transfer slot of an admitted request.
+         *
+         * @param command The command of the request.
+         */
+        public void done(String command) {
+            if (!isTransfer(command)) return;
+            ACTIVE_TRANSFERS.decrementAndGet();
+            TRANSFER_SLOTS.release();
+        }
+
+        private boolean isIdle() {
+            return (requests == null || requests.isFull()) && (bandwidth == null || bandwidth.isFull());
+        }
+    }
+}
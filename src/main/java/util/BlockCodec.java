@@ -0,0 +1,180 @@
+package util;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/*
+ * Compression of transfers in independent blocks, so a file is streamed
+ * without holding more than one block in memory. Every block is sent as
+ * its raw length, its encoded length and the encoded bytes. A block that
+ * doesn't get smaller is sent as it is, which is marked by an encoded
+ * length equal to the raw length. After such a block the next ones are
+ * sent raw without trying, so content that is already compressed costs
+ * almost no CPU time.
+ */
+public class BlockCodec {
+
+    public static final String NAME = "deflate";
+    public static final int BLOCK_SIZE = 64 * 1024;
+
+    // Blocks that are sent raw without trying after a block that didn't compress well
+    private static final int SKIPPED_BLOCKS = 16;
+    private static final Set<String> COMPRESSED_EXTENSIONS = Set.of(
+            "7z", "avi", "br", "bz2", "docx", "flac", "gif", "gz", "jar", "jpeg", "jpg", "lz4", "mkv", "mov", "mp3",
+            "mp4", "ogg", "pdf", "png", "rar", "tgz", "webm", "webp", "xlsx", "xz", "zip", "zst");
+
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private final Inflater inflater = new Inflater();
+    private final byte[] block = new byte[BLOCK_SIZE];
+    private final byte[] frame = new byte[8 + BLOCK_SIZE];
+    private int skip;
+
+    /**
+     * @param filename The name of a file.
+     * @return Whether compressing the file is worth trying, it isn't for known compressed formats.
+     */
+    public static boolean isCompressible(String filename) {
+        int dot = filename.lastIndexOf('.');
+        return dot < 0 || !COMPRESSED_EXTENSIONS.contains(filename.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Read a block of a file and encode it.
+     *
+     * @param file     The file.
+     * @param position The position of the block in the file.
+     * @param length   The length of the block, at most BLOCK_SIZE.
+     * @return The frame of the block. Its content is only valid until the next call.
+     * @throws IOException If the file can't be read or is shorter than expected.
+     */
+    public ByteBuffer encode(FileChannel file, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(block, 0, length);
+        while (buffer.hasRemaining()) {
+            if (file.read(buffer, position + buffer.position()) == -1) {
+                throw new EOFException("The file was truncated during the transfer.");
+            }
+        }
+        return encode(block, length);
+    }
+
+    /**
+     * Encode a block.
+     *
+     * @param data   The raw bytes.
+     * @param length The number of raw bytes, at most BLOCK_SIZE.
+     * @return The frame of the block. Its content is only valid until the next call.
+     */
+    public ByteBuffer encode(byte[] data, int length) {
+        int encodedLength = length;
+        if (skip > 0) {
+            skip--;
+        } else {
+            deflater.reset();
+            deflater.setInput(data, 0, length);
+            deflater.finish();
+            // The output is limited to the raw length, a block that doesn't fit isn't worth compressing
+            int deflated = deflater.deflate(frame, 8, length);
+            if (deflater.finished() && deflated < length) encodedLength = deflated;
+            if (encodedLength > length - length / 8) skip = SKIPPED_BLOCKS;
+        }
+        if (encodedLength == length) System.arraycopy(data, 0, frame, 8, length);
+
+        ByteBuffer buffer = ByteBuffer.wrap(frame, 0, 8 + encodedLength);
+        buffer.putInt(0, length);
+        buffer.putInt(4, encodedLength);
+        return buffer;
+    }
+
+    /**
+     * Decode a complete frame.
+     *
+     * @param frame     The buffer positioned at the frame, which is consumed.
+     * @param target    The array for the raw bytes, at least BLOCK_SIZE long.
+     * @param remaining The number of raw bytes the transfer still contains.
+     * @return The number of raw bytes.
+     * @throws IOException If the frame is invalid.
+     */
+    public int decode(ByteBuffer frame, byte[] target, long remaining) throws IOException {
+        int length = frame.getInt();
+        int encodedLength = frame.getInt();
+        checkFrame(length, encodedLength, remaining);
+        frame.get(this.frame, 0, encodedLength);
+        return decode(this.frame, length, encodedLength, target);
+    }
+
+    /**
+     * Read and decode the next frame of a stream.
+     *
+     * @param input     The stream.
+     * @param target    The array for the raw bytes, at least BLOCK_SIZE long.
+     * @param remaining The number of raw bytes the transfer still contains.
+     * @return The number of raw bytes.
+     * @throws IOException If an I/O error occurs or the frame is invalid.
+     */
+    public int read(DataInputStream input, byte[] target, long remaining) throws IOException {
+        int length = input.readInt();
+        int encodedLength = input.readInt();
+        checkFrame(length, encodedLength, remaining);
+        input.readFully(frame, 0, encodedLength);
+        return decode(frame, length, encodedLength, target);
+    }
+
+    /**
+     * @param header The buffer positioned at the beginning of a frame, with at least 8 bytes remaining.
+     * @return The length of the whole frame.
+     * @throws IOException If the frame is larger than a block can be.
+     */
+    public static int frameLength(ByteBuffer header) throws IOException {
+        int encodedLength = header.getInt(header.position() + 4);
+        if (encodedLength <= 0 || encodedLength > BLOCK_SIZE) {
+            throw new IOException("Invalid compressed block: " + encodedLength);
+        }
+        return 8 + encodedLength;
+    }
+
+    /**
+     * @return An array that can hold a decoded block.
+     */
+    public byte[] block() {
+        return block;
+    }
+
+    /**
+     * Release the memory of the compressor outside the heap.
+     */
+    public void close() {
+        deflater.end();
+        inflater.end();
+    }
+
+    private static void checkFrame(int length, int encodedLength, long remaining) throws IOException {
+        if (length <= 0 || length > BLOCK_SIZE || length > remaining || encodedLength <= 0 || encodedLength > length) {
+            throw new IOException("Invalid compressed block: " + length + " " + encodedLength);
+        }
+    }
+
+    private int decode(byte[] source, int length, int encodedLength, byte[] target) throws IOException {
+        if (encodedLength == length) {
+            System.arraycopy(source, 0, target, 0, length);
+            return length;
+        }
+        inflater.reset();
+        inflater.setInput(source, 0, encodedLength);
+        try {
+            if (inflater.inflate(target, 0, length) != length || !inflater.finished()) {
+                throw new IOException("Invalid compressed block: it doesn't match its length.");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Invalid compressed block: " + e.getMessage());
+        }
+        return length;
+    }
+}
@@ -0,0 +1,169 @@
+package util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * Bounded pool of reusable transfer buffers in a few size classes. A
+ * buffer is taken for one copy and given back afterwards, so a transfer
+ * doesn't leave garbage behind however large the file is. The buffers
+ * of all classes together never take more than the capacity: when it is
+ * used up, idle buffers of other classes are dropped to make room, and
+ * if every buffer is in use the caller waits until one is released
+ * instead of running out of memory. The buffers live on the heap,
+ * every copy reads or writes a stream, which needs an array anyway.
+ */
+public class BufferPool {
+
+    private static final int[] SIZE_CLASSES = {8 * 1024, 64 * 1024, 1024 * 1024};
+    private static final long CAPACITY = SetupUtils.readLong("buffer.pool.size", 67108864);
+    private static final BufferPool HEAP = new BufferPool(CAPACITY);
+
+    // The idle buffers of every size class
+    private final List<ArrayDeque<ByteBuffer>> idle = new ArrayList<>();
+
+    private long capacity;
+    private long allocated;
+    private long inUse;
+    private long waits;
+
+    /**
+     * @param capacity The maximum number of bytes held by the buffers, at least the smallest size class.
+     */
+    public BufferPool(long capacity) {
+        this.capacity = Math.max(capacity, SIZE_CLASSES[0]);
+        for (int i = 0; i < SIZE_CLASSES.length; i++) idle.add(new ArrayDeque<>());
+    }
+
+    /**
+     * @return The shared pool of the transfers.
+     */
+    public static BufferPool heap() {
+        return HEAP;
+    }
+
+    /**
+     * Take a buffer out of the pool, waiting for one to be released if the capacity is used up.
+     *
+     * @param size The number of bytes that should fit into the buffer. Larger sizes get a buffer of the largest class.
+     * @return A cleared buffer, which has to be released after use.
+     * @throws IOException If the thread is interrupted while it waits or the memory is exhausted.
+     */
+    public synchronized ByteBuffer acquire(long size) throws IOException {
+        int sizeClass = sizeClass(size);
+        int bufferSize = SIZE_CLASSES[sizeClass];
+        while (true) {
+            ByteBuffer buffer = idle.get(sizeClass).poll();
+            if (buffer == null && allocated + bufferSize > capacity) trim(sizeClass, bufferSize);
+            if (buffer == null && allocated + bufferSize <= capacity) buffer = allocate(bufferSize);
+            if (buffer != null) {
+                inUse += bufferSize;
+                return buffer.clear();
+            }
+
+            waits++;
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for a transfer buffer.");
+            }
+        }
+    }
+
+    /**
+     * Give a buffer back to the pool.
+     *
+     * @param buffer A buffer taken from this pool.
+     */
+    public synchronized void release(ByteBuffer buffer) {
+        inUse -= buffer.capacity();
+        idle.get(Arrays.binarySearch(SIZE_CLASSES, buffer.capacity())).push(buffer);
+        notifyAll();
+    }
+
+    /**
+     * @return The number of bytes held by the pool, idle or in use.
+     */
+    public synchronized long allocated() {
+        return allocated;
+    }
+
+    /**
+     * @return The number of bytes of the buffers in use.
+     */
+    public synchronized long inUse() {
+        return inUse;
+    }
+
+    /**
+     * @return The maximum number of bytes held by the pool.
+     */
+    public synchronized long capacity() {
+        return capacity;
+    }
+
+    /**
+     * @return The number of times a caller had to wait for a buffer.
+     */
+    public synchronized long waits() {
+        return waits;
+    }
+
+    /**
+     * @return A summary of the occupancy for the log.
+     */
+    public synchronized String stats() {
+        return "Buffer pool: " + inUse + " of " + allocated + " bytes in use, capacity "
+                + capacity + " bytes, " + waits + " waits";
+    }
+
+    /**
+     * @return The smallest class the size fits into, or the largest class that fits into the capacity.
+     */
+    private int sizeClass(long size) {
+        int sizeClass = 0;
+        while (sizeClass < SIZE_CLASSES.length - 1 && SIZE_CLASSES[sizeClass] < size
+                && SIZE_CLASSES[sizeClass + 1] <= capacity) {
+            sizeClass++;
+        }
+        return sizeClass;
+    }
+
+    /**
+     * Drop idle buffers of the other classes until a buffer of the given size fits into the capacity.
+     */
+    private void trim(int sizeClass, int bufferSize) {
+        for (int i = 0; i < idle.size() && allocated + bufferSize > capacity; i++) {
+            if (i == sizeClass) continue;
+            while (!idle.get(i).isEmpty() && allocated + bufferSize > capacity) {
+                allocated -= idle.get(i).pop().capacity();
+            }
+        }
+    }
+
+    /**
+     * @return A new buffer or null if the memory is exhausted and the caller should wait for a release.
+     * @throws IOException If the memory is exhausted and no buffer is in use that could be released.
+     */
+    private ByteBuffer allocate(int bufferSize) throws IOException {
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(bufferSize);
+            allocated += bufferSize;
+            return buffer;
+        } catch (OutOfMemoryError e) {
+            if (inUse == 0) throw new IOException("No memory for a transfer buffer: " + e.getMessage());
+            // Stay below the amount that could be allocated, the buffers in use will be released
+            capacity = Math.max(allocated, SIZE_CLASSES[0]);
+            System.out.println("Error allocating a transfer buffer: " + e.getMessage() + ". The capacity of the "
+                    + "buffer pool is lowered to " + capacity + " bytes.");
+            Metrics.error();
+            return null;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+
+/*
+ * An upload that is sent in fixed-size chunks, possibly over several
+ * connections at the same time. Every chunk is written at its offset
+ * into a temporary file that has the final size from the beginning.
+ * The received chunks are tracked, so an interrupted upload can be
+ * continued by sending only the missing ones.
+ */
+public class ChunkedUpload implements Closeable {
+
+    private final String id;
+    private final String filename;
+    private final Path tempFile;
+    private final FileChannel channel;
+    private final long size;
+    private final int chunkSize;
+    private final int chunkCount;
+    private final BitSet received;
+
+    private volatile long lastActivity = System.currentTimeMillis();
+
+    /**
+     * Create the temporary file of the upload.
+     *
+     * @param id        The id of the upload.
+     * @param filename  The name the file will be stored under or "*" to let the server choose one.
+     * @param tempFile  The empty temporary file.
+     * @param size      The size of the file in bytes.
+     * @param chunkSize The size of every chunk except the last one.
+     * @throws IOException If the temporary file can't be opened.
+     */
+    public ChunkedUpload(String id, String filename, Path tempFile, long size, int chunkSize) throws IOException {
+        this.id = id;
+        this.filename = filename;
+        this.tempFile = tempFile;
+        this.size = size;
+        this.chunkSize = chunkSize;
+        this.chunkCount = (int) ((size + chunkSize - 1) / chunkSize);
+        this.received = new BitSet(chunkCount);
+        this.channel = FileChannel.open(tempFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        // Extend the file to its final size, so the chunks can be written in any order
+        if (size > 0) channel.write(ByteBuffer.allocate(1), size - 1);
+    }
+
+    public String id() {
+        return id;
+    }
+
+    public String filename() {
+        return filename;
+    }
+
+    public Path tempFile() {
+        return tempFile;
+    }
+
+    /**
+     * @param index The index of a chunk.
+     * @return The position of the chunk in the file.
+     */
+    public long offsetOf(int index) {
+        return (long) index * chunkSize;
+    }
+
+    /**
+     * @param index  The index of a chunk.
+     * @param length The number of bytes the client sends for it.
+     * @return Whether the chunk belongs to the file and has the expected length.
+     */
+    public boolean isValidChunk(int index, long length) {
+        if (index < 0 || index >= chunkCount) return false;
+        return length == Math.min(chunkSize, size - offsetOf(index));
+    }
+
+    /**
+     * Write received bytes of a chunk. Several chunks can be written at the same time.
+     *
+     * @param buffer   The received bytes.
+     * @param position The position in the file.
+     * @return The number of bytes written.
+     * @throws IOException If an I/O error occurs.
+     */
+    public int write(ByteBuffer buffer, long position) throws IOException {
+        lastActivity = System.currentTimeMillis();
+        return channel.write(buffer, position);
+    }
+
+    /**
+     * @return The temporary file, for positional writes of a whole chunk.
+     */
+    public FileChannel channel() {
+        lastActivity = System.currentTimeMillis();
+        return channel;
+    }
+
+    /**
+     * @param index The index of a chunk that was written completely.
+     */
+    public synchronized void markReceived(int index) {
+        received.set(index);
+    }
+
+    /**
+     * @return The indexes of the chunks that weren't received yet.
+     */
+    public synchronized int[] missingChunks() {
+        int[] missing = new int[chunkCount - received.cardinality()];
+        int index = received.nextClearBit(0);
+        for (int i = 0; i < missing.length; i++) {
+            missing[i] = index;
+            index = received.nextClearBit(index + 1);
+        }
+        return missing;
+    }
+
+    public synchronized boolean isComplete() {
+        return received.cardinality() == chunkCount;
+    }
+
+    /**
+     * @param now     The current time in milliseconds.
+     * @param timeout The time in milliseconds after which an upload without new chunks is abandoned.
+     * @return Whether the upload was abandoned by the client.
+     */
+    public boolean isExpired(long now, long timeout) {
+        return now - lastActivity > timeout;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
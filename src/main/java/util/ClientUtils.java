@@ -1,49 +1,468 @@
 package util;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.io.IOException;
+import client.Connection;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.IntStream;
 
 public class ClientUtils {
 
     private static final String FILE_PATH = SetupUtils.setUpFileStorage("/client/data/");
+    private static final long PROGRESS_INTERVAL = 4 * 1024 * 1024;
 
     /**
      * Send a file to the server.
      *
-     * @param fileName The name of the file to be sent
-     * @param output   The output stream to the server
+     * @param fileName   The name of the file to be sent
+     * @param output     The output stream to the server
+     * @param compressed Whether the file is sent in compressed blocks, which the server expects after "PUT_Z"
      * @throws IOException If an I/O error occurs
      */
-    public static void sendFile(String fileName, DataOutputStream output) throws IOException {
-        String path = FILE_PATH + fileName;
-        byte[] fileBytes = Files.readAllBytes(Paths.get(path));
+    public static void sendFile(String fileName, DataOutputStream output, boolean compressed) throws IOException {
+        Path path = Paths.get(FILE_PATH + fileName);
 
-        output.writeInt(fileBytes.length);
-        output.write(fileBytes);
+        // Stream the file instead of loading it into memory
+        long size = Files.size(path);
+        output.writeLong(size);
+        if (!compressed) {
+            Transfer.send(path, size, output);
+        } else {
+            BlockCodec codec = new BlockCodec();
+            try (FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ)) {
+                for (long position = 0; position < size; ) {
+                    int length = (int) Math.min(BlockCodec.BLOCK_SIZE, size - position);
+                    ByteBuffer frame = codec.encode(fileChannel, position, length);
+                    output.write(frame.array(), 0, frame.limit());
+                    position += length;
+                }
+            } finally {
+                codec.close();
+            }
+        }
         output.flush();
     }
 
+
+    /**
+     * Offer the digest of a file to the server instead of its content. The server stores the file if it already has
+     * the content, e.g. because someone uploaded the same file before, and the client proves that it has the content
+     * as well by answering a challenge.
+     *
+     * @param fileName       The name of the file to be sent
+     * @param serverFileName The name of the file on the server or "*" to let the server choose one
+     * @param input          The input stream from the server
+     * @param output         The output stream to the server
+     * @return The response of the server, 404 if the content has to be sent
+     * @throws IOException If an I/O error occurs
+     */
+    public static String sendDigest(String fileName, String serverFileName, DataInputStream input,
+                                    DataOutputStream output) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        try (InputStream fileInput = new DigestInputStream(Files.newInputStream(Paths.get(FILE_PATH + fileName)),
+                digest)) {
+            fileInput.transferTo(OutputStream.nullOutputStream());
+        }
+
+        Path file = Paths.get(FILE_PATH + fileName);
+        output.writeUTF("PUT_HASH " + HexFormat.of().formatHex(digest.digest()) + " " + Files.size(file) + " "
+                + serverFileName);
+        output.flush();
+        String response = input.readUTF();
+        if (response.startsWith("100")) {
+            // Prove that the content is here, the server asks for the digest of a random range of it
+            output.writeUTF(PossessionChallenge.parse(response).prove(file));
+            output.flush();
+            response = input.readUTF();
+        }
+        if (response.startsWith("200")) System.out.println("The server already has the content, it wasn't sent again.");
+        return response;
+    }
+
     /**
      * Receive a file from the server.
+     * The file is streamed into a partial file first, so files larger than the heap can be downloaded. If the
+     * download is interrupted the partial file is kept and the next download of the file continues it.
      *
-     * @param input The input stream from the server
+     * @param input      The input stream from the server
+     * @param nameOrId   Either "BY_NAME" or "BY_ID"
+     * @param key        The filename or the id of the file
+     * @param version    The version of the file on the server
+     * @param compressed Whether the server sends the file in compressed blocks
      * @throws IOException If an I/O error occurs
      */
-    public static void receiveFile(DataInputStream input) throws IOException {
-        int size = input.readInt();
-        byte[] fileBytes = new byte[size];
-        input.readFully(fileBytes, 0, fileBytes.length);
+    public static void receiveFile(DataInputStream input, String nameOrId, String key, long version,
+                                   boolean compressed) throws IOException {
+        long size = input.readLong();
+        PartialDownload download = new PartialDownload(FILE_PATH, nameOrId, key);
+        download.begin(size, version);
+
+        try (FileChannel fileChannel = download.openChannel()) {
+            receivePart(input, fileChannel, 0, size, download, compressed);
+        }
+        saveDownload(download);
+    }
+
+    /**
+     * @param nameOrId Either "BY_NAME" or "BY_ID"
+     * @param key      The filename or the id of the file
+     * @return The number of bytes of an interrupted download of the file that can be kept, 0 if there is none
+     * @throws IOException If the state of the download can't be read
+     */
+    public static long resumeOffset(String nameOrId, String key) throws IOException {
+        return new PartialDownload(FILE_PATH, nameOrId, key).validLength();
+    }
+
+    /**
+     * Delete the partial download of a file, e.g. because the file on the server changed.
+     *
+     * @param nameOrId Either "BY_NAME" or "BY_ID"
+     * @param key      The filename or the id of the file
+     * @throws IOException If the partial file can't be deleted
+     */
+    public static void discardDownload(String nameOrId, String key) throws IOException {
+        new PartialDownload(FILE_PATH, nameOrId, key).discard();
+    }
+
+    /**
+     * @param fileName  The name of the file to be sent.
+     * @param streams   The number of connections.
+     * @param chunkSize The size of the chunks.
+     * @return Whether the file is large enough to be sent in chunks over several connections.
+     * @throws IOException If the size of the file can't be read.
+     */
+    public static boolean isChunked(String fileName, int streams, int chunkSize) throws IOException {
+        return streams > 1 && Files.size(Paths.get(FILE_PATH + fileName)) > chunkSize;
+    }
+
+    /**
+     * Upload a file in chunks over several connections at the same time. The id of the upload is kept next to the
+     * file until it is committed, so an interrupted upload is continued by sending only the chunks the server is
+     * still missing.
+     *
+     * @param address        The address of the server.
+     * @param port           The port of the server.
+     * @param fileName       The name of the file to be sent.
+     * @param serverFileName The name of the file on the server or "*" to let the server choose one.
+     * @param streams        The number of connections.
+     * @param chunkSize      The size of the chunks.
+     * @param compressed     Whether the chunks are sent in compressed blocks.
+     * @return The response of the server to the commit, the same as for PUT.
+     * @throws IOException If an I/O error occurs.
+     */
+    public static String sendFileChunked(String address, int port, String fileName, String serverFileName,
+                                         int streams, int chunkSize, boolean compressed) throws IOException {
+        Path path = Paths.get(FILE_PATH + fileName);
+        Path uploadState = Paths.get(FILE_PATH + "." + fileName + ".upload");
+        long size = Files.size(path);
+        // The state only belongs to this upload if the file and the settings didn't change
+        String state = size + " " + Files.getLastModifiedTime(path).toMillis() + " " + chunkSize + " " + serverFileName;
+
+        // The control requests use short connections, so a server with few threads can serve the chunks in between
+        try (FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ)) {
+            String uploadId = null;
+            int[] missing = null;
+            if (Files.exists(uploadState)) {
+                String[] saved = Files.readString(uploadState).split("\n", 2);
+                if (saved.length == 2 && saved[1].equals(state)) {
+                    uploadId = saved[0];
+                    missing = missingChunks(address, port, uploadId);
+                    if (missing != null) {
+                        System.out.println("Resuming the upload, " + missing.length + " chunk(s) left.");
+                    }
+                }
+            }
+            if (missing == null) {
+                String response;
+                try (Connection connection = new Connection(address, port)) {
+                    connection.beginUpload(size, chunkSize, serverFileName);
+                    response = connection.readResponse(null);
+                }
+                if (!response.startsWith("200")) return response;
+                uploadId = response.split(" ")[1];
+                Files.writeString(uploadState, uploadId + "\n" + state);
+                missing = IntStream.range(0, (int) ((size + chunkSize - 1) / chunkSize)).toArray();
+            }
+
+            // Chunks that failed are reported as missing again, give them a few more attempts
+            String id = uploadId;
+            for (int attempt = 0; missing.length > 0 && attempt < 3; attempt++) {
+                runInParallel(address, port, streams, missing, (chunkConnection, index) -> {
+                    long offset = (long) index * chunkSize;
+                    long length = Math.min(chunkSize, size - offset);
+                    chunkConnection.putChunk(id, index, fileChannel, offset, length, compressed);
+                    chunkConnection.readResponse(null);
+                });
+                missing = missingChunks(address, port, uploadId);
+                if (missing == null) throw new IOException("The upload expired on the server.");
+            }
+            if (missing.length > 0) throw new IOException(missing.length + " chunk(s) could not be sent.");
+
+            try (Connection connection = new Connection(address, port)) {
+                connection.commitUpload(uploadId);
+                String response = connection.readResponse(null);
+                Files.deleteIfExists(uploadState);
+                return response;
+            }
+        }
+    }
+
+    /**
+     * Receive a file that was requested with GET_RANGE, starting at the end of an interrupted download of the file.
+     * The rest of the file after the requested part is fetched in chunks over several connections at the same time.
+     * If the download is interrupted again the received bytes are kept for the next attempt.
+     *
+     * @param input      The input stream from the server, positioned at the length of the requested part.
+     * @param fileSize   The size of the whole file.
+     * @param version    The version of the whole file.
+     * @param offset     The position of the requested part in the file.
+     * @param address    The address of the server.
+     * @param port       The port of the server.
+     * @param nameOrId   Either "BY_NAME" or "BY_ID".
+     * @param key        The filename or the id of the file.
+     * @param streams    The number of connections.
+     * @param chunkSize  The size of the chunks.
+     * @param compressed Whether the server compresses the file, the rest of it is requested compressed as well.
+     * @throws IOException If an I/O error occurs or the file changed during the download.
+     */
+    public static void receiveFileRange(DataInputStream input, long fileSize, long version, long offset,
+                                        String address, int port, String nameOrId, String key, int streams,
+                                        int chunkSize, boolean compressed) throws IOException {
+        PartialDownload download = new PartialDownload(FILE_PATH, nameOrId, key);
+        long partLength = input.readLong();
+        try (FileChannel fileChannel = download.openChannel()) {
+            // The received bytes belong to another version of the file if it was replaced, start over then
+            boolean sameFile = download.begin(fileSize, version) == offset;
+            receivePart(input, sameFile ? fileChannel : null, offset, partLength, download, compressed);
+        }
+
+        long start = download.validLength();
+        int[] chunks = IntStream.range(0, (int) ((fileSize - start + chunkSize - 1) / chunkSize)).toArray();
+        runInParallel(address, port, streams, chunks, new ChunkTask() {
+            // Every connection writes its chunks through its own channel, so the positions don't interfere
+            private final ThreadLocal<FileChannel> channels = new ThreadLocal<>();
+
+            @Override
+            public void transfer(Connection connection, int index) throws IOException {
+                FileChannel fileChannel = channels.get();
+                if (fileChannel == null) {
+                    fileChannel = download.openChannel();
+                    channels.set(fileChannel);
+                }
+                long chunkOffset = start + (long) index * chunkSize;
+                connection.getRange(nameOrId, key, chunkOffset, chunkSize, compressed);
+                fileChannel.position(chunkOffset);
+                String[] response = connection.readResponse(Channels.newOutputStream(fileChannel)).split(" ");
+                if (!response[0].equals("200") || !response[1].equals(Long.toString(fileSize))
+                        || !response[2].equals(Long.toString(version))) {
+                    throw new IOException("The file changed during the download.");
+                }
+                download.received(chunkOffset, Math.min(chunkSize, fileSize - chunkOffset));
+            }
+
+            @Override
+            public void done() throws IOException {
+                FileChannel fileChannel = channels.get();
+                if (fileChannel != null) fileChannel.close();
+            }
+        });
+        saveDownload(download);
+    }
+
+    /**
+     * Write a part of a file to the partial download, the progress is recorded every few megabytes. Without a file
+     * channel the part is read and discarded.
+     */
+    private static void receivePart(DataInputStream input, FileChannel fileChannel, long position, long length,
+                                    PartialDownload download, boolean compressed) throws IOException {
+        if (fileChannel == null) {
+            receivePart(input, OutputStream.nullOutputStream(), length, compressed);
+            return;
+        }
+        fileChannel.position(position);
+        OutputStream output = Channels.newOutputStream(fileChannel);
+        long end = position + length;
+        while (position < end) {
+            // The interval is a multiple of the block size, so the compressed blocks don't cross the slices
+            long slice = Math.min(PROGRESS_INTERVAL, end - position);
+            receivePart(input, output, slice, compressed);
+            download.received(position, slice);
+            position += slice;
+        }
+    }
 
+    private static void receivePart(DataInputStream input, OutputStream output, long size, boolean compressed)
+            throws IOException {
+        if (!compressed) {
+            Transfer.copy(input, output, size);
+            return;
+        }
+        BlockCodec codec = new BlockCodec();
+        try {
+            for (long remaining = size; remaining > 0; ) {
+                int length = codec.read(input, codec.block(), remaining);
+                output.write(codec.block(), 0, length);
+                remaining -= length;
+            }
+        } finally {
+            codec.close();
+        }
+    }
+
+    /**
+     * Ask the user for a name and move the complete download there.
+     */
+    private static void saveDownload(PartialDownload download) throws IOException {
         System.out.print("The file was downloaded! Specify a name for it: ");
         Scanner scanner = new Scanner(System.in);
         String saveName = scanner.nextLine();
 
-        String path = FILE_PATH + saveName;
-        Files.write(Paths.get(path), fileBytes);
+        download.complete(Paths.get(FILE_PATH + saveName));
         System.out.println("File saved on the hard drive!");
     }
+
+    /**
+     * Ask the server which chunks of an upload it is still missing.
+     *
+     * @param address  The address of the server.
+     * @param port     The port of the server.
+     * @param uploadId The id of the upload.
+     * @return The indexes of the missing chunks or null if the server doesn't know the upload.
+     * @throws IOException If an I/O error occurs.
+     */
+    private static int[] missingChunks(String address, int port, String uploadId) throws IOException {
+        ByteArrayOutputStream lines = new ByteArrayOutputStream();
+        try (Connection connection = new Connection(address, port)) {
+            connection.uploadStatus(uploadId);
+            if (!connection.readResponse(lines).startsWith("200")) return null;
+        }
+        return lines.toString().lines().mapToInt(Integer::parseInt).toArray();
+    }
+
+    /**
+     * Transfer chunks over several connections. Every connection takes the next chunk that isn't transferred yet.
+     *
+     * @param address The address of the server.
+     * @param port    The port of the server.
+     * @param streams The number of connections.
+     * @param chunks  The indexes of the chunks.
+     * @param task    The transfer of a single chunk.
+     * @throws IOException If a connection failed.
+     */
+    private static void runInParallel(String address, int port, int streams, int[] chunks, ChunkTask task)
+            throws IOException {
+        AtomicInteger next = new AtomicInteger();
+        AtomicReference<IOException> failure = new AtomicReference<>();
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < Math.min(streams, chunks.length); i++) {
+            Thread worker = new Thread(() -> {
+                try (Connection connection = new Connection(address, port)) {
+                    for (int n = next.getAndIncrement(); n < chunks.length && failure.get() == null;
+                         n = next.getAndIncrement()) {
+                        task.transfer(connection, chunks[n]);
+                    }
+                } catch (IOException e) {
+                    failure.compareAndSet(null, e);
+                } finally {
+                    try {
+                        task.done();
+                    } catch (IOException e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            }, "transfer-" + i);
+            worker.start();
+            workers.add(worker);
+        }
+
+        try {
+            for (Thread worker : workers) worker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("The transfer was interrupted.");
+        }
+        if (failure.get() != null) throw failure.get();
+    }
+
+    /**
+     * The transfer of a single chunk over one of the connections.
+     */
+    private interface ChunkTask {
+
+        void transfer(Connection connection, int index) throws IOException;
+
+        /**
+         * Called by every connection after its last chunk.
+         */
+        default void done() throws IOException {
+        }
+    }
+
+    /**
+     * Print the files listed by the server.
+     *
+     * @param input The input stream from the server
+     * @param count The number of files in the response
+     * @throws IOException If an I/O error occurs
+     */
+    public static void printFileList(DataInputStream input, int count) throws IOException {
+        System.out.println("The server has " + count + " matching file(s):");
+        for (int i = 0; i < count; i++) {
+            String id = input.readUTF();
+            String name = input.readUTF();
+            System.out.println(id + "\t" + name);
+        }
+    }
+
+    /**
+     * Print a page of files from the response to a LIST_PAGE request.
+     *
+     * @param input The input stream from the server
+     * @param count The number of files of the page
+     * @throws IOException If an I/O error occurs
+     */
+    public static void printFilePage(DataInputStream input, int count) throws IOException {
+        System.out.println("The page has " + count + " file(s):");
+        for (int i = 0; i < count; i++) {
+            String name = input.readUTF();
+            String id = input.readUTF();
+            long size = input.readLong();
+            long modified = input.readLong();
+            System.out.println((id.isEmpty() ? "-" : id) + "\t" + name + "\t" + size + " bytes\t"
+                    + Instant.ofEpochMilli(modified));
+        }
+    }
+
+    /**
+     * Print the details of a file from the response to a STAT request.
+     *
+     * @param responseTokens The tokens of the response "200 [size] [modified] [id] [checksum]"
+     */
+    public static void printFileDetails(String[] responseTokens) {
+        System.out.println("Size: " + responseTokens[1] + " bytes");
+        System.out.println("Last modified: " + Instant.ofEpochMilli(Long.parseLong(responseTokens[2])));
+        System.out.println("ID: " + responseTokens[3]);
+        System.out.println("SHA-256: " + (responseTokens[4].equals("-") ? "unknown" : responseTokens[4]));
+    }
 }
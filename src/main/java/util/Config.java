@@ -0,0 +1,201 @@
+package util;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Predicate;
+
+/*
+ * Immutable snapshot of the config file. The file is parsed once and
+ * every lookup is served from memory, a change of the file is loaded as
+ * a new snapshot that replaces the old one as a whole. Every number and
+ * every setting with a limited set of values is checked while the file
+ * is parsed. At the start an invalid value is reported and dropped, so
+ * its default is used. A changed file with an invalid value is rejected
+ * as a whole and the previous snapshot stays in use.
+ */
+public class Config {
+
+    private static final Map<String, Rule> RULES = Map.ofEntries(
+            Map.entry("app.port", Rule.range(1, 65535)),
+            Map.entry("server.admin.port", Rule.range(0, 65535)),
+            Map.entry("server.engine", Rule.choice("blocking", "nio")),
+            Map.entry("server.executor", Rule.choice("inline", "thread", "pooled")),
+            Map.entry("server.threads", Rule.range(1, 10_000)),
+            Map.entry("server.queue.size", Rule.range(1, Integer.MAX_VALUE)),
+            Map.entry("server.loops", Rule.range(1, 1024)),
+            Map.entry("server.idle.timeout", Rule.range(0, Integer.MAX_VALUE)),
+            Map.entry("server.keepalive.timeout", Rule.range(1, Integer.MAX_VALUE)),
+            Map.entry("server.compression", Rule.choice("deflate", "none")),
+            Map.entry("client.keep.alive", Rule.choice("true", "false")),
+            Map.entry("client.streams", Rule.range(1, 64)),
+            Map.entry("client.chunk.size", Rule.range(1, Integer.MAX_VALUE)),
+            Map.entry("client.skip.duplicates", Rule.choice("true", "false")),
+            Map.entry("client.compression", Rule.choice("deflate", "none")),
+            Map.entry("map.log.sync", Rule.choice("group", "none")),
+            Map.entry("map.log.compact.size", Rule.range(1, Long.MAX_VALUE)),
+            Map.entry("map.index", Rule.choice("hash", "offheap")),
+            Map.entry("cache.size", Rule.range(0, Long.MAX_VALUE)),
+            Map.entry("cache.max.file.size", Rule.range(0, Integer.MAX_VALUE)),
+            Map.entry("buffer.pool.size", Rule.range(8192, Long.MAX_VALUE)),
+            Map.entry("upload.timeout", Rule.range(1, Long.MAX_VALUE)),
+            Map.entry("upload.max.sessions", Rule.range(1, Integer.MAX_VALUE)),
+            Map.entry("upload.max.chunks", Rule.range(1, Integer.MAX_VALUE)),
+            Map.entry("storage.mode", Rule.choice("plain", "sharded", "dedup")),
+            Map.entry("storage.sync", Rule.choice("none", "file", "group")),
+            Map.entry("limit.requests", Rule.range(0, Long.MAX_VALUE)),
+            Map.entry("limit.bandwidth", Rule.range(0, Long.MAX_VALUE)),
+            Map.entry("limit.transfers", Rule.range(0, Integer.MAX_VALUE)),
+            Map.entry("limit.scope", Rule.choice("address", "connection")),
+            Map.entry("load.connections", Rule.range(1, 10_000)),
+            Map.entry("load.duration", Rule.range(1, Integer.MAX_VALUE)),
+            Map.entry("load.warmup", Rule.range(0, Integer.MAX_VALUE)),
+            Map.entry("load.rate", Rule.decimal()),
+            Map.entry("load.mix", Rule.weights(name -> Set.of("get", "put", "delete").contains(name.toLowerCase()))),
+            Map.entry("load.sizes", Rule.weights(name -> Long.parseLong(name) >= 0)),
+            Map.entry("load.files", Rule.range(0, Integer.MAX_VALUE)),
+            Map.entry("load.batch", Rule.range(1, FileBatch.LIMIT)));
+
+    private final Map<String, String> values;
+
+    private Config(Map<String, String> values) {
+        this.values = Map.copyOf(values);
+    }
+
+    /**
+     * @return A config without settings, every lookup returns its default.
+     */
+    public static Config empty() {
+        return new Config(Map.of());
+    }
+
+    /**
+     * Parse and check a config file.
+     *
+     * @param file     The config file.
+     * @param previous The snapshot in use, which is kept if the file has invalid values, or null at the start, where
+     *                 invalid values are dropped.
+     * @return The snapshot of the valid, non-empty settings or an empty config if the file doesn't exist.
+     * @throws IOException If the file can't be read or a value of a changed file is invalid.
+     */
+    public static Config load(Path file, Config previous) throws IOException {
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(file)) {
+            properties.load(reader);
+        } catch (NoSuchFileException e) {
+            return empty();
+        }
+
+        Map<String, String> values = new HashMap<>();
+        List<String> problems = new ArrayList<>();
+        for (String name : properties.stringPropertyNames()) {
+            String value = properties.getProperty(name).trim();
+            if (value.isEmpty()) continue;
+            String problem = check(name, value);
+            if (problem != null) {
+                problems.add(problem);
+                continue;
+            }
+            values.put(name, value);
+        }
+        if (problems.isEmpty()) return new Config(values);
+
+        if (previous != null) {
+            throw new IOException(String.join("; ", problems) + ". The previous settings are kept.");
+        }
+        for (String problem : problems) System.out.println(problem + ". The default is used.");
+        return new Config(values);
+    }
+
+    /**
+     * Check the value of a setting against its allowed values.
+     *
+     * @param name  The name of the setting.
+     * @param value The value.
+     * @return A description of the problem or null if the value is valid or the setting accepts any value.
+     */
+    public static String check(String name, String value) {
+        Rule rule = RULES.get(name);
+        if (rule == null || rule.accepts(value)) return null;
+        return "Invalid value of " + name + ": " + value + ", expected " + rule;
+    }
+
+    /**
+     * @param property The name of the setting.
+     * @return The value or null if the setting is empty or missing.
+     */
+    public String get(String property) {
+        return values.get(property);
+    }
+
+    /**
+     * @param other Another snapshot.
+     * @return The names of the settings whose values differ.
+     */
+    public Set<String> changes(Config other) {
+        Set<String> changed = new TreeSet<>();
+        for (String name : values.keySet()) {
+            if (!values.get(name).equals(other.values.get(name))) changed.add(name);
+        }
+        for (String name : other.values.keySet()) {
+            if (!values.containsKey(name)) changed.add(name);
+        }
+        return changed;
+    }
+
+    /**
+     * The allowed values of a setting: a range of whole numbers, a decimal number, a list of weights or a set of
+     * words.
+     */
+    private record Rule(Predicate<String> test, String description) {
+
+        static Rule range(long min, long max) {
+            return new Rule(value -> {
+                long number = Long.parseLong(value);
+                return number >= min && number <= max;
+            }, "a number from " + min + " to " + max);
+        }
+
+        static Rule decimal() {
+            return new Rule(value -> Double.parseDouble(value) >= 0, "a number of at least 0");
+        }
+
+        static Rule weights(Predicate<String> names) {
+            return new Rule(value -> {
+                for (String entry : value.split(",")) {
+                    String[] parts = entry.trim().split(":");
+                    if (parts.length > 2 || !names.test(parts[0].trim())) return false;
+                    if (parts.length == 2 && !(Double.parseDouble(parts[1].trim()) >= 0)) return false;
+                }
+                return true;
+            }, "[name]:[weight] pairs separated by commas");
+        }
+
+        static Rule choice(String... choices) {
+            Set<String> allowed = Set.of(choices);
+            return new Rule(allowed::contains, String.join(" or ", allowed.stream().sorted().toList()));
+        }
+
+        boolean accepts(String value) {
+            try {
+                return test.test(value);
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return description;
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package util;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.function.BiConsumer;
+import java.util.stream.Stream;
+
+/*
+ * Content-addressed store that keeps identical contents only once. Every
+ * content is a blob named after its SHA-256 digest in a fan-out tree
+ * below data/.blobs, e.g. .blobs/3a/7f/3a7f...; the names of the files
+ * map to the digests of their blobs and the time they were stored. The
+ * map is persisted like the id map, the number of names per blob is
+ * counted when it is restored and a blob is deleted together with its
+ * last name. Changes lock only the blob they touch and wait for the log
+ * after releasing it, so they share its fsyncs.
+ * Files stored before the store was switched to this mode are still
+ * found under their names in the data directory.
+ */
+public class DedupFileStore implements FileStore {
+
+    private static final String BLOB_DIRECTORY = ".blobs";
+
+    private final Path blobDirectory;
+    private final PlainFileStore plainFiles;
+    private final IdIndex digestsByName = new HashIdIndex();
+    private final Map<String, Integer> references = new ConcurrentHashMap<>();
+    private final NameLocks blobLocks = new NameLocks(256);
+    private final IdMapLog log;
+    private final FileSync sync;
+
+    /**
+     * Restore the map of names to blobs and delete blobs that lost their last name before a crash.
+     *
+     * @param dataDirectory  The data directory.
+     * @param indexDirectory The directory of the snapshot and the log of the map.
+     * @param sync           The durability of the stored blobs.
+     * @throws IOException If the map can't be restored.
+     */
+    public DedupFileStore(Path dataDirectory, Path indexDirectory, FileSync sync) throws IOException {
+        this.blobDirectory = dataDirectory.resolve(BLOB_DIRECTORY);
+        this.plainFiles = new PlainFileStore(dataDirectory, sync);
+        this.sync = sync;
+        Files.createDirectories(blobDirectory);
+        Files.createDirectories(indexDirectory);
+
+        boolean groupCommit = !SetupUtils.readProperty("map.log.sync", "group").equals("none");
+        long compactSize = SetupUtils.readLong("map.log.compact.size", 16777216);
+        this.log = new IdMapLog(indexDirectory, groupCommit, compactSize);
+        log.recover(digestsByName);
+        digestsByName.forEach((filename, reference) -> references.merge(digestOf(reference), 1, Integer::sum));
+        deleteUnreferencedBlobs();
+    }
+
+    @Override
+    public Path find(String filename) {
+        String reference = digestsByName.get(filename);
+        return reference != null ? blobPath(digestOf(reference)) : plainFiles.find(filename);
+    }
+
+    /**
+     * Store the content as a new blob or add the name to the blob that already holds it. In the latter case the
+     * temporary file is left behind, so writing the content again is skipped. The caller holds the lock of the
+     * name, the blob is locked by its digest, so only uploads of the same content wait for each other.
+     */
+    @Override
+    public boolean add(String filename, Path tempFile, byte[] digest) throws IOException {
+        if (find(filename) != null) return false;
+        // Chunked uploads arrive out of order, their digest is computed once they are complete
+        String hex = HexFormat.of().formatHex(digest != null ? digest : FileStore.digestOf(tempFile));
+        long sequence;
+        Lock lock = blobLocks.get(hex).writeLock();
+        lock.lock();
+        try {
+            if (!references.containsKey(hex)) {
+                Path blob = blobPath(hex);
+                Files.createDirectories(blob.getParent());
+                Files.move(tempFile, blob, StandardCopyOption.ATOMIC_MOVE);
+                // The blob is on the disk before a name refers to it
+                sync.sync(List.of(blob));
+            }
+            sequence = addReference(filename, hex);
+        } finally {
+            lock.unlock();
+        }
+        // The name is on the disk before the caller logs the id of the file
+        log.awaitSync(sequence);
+        return true;
+    }
+
+    @Override
+    public boolean usesDigests() {
+        return true;
+    }
+
+    @Override
+    public Path content(String digest) {
+        String hex = digest.toLowerCase();
+        return references.containsKey(hex) ? blobPath(hex) : null;
+    }
+
+    @Override
+    public boolean link(String filename, String digest) throws IOException {
+        String hex = digest.toLowerCase();
+        if (find(filename) != null) return false;
+        long sequence;
+        Lock lock = blobLocks.get(hex).writeLock();
+        lock.lock();
+        try {
+            if (!references.containsKey(hex)) return false;
+            sequence = addReference(filename, hex);
+        } finally {
+            lock.unlock();
+        }
+        log.awaitSync(sequence);
+        return true;
+    }
+
+    @Override
+    public boolean remove(String filename) throws IOException {
+        String reference = digestsByName.get(filename);
+        if (reference == null) return plainFiles.remove(filename);
+
+        String digest = digestOf(reference);
+        long sequence;
+        int remaining;
+        Lock lock = blobLocks.get(digest).writeLock();
+        lock.lock();
+        try {
+            digestsByName.remove(filename);
+            sequence = log.appendRemove(filename);
+            // A blob without names stays counted with 0 until it is deleted, so an upload of the same content in the
+            // meantime refers to it again instead of moving another copy over it
+            remaining = references.merge(digest, -1, Integer::sum);
+        } finally {
+            lock.unlock();
+        }
+
+        // The name is gone before its blob, a crash in between only leaves an unreferenced blob behind
+        log.awaitSync(sequence);
+        if (remaining == 0) deleteIfUnreferenced(digest);
+        return true;
+    }
+
+    @Override
+    public void forEach(BiConsumer<String, Path> action) throws IOException {
+        plainFiles.forEach(action);
+        List<Map.Entry<String, Path>> files = new ArrayList<>();
+        digestsByName.forEach((filename, reference) -> files.add(Map.entry(filename, blobPath(digestOf(reference)))));
+        files.parallelStream().forEach(file -> action.accept(file.getKey(), file.getValue()));
+    }
+
+    @Override
+    public String digest(String filename) {
+        String reference = digestsByName.get(filename);
+        return reference == null ? null : digestOf(reference);
+    }
+
+    /**
+     * A blob is shared by all files with the same content, the time the name was stored is kept with the name.
+     */
+    @Override
+    public long modified(String filename, BasicFileAttributes attributes) {
+        String reference = digestsByName.get(filename);
+        int separator = reference == null ? -1 : reference.indexOf(' ');
+        if (separator < 0) return attributes.lastModifiedTime().toMillis();
+        return Long.parseLong(reference.substring(separator + 1));
+    }
+
+    @Override
+    public void close() throws IOException {
+        log.close();
+    }
+
+    /**
+     * Add a name to a blob, the blob is locked by the caller.
+     *
+     * @return The sequence number of the record in the log.
+     */
+    private long addReference(String filename, String digest) throws IOException {
+        // The time the name was stored follows the digest, names logged by older versions have only the digest
+        String reference = digest + " " + System.currentTimeMillis();
+        digestsByName.put(filename, reference);
+        references.merge(digest, 1, Integer::sum);
+        return log.appendPut(filename, reference);
+    }
+
+    /**
+     * Delete a blob that lost its last name, unless an upload referred to it again in the meantime.
+     */
+    private void deleteIfUnreferenced(String digest) throws IOException {
+        Lock lock = blobLocks.get(digest).writeLock();
+        lock.lock();
+        try {
+            if (references.getOrDefault(digest, -1) != 0) return;
+            references.remove(digest);
+            Files.deleteIfExists(blobPath(digest));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param reference The digest of the blob of a name, possibly followed by the time the name was stored.
+     * @return The hex encoded digest.
+     */
+    private static String digestOf(String reference) {
+        int separator = reference.indexOf(' ');
+        return separator < 0 ? reference : reference.substring(0, separator);
+    }
+
+    /**
+     * @param digest The hex encoded digest of a blob.
+     * @return The path of the blob, two levels of directories named after the first bytes of the digest keep the
+     * directories small.
+     */
+    private Path blobPath(String digest) {
+        return blobDirectory.resolve(digest.substring(0, 2)).resolve(digest.substring(2, 4)).resolve(digest);
+    }
+
+    private void deleteUnreferencedBlobs() throws IOException {
+        try (Stream<Path> blobs = Files.walk(blobDirectory, 3)) {
+            for (Path blob : blobs.filter(Files::isRegularFile).toList()) {
+                if (!references.containsKey(blob.getFileName().toString())) Files.delete(blob);
+            }
+        }
+    }
+}
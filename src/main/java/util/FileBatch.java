@@ -0,0 +1,266 @@
+package util;
+
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAccumulator;
+
+/*
+ * A request that carries many files or keys at once: GET_BATCH,
+ * PUT_BATCH or DELETE_BATCH. The disk work of the items runs on a small
+ * pool of I/O threads while the connection transfers the other items.
+ * GET_BATCH reads the beginning of the next files ahead into buffers of
+ * the batch, PUT_BATCH stores every upload in the background while the
+ * next one arrives and DELETE_BATCH removes its files in parallel. Every
+ * item changes the store and the id map together under the lock of its
+ * name like a single PUT or DELETE, only the wait for the log of the id
+ * map is shared by the whole batch before the statuses are sent.
+ */
+public class FileBatch implements Closeable {
+
+    public static final int LIMIT = 1000;
+
+    // Number of files of a GET_BATCH that are read before they are sent
+    private static final int READ_AHEAD = 16;
+    // Bytes of every file that are read ahead, smaller files are read completely and larger ones are streamed after it
+    private static final int READ_AHEAD_SIZE = 256 * 1024;
+    private static final ExecutorService DISK_IO = Executors.newFixedThreadPool(
+            Math.max(4, Runtime.getRuntime().availableProcessors()), runnable -> {
+                Thread thread = new Thread(runnable, "batch-io");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    private final IdMap idMap;
+    private final int size;
+    private final List<String> filenames = new ArrayList<>();
+    private final List<CompletableFuture<Item>> contents = new ArrayList<>();
+    private final List<CompletableFuture<String>> statuses = new ArrayList<>();
+    // The highest sequence number of the id map log written by the items
+    private final LongAccumulator logged = new LongAccumulator(Math::max, 0);
+    // The last upload of every name of a PUT_BATCH, uploads of the same name are stored in the order they were sent
+    private final Map<String, CompletableFuture<String>> lastStored = new HashMap<>();
+    private int next;
+
+    /**
+     * @param size  The number of items announced by the request.
+     * @param idMap The id map.
+     * @throws IOException If the number is invalid, the connection can't be kept in sync with the client then.
+     */
+    public FileBatch(String size, IdMap idMap) throws IOException {
+        this.idMap = idMap;
+        try {
+            this.size = Integer.parseInt(size);
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid batch size: " + size);
+        }
+        if (this.size <= 0 || this.size > LIMIT) throw new IOException("Invalid batch size: " + size);
+    }
+
+    /**
+     * @return The number of items of the batch.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Add a file to a GET_BATCH. The first files are read right away.
+     *
+     * @param nameOrId Either "BY_NAME" or "BY_ID".
+     * @param key      The filename or the id of the file.
+     */
+    public void read(String nameOrId, String key) {
+        filenames.add(ServerUtils.resolveFilename(new String[]{"GET", nameOrId, key}, idMap));
+        readAhead();
+    }
+
+    /**
+     * @return Whether a GET_BATCH has files that weren't sent yet.
+     */
+    public boolean hasNext() {
+        return next < filenames.size();
+    }
+
+    /**
+     * @return A future that completes once the next file of a GET_BATCH is read ahead, next() doesn't block then.
+     */
+    public CompletableFuture<Item> nextRead() {
+        readAhead();
+        return contents.get(next);
+    }
+
+    /**
+     * Take the next file of a GET_BATCH and start reading the one after the read-ahead window. The caller sends the
+     * file and closes the rest of its content.
+     *
+     * @return The file and the part of its content that was read ahead.
+     */
+    public Item next() {
+        int current = next++;
+        readAhead();
+        Item item;
+        try {
+            item = contents.get(current).join();
+        } catch (CompletionException e) {
+            System.out.println("Error reading the file: " + e.getCause().getMessage());
+            Metrics.error();
+            item = new Item(filenames.get(current), null, null, 0);
+        }
+        contents.set(current, null);
+        return item;
+    }
+
+    /**
+     * Store an upload of a PUT_BATCH in the background, so the next upload can be received in the meantime.
+     *
+     * @param filename The name of the file or "*" to let the server choose one.
+     * @param tempFile The temporary file holding the uploaded data, it is deleted afterwards.
+     * @param digest   The digest of the content or null if it wasn't computed.
+     */
+    public void add(String filename, Path tempFile, byte[] digest) {
+        CompletableFuture<String> previous = filename.equals("*") ? null : lastStored.get(filename);
+        CompletableFuture<String> stored = previous == null
+                ? CompletableFuture.supplyAsync(() -> store(filename, tempFile, digest), DISK_IO)
+                : previous.handleAsync((status, error) -> store(filename, tempFile, digest), DISK_IO);
+        if (!filename.equals("*")) lastStored.put(filename, stored);
+        statuses.add(stored);
+    }
+
+    /**
+     * Remove a file of a DELETE_BATCH in the background.
+     *
+     * @param nameOrId Either "BY_NAME" or "BY_ID".
+     * @param key      The filename or the id of the file.
+     */
+    public void remove(String nameOrId, String key) {
+        statuses.add(CompletableFuture.supplyAsync(() -> delete(nameOrId, key), DISK_IO));
+    }
+
+    /**
+     * Wait for the items of a PUT_BATCH or DELETE_BATCH and for the log of the id map to persist their changes,
+     * then send the statuses of the items.
+     *
+     * @param output The output stream to the client or null if the connection failed, the changes of the items
+     *               that were processed are persisted anyway.
+     * @return The response to the client, "200" and the number of items, followed by the status of every item, the
+     * same as for PUT or DELETE.
+     * @throws IOException If the changes can't be persisted or the response can't be sent.
+     */
+    public String commit(DataOutputStream output) throws IOException {
+        List<String> results = statuses.stream().map(CompletableFuture::join).toList();
+        idMap.awaitSync(logged.get());
+
+        String response = "200 " + results.size();
+        if (output == null) return response;
+        output.writeUTF(response);
+        for (String status : results) output.writeUTF(status);
+        return response;
+    }
+
+    /**
+     * Close the files of a GET_BATCH that were read ahead but not sent, e.g. because the connection failed.
+     */
+    @Override
+    public void close() {
+        for (int i = next; i < contents.size(); i++) {
+            contents.get(i).thenAccept(item -> {
+                try {
+                    if (item.rest() != null) item.rest().close();
+                } catch (IOException e) {
+                    // Nothing was written to it
+                }
+            });
+        }
+        next = contents.size();
+    }
+
+    /**
+     * Read the files inside the read-ahead window that aren't read yet. The content goes into buffers of the batch,
+     * so the batch doesn't push the frequently requested files out of the file cache.
+     */
+    private void readAhead() {
+        while (contents.size() < filenames.size() && contents.size() < next + READ_AHEAD) {
+            String filename = filenames.get(contents.size());
+            contents.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    return readHead(filename);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, DISK_IO));
+        }
+    }
+
+    /**
+     * Open a file and read its beginning. The opened file stays readable even if it is deleted before it is sent.
+     *
+     * @param filename The name of the file.
+     * @return The file, its head is null if it doesn't exist.
+     * @throws IOException If the file can't be read.
+     */
+    private static Item readHead(String filename) throws IOException {
+        FileChannel channel = ServerUtils.openFile(filename);
+        if (channel == null) return new Item(filename, null, null, 0);
+        try {
+            long fileSize = channel.size();
+            ByteBuffer head = ByteBuffer.allocate((int) Math.min(fileSize, READ_AHEAD_SIZE));
+            while (head.hasRemaining()) {
+                if (channel.read(head, head.position()) == -1) throw new EOFException("The file was truncated.");
+            }
+            head.flip();
+            if (fileSize > head.limit()) return new Item(filename, head, channel, fileSize);
+            channel.close();
+            return new Item(filename, head, null, fileSize);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private String store(String filename, Path tempFile, byte[] digest) {
+        try {
+            return ServerUtils.commitFile(new String[]{"PUT", filename}, tempFile, digest, idMap, logged);
+        } catch (IOException e) {
+            System.out.println("Error storing the file: " + e.getMessage());
+            Metrics.error();
+            return ServerUtils.FAILED;
+        } finally {
+            ServerUtils.deleteTempFile(tempFile);
+        }
+    }
+
+    private String delete(String nameOrId, String key) {
+        try {
+            return ServerUtils.removeFile(new String[]{"DELETE", nameOrId, key}, idMap, logged);
+        } catch (IOException e) {
+            System.out.println("Error deleting the file: " + e.getMessage());
+            Metrics.error();
+            return ServerUtils.FAILED;
+        }
+    }
+
+    /**
+     * A file of a GET_BATCH with the part of its content that was read ahead.
+     *
+     * @param filename The name of the file.
+     * @param head     The beginning of the content or null if the file doesn't exist.
+     * @param rest     The opened file to send the rest of the content from or null if the head is the whole content.
+     * @param size     The size of the file.
+     */
+    public record Item(String filename, ByteBuffer head, FileChannel rest, long size) {
+    }
+}
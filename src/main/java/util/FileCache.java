@@ -0,0 +1,177 @@
+package util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Byte-bounded LRU cache of small, frequently requested files. The
+ * contents are kept in direct buffers outside the heap and handed out
+ * as read-only views, so they can be written to a channel directly.
+ * An evicted buffer is freed once no response still uses it.
+ */
+public class FileCache {
+
+    private final long capacity;
+    private final long maxEntrySize;
+    // Access order, the least recently used file comes first
+    private final LinkedHashMap<String, ByteBuffer> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    // Loads in progress by name, an invalidation of the name marks them, so content that raced with it isn't cached
+    private final Map<String, Load> loads = new HashMap<>();
+
+    private long size;
+
+    /**
+     * @param capacity     The maximum number of bytes held by the cache, 0 disables it.
+     * @param maxEntrySize The size of the largest file that is cached.
+     */
+    public FileCache(long capacity, long maxEntrySize) {
+        this.capacity = capacity;
+        this.maxEntrySize = Math.min(Math.min(maxEntrySize, capacity), Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param filename The name of the file.
+     * @return A read-only view of the content of the file or null if it isn't cached.
+     */
+    public ByteBuffer get(String filename) {
+        ByteBuffer content;
+        synchronized (this) {
+            content = entries.get(filename);
+        }
+        if (content == null) return null;
+        hits.increment();
+        return content.asReadOnlyBuffer();
+    }
+
+    /**
+     * @param fileSize The size of a file.
+     * @return Whether a file of the size is cached, larger files aren't worth opening for the cache.
+     */
+    public boolean fits(long fileSize) {
+        return capacity > 0 && fileSize <= maxEntrySize;
+    }
+
+    /**
+     * Read a file that wasn't found in the cache and cache it if it is small enough.
+     *
+     * @param filename The name of the file.
+     * @param file     The path of the file.
+     * @return A read-only view of the content of the file or null if it is too large to be cached.
+     * @throws IOException If the file can't be read.
+     */
+    public ByteBuffer load(String filename, Path file) throws IOException {
+        if (capacity <= 0) return null;
+
+        Load load;
+        long startVersion;
+        synchronized (this) {
+            load = loads.computeIfAbsent(filename, name -> new Load());
+            load.readers++;
+            startVersion = load.version;
+        }
+        ByteBuffer content = null;
+        boolean complete = false;
+        try {
+            long readStart = System.nanoTime();
+            try (FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.READ)) {
+                long fileSize = fileChannel.size();
+                if (fileSize > maxEntrySize) return null;
+
+                misses.increment();
+                content = ByteBuffer.allocateDirect((int) fileSize);
+                while (content.hasRemaining()) {
+                    if (fileChannel.read(content) == -1) throw new EOFException("The file was truncated: " + file);
+                }
+                content.flip();
+            }
+            Metrics.diskRead(readStart);
+            complete = true;
+            return content.asReadOnlyBuffer();
+        } finally {
+            synchronized (this) {
+                if (--load.readers == 0) loads.remove(filename);
+                if (complete && load.version == startVersion) {
+                    ByteBuffer previous = entries.put(filename, content);
+                    if (previous != null) size -= previous.capacity();
+                    size += content.capacity();
+                    evict();
+                }
+            }
+        }
+    }
+
+    /**
+     * Drop a file from the cache after it was replaced or deleted.
+     *
+     * @param filename The name of the file.
+     */
+    public synchronized void invalidate(String filename) {
+        Load load = loads.get(filename);
+        if (load != null) load.version++;
+        ByteBuffer previous = entries.remove(filename);
+        if (previous != null) size -= previous.capacity();
+    }
+
+    /**
+     * @return The hit ratio, the number of evictions and the bytes held, e.g. for sizing the cache.
+     */
+    public String stats() {
+        long hitCount = hits.sum();
+        long requests = hitCount + misses.sum();
+        double hitRatio = requests == 0 ? 0 : (double) hitCount / requests;
+        synchronized (this) {
+            return String.format("File cache: %d hits, %d misses (hit ratio %.3f), %d evictions, "
+                    + "%d files, %d of %d bytes", hitCount, requests - hitCount, hitRatio, evictions.sum(),
+                    entries.size(), size, capacity);
+        }
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    public synchronized long size() {
+        return size;
+    }
+
+    /**
+     * The loads of a name that are in progress.
+     */
+    private static final class Load {
+        int readers;
+        long version;
+    }
+
+    /**
+     * Remove the least recently used files until the cache fits its capacity.
+     */
+    private void evict() {
+        Iterator<Map.Entry<String, ByteBuffer>> iterator = entries.entrySet().iterator();
+        while (size > capacity && iterator.hasNext()) {
+            size -= iterator.next().getValue().capacity();
+            iterator.remove();
+            evictions.increment();
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package util;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.UserDefinedFileAttributeView;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/*
+ * Sorted in-memory catalog of the stored files with their size, time of
+ * the last modification and SHA-256 checksum, so LIST_PAGE and STAT are
+ * answered without touching the disk. It is built by a parallel scan of
+ * the file store when the server starts and kept up to date by every
+ * request that stores or deletes a file. The time of the last
+ * modification is the time the store got the name, which differs from
+ * the time of the content when it is shared. The checksum is kept in an
+ * extended attribute of the stored file, so the scan finds it again.
+ * Uploads only compute it when the store needs the digest anyway, the
+ * other files get it in the background once a STAT asks for it. On file
+ * systems without extended attributes it is computed again after a
+ * restart.
+ */
+public class FileCatalog {
+
+    private static final String CHECKSUM_ATTRIBUTE = "fileserver.sha256";
+
+    private final ConcurrentSkipListMap<String, Entry> entries = new ConcurrentSkipListMap<>();
+    private final FileStore store;
+
+    private FileCatalog(FileStore store) {
+        this.store = store;
+    }
+
+    /**
+     * Build the catalog of all files of a store. The directories are read and the files are inspected in parallel.
+     *
+     * @param store The file store.
+     * @return The catalog.
+     * @throws IOException If the store can't be read.
+     */
+    public static FileCatalog scan(FileStore store) throws IOException {
+        FileCatalog catalog = new FileCatalog(store);
+        try {
+            store.forEach((filename, path) -> {
+                try {
+                    catalog.put(filename, path, store.digest(filename));
+                } catch (NoSuchFileException e) {
+                    // Deleted while the server starts
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return catalog;
+    }
+
+    /**
+     * Add or replace the entry of a stored file.
+     *
+     * @param filename The name of the file.
+     * @param path     The path of the content of the file.
+     * @param checksum The hex encoded SHA-256 digest of the content or null to read it from the file.
+     * @throws IOException If the attributes of the file can't be read.
+     */
+    public void put(String filename, Path path, String checksum) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        if (checksum == null) checksum = readChecksum(path);
+        entries.put(filename, new Entry(attributes.size(), store.modified(filename, attributes), checksum));
+    }
+
+    /**
+     * Add the checksum to the entry of a file that had none.
+     *
+     * @param filename The name of the file.
+     * @param entry    The entry the checksum was computed for, a replaced entry is left as it is.
+     * @param checksum The hex encoded SHA-256 digest of the content.
+     */
+    public void putChecksum(String filename, Entry entry, String checksum) {
+        entries.replace(filename, entry, new Entry(entry.size(), entry.modified(), checksum));
+    }
+
+    /**
+     * @param filename The name of a deleted file.
+     */
+    public void remove(String filename) {
+        entries.remove(filename);
+    }
+
+    /**
+     * @param filename The name of the file.
+     * @return The entry of the file or null if it isn't stored.
+     */
+    public Entry get(String filename) {
+        return entries.get(filename);
+    }
+
+    /**
+     * List the files whose names start with a prefix in the order of their names.
+     *
+     * @param prefix The beginning of the names, an empty prefix lists all files.
+     * @param after  The name after which the list starts, the last name of the previous page, or null.
+     * @param limit  The maximum number of files.
+     * @return The names and entries of the files.
+     */
+    public List<Map.Entry<String, Entry>> list(String prefix, String after, int limit) {
+        Map<String, Entry> tail = after != null && after.compareTo(prefix) >= 0
+                ? entries.tailMap(after, false) : entries.tailMap(prefix, true);
+        List<Map.Entry<String, Entry>> files = new ArrayList<>();
+        for (Map.Entry<String, Entry> file : tail.entrySet()) {
+            if (!file.getKey().startsWith(prefix) || files.size() >= limit) break;
+            files.add(file);
+        }
+        return files;
+    }
+
+    /**
+     * @return The number of files in the catalog.
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Remember the checksum of an upload in an extended attribute of its file, which moves with the file into the
+     * store. File systems without extended attributes are skipped.
+     *
+     * @param file     The file.
+     * @param checksum The hex encoded SHA-256 digest of the content.
+     */
+    public static void writeChecksum(Path file, String checksum) {
+        UserDefinedFileAttributeView view = Files.getFileAttributeView(file, UserDefinedFileAttributeView.class);
+        if (view == null) return;
+        try {
+            view.write(CHECKSUM_ATTRIBUTE, StandardCharsets.US_ASCII.encode(checksum));
+        } catch (IOException | UnsupportedOperationException e) {
+            // The checksum stays unknown
+        }
+    }
+
+    /**
+     * @return The checksum stored with the file or null if it has none.
+     */
+    private static String readChecksum(Path file) {
+        UserDefinedFileAttributeView view = Files.getFileAttributeView(file, UserDefinedFileAttributeView.class);
+        if (view == null) return null;
+        try {
+            ByteBuffer value = ByteBuffer.allocate(64);
+            view.read(CHECKSUM_ATTRIBUTE, value);
+            return StandardCharsets.US_ASCII.decode(value.flip()).toString();
+        } catch (IOException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * The metadata of a stored file.
+     *
+     * @param size     The size in bytes.
+     * @param modified The time of the last modification in milliseconds since the epoch.
+     * @param checksum The hex encoded SHA-256 digest of the content or null if it is unknown.
+     */
+    public record Entry(long size, long modified, String checksum) {
+    }
+}
@@ -0,0 +1,142 @@
+package util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.function.BiConsumer;
+
+/*
+ * Storage of the file contents behind ServerUtils. The implementation
+ * is selected with the "storage.mode" property: "plain" keeps every
+ * file under its name in the data directory, "sharded" spreads the
+ * files over a tree of directories and "dedup" keeps identical contents
+ * only once.
+ */
+public interface FileStore extends Closeable {
+
+    /**
+     * @param filename The name of the file.
+     * @return The path of the content of the file or null if it doesn't exist.
+     */
+    Path find(String filename);
+
+    /**
+     * Move a completely received upload into the store. It returns once the content and the name of the file are on
+     * the disk as far as the "storage.sync" mode asks for it.
+     *
+     * @param filename The name of the file.
+     * @param tempFile The temporary file holding the uploaded data, it may be left behind for the caller to delete.
+     * @param digest   The digest of the content computed while it was received or null if it wasn't computed.
+     * @return False if a file with the name already exists.
+     * @throws IOException If the file can't be stored.
+     */
+    boolean add(String filename, Path tempFile, byte[] digest) throws IOException;
+
+    /**
+     * Store a file whose content is already stored under another name, without receiving it again.
+     *
+     * @param filename The name of the file.
+     * @param digest   The hex encoded SHA-256 digest of the content.
+     * @return False if the content isn't stored or the store doesn't know contents by their digest.
+     * @throws IOException If the file can't be stored.
+     */
+    boolean link(String filename, String digest) throws IOException;
+
+    /**
+     * @param filename The name of the file.
+     * @return False if the file doesn't exist.
+     * @throws IOException If the change can't be persisted.
+     */
+    boolean remove(String filename) throws IOException;
+
+    /**
+     * Call an action for every stored file. Stores with many directories read them in parallel, so the action may be
+     * called from several threads at once.
+     *
+     * @param action The action, called with the name of the file and the path of its content.
+     * @throws IOException If the store can't be read.
+     */
+    void forEach(BiConsumer<String, Path> action) throws IOException;
+
+    /**
+     * @param filename The name of the file.
+     * @return The hex encoded SHA-256 digest of the content or null if the store doesn't know contents by their digest.
+     */
+    default String digest(String filename) {
+        return null;
+    }
+
+    /**
+     * @return Whether the store identifies contents by their digest, so uploads compute it while they are received.
+     */
+    default boolean usesDigests() {
+        return false;
+    }
+
+    /**
+     * @param digest The hex encoded SHA-256 digest of a content.
+     * @return The path of the content or null if it isn't stored or the store doesn't know contents by their digest.
+     */
+    default Path content(String digest) {
+        return null;
+    }
+
+    /**
+     * @param filename   The name of the file.
+     * @param attributes The attributes of the content of the file.
+     * @return The time the file was stored in milliseconds since the epoch.
+     */
+    default long modified(String filename, BasicFileAttributes attributes) {
+        return attributes.lastModifiedTime().toMillis();
+    }
+
+    /**
+     * @return The SHA-256 digest that identifies contents, computed while an upload is received.
+     */
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform supports SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @param file The file.
+     * @return The SHA-256 digest of the content of the file.
+     * @throws IOException If the file can't be read.
+     */
+    static byte[] digestOf(Path file) throws IOException {
+        MessageDigest digest = newDigest();
+        try (InputStream input = new DigestInputStream(Files.newInputStream(file), digest)) {
+            input.transferTo(OutputStream.nullOutputStream());
+        }
+        return digest.digest();
+    }
+
+    /**
+     * Open the store.
+     *
+     * @param mode            The name of the mode, "plain", "sharded" or "dedup".
+     * @param dataDirectory   The directory of the stored files.
+     * @param configDirectory The directory of the metadata of the store.
+     * @param sync            The durability of the stored files.
+     * @return The store.
+     * @throws IOException If the metadata of the store can't be restored.
+     */
+    static FileStore open(String mode, Path dataDirectory, Path configDirectory, FileSync sync) throws IOException {
+        return switch (mode) {
+            case "sharded" -> new ShardedFileStore(dataDirectory, sync);
+            case "dedup" -> new DedupFileStore(dataDirectory, configDirectory.resolve("blobs"), sync);
+            default -> new PlainFileStore(dataDirectory, sync);
+        };
+    }
+}
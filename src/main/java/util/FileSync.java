@@ -0,0 +1,156 @@
+package util;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * Durability of the stored files, selected with the "storage.sync"
+ * property. With "none" an upload is acknowledged once it is moved into
+ * the store and the OS writes it back later. With "file" the content of
+ * every upload and the directories holding it are fsynced right after
+ * it is moved into the store. With "group" the uploads are handed to a
+ * background flusher, which fsyncs all files that arrived since its
+ * last pass and each of their directories once, and the waiting uploads
+ * continue when the pass that covers them has finished, so many small
+ * uploads share the cost of the fsyncs. The file store syncs a file
+ * before the id of the file is logged, so a durable id never points to
+ * a file that a crash could take away.
+ */
+public class FileSync {
+
+    private final String mode;
+    private final Path root;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition pending = lock.newCondition();
+    private final Condition passDone = lock.newCondition();
+    // The files waiting for the next pass of the flusher
+    private Pass next = new Pass();
+
+    /**
+     * @param mode The durability mode, "none", "file" or "group".
+     * @param root The data directory, the directories from a stored file up to it hold the name of the file.
+     */
+    public FileSync(String mode, Path root) {
+        this.mode = mode;
+        this.root = root.toAbsolutePath();
+        if (!mode.equals("group")) return;
+        Thread flusher = new Thread(this::flushLoop, "file-sync");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Wait until the stored files and their names are on the disk, as far as the mode asks for it. A file that was
+     * deleted in the meantime is skipped.
+     *
+     * @param files The paths of the stored files.
+     * @throws IOException If a file or directory can't be fsynced.
+     */
+    public void sync(Collection<Path> files) throws IOException {
+        if (files.isEmpty()) return;
+        switch (mode) {
+            case "file" -> force(files);
+            case "group" -> awaitPass(files);
+            default -> {
+            }
+        }
+    }
+
+    /**
+     * Queue the files for the next pass of the flusher and wait until it has finished.
+     */
+    private void awaitPass(Collection<Path> files) throws IOException {
+        Pass pass;
+        lock.lock();
+        try {
+            pass = next;
+            pass.files.addAll(files);
+            pending.signal();
+            while (!pass.done) passDone.awaitUninterruptibly();
+        } finally {
+            lock.unlock();
+        }
+        if (pass.failure != null) throw new IOException("The files couldn't be synced: " + pass.failure.getMessage());
+    }
+
+    /**
+     * Take the queued files one pass after another, the files that arrive during a pass go into the next one.
+     */
+    private void flushLoop() {
+        while (true) {
+            Pass pass;
+            lock.lock();
+            try {
+                while (next.files.isEmpty()) pending.awaitUninterruptibly();
+                pass = next;
+                next = new Pass();
+            } finally {
+                lock.unlock();
+            }
+
+            try {
+                force(pass.files);
+            } catch (IOException e) {
+                System.out.println("Error syncing the stored files: " + e.getMessage());
+                Metrics.error();
+                pass.failure = e;
+            }
+
+            lock.lock();
+            try {
+                pass.done = true;
+                passDone.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Fsync the files and then each of their directories up to the data directory once, which makes the new names
+     * durable, including the names of directories that were created for them.
+     */
+    private void force(Collection<Path> files) throws IOException {
+        long start = System.nanoTime();
+        Set<Path> directories = new LinkedHashSet<>();
+        for (Path file : files) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                channel.force(true);
+            } catch (NoSuchFileException e) {
+                // Deleted since it was stored, there is nothing left to keep
+                continue;
+            }
+            Path directory = file.toAbsolutePath().getParent();
+            while (directory != null && directory.startsWith(root) && directories.add(directory)) {
+                directory = directory.getParent();
+            }
+        }
+        for (Path directory : directories) {
+            try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+                channel.force(true);
+            } catch (NoSuchFileException e) {
+                // An empty shard directory may be removed with its last file
+            }
+        }
+        Metrics.diskWrite(System.nanoTime() - start);
+    }
+
+    /**
+     * The files fsynced together by one pass of the flusher.
+     */
+    private static class Pass {
+        final List<Path> files = new ArrayList<>();
+        boolean done;
+        IOException failure;
+    }
+}
@@ -0,0 +1,86 @@
+package util;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/*
+ * Id index on the heap, backed by a concurrent hashmap. The snapshot
+ * is a checksummed list of id and filename pairs.
+ */
+public class HashIdIndex implements IdIndex {
+
+    private final ConcurrentHashMap<String, String> map = new ConcurrentHashMap<>();
+
+    @Override
+    public String get(String id) {
+        return map.get(id);
+    }
+
+    @Override
+    public String put(String id, String filename) {
+        return map.put(id, filename);
+    }
+
+    @Override
+    public String remove(String id) {
+        return map.remove(id);
+    }
+
+    @Override
+    public int size() {
+        return map.size();
+    }
+
+    @Override
+    public void forEach(BiConsumer<String, String> action) {
+        map.forEach(action);
+    }
+
+    @Override
+    public byte type() {
+        return HASH;
+    }
+
+    @Override
+    public void writeSnapshot(FileChannel channel) throws IOException {
+        // Entries may change while they are written, the log repairs that on recovery
+        List<Map.Entry<String, String>> entries = new ArrayList<>(map.entrySet());
+
+        CRC32C checksum = new CRC32C();
+        OutputStream channelOutput = Channels.newOutputStream(channel);
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(
+                new CheckedOutputStream(channelOutput, checksum)));
+        output.writeInt(entries.size());
+        for (Map.Entry<String, String> entry : entries) {
+            output.writeUTF(entry.getKey());
+            output.writeUTF(entry.getValue());
+        }
+        output.flush();
+        new DataOutputStream(channelOutput).writeInt((int) checksum.getValue());
+    }
+
+    @Override
+    public void readSnapshot(FileChannel channel) throws IOException {
+        map.clear();
+        CRC32C checksum = new CRC32C();
+        DataInputStream input = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+        DataInputStream checked = new DataInputStream(new CheckedInputStream(input, checksum));
+
+        int size = checked.readInt();
+        for (int i = 0; i < size; i++) {
+            map.put(checked.readUTF(), checked.readUTF());
+        }
+        if (input.readInt() != (int) checksum.getValue()) {
+            throw new IOException("The id map snapshot is damaged.");
+        }
+    }
+}
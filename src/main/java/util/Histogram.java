@@ -0,0 +1,104 @@
+package util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Log-linear histogram of positive values like latencies in the spirit
+ * of HdrHistogram. Values below 128 are counted exactly, larger values
+ * in buckets of 64 per power of two, so every percentile is within
+ * 1/64 of the recorded value. Recording is thread-safe and doesn't
+ * allocate.
+ */
+public class Histogram {
+
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int LINEAR_LIMIT = 2 * SUB_BUCKETS;
+    private static final int BUCKETS = LINEAR_LIMIT + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+
+    /**
+     * @param value The value to record, negative values are recorded as 0.
+     */
+    public void record(long value) {
+        long clamped = Math.max(value, 0);
+        counts.incrementAndGet(indexOf(clamped));
+        total.increment();
+        sum.add(clamped);
+    }
+
+    /**
+     * Add all values of another histogram to this one.
+     *
+     * @param other The other histogram.
+     */
+    public void add(Histogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            long count = other.counts.get(i);
+            if (count != 0) counts.addAndGet(i, count);
+        }
+        total.add(other.total.sum());
+        sum.add(other.sum.sum());
+    }
+
+    /**
+     * @return The number of recorded values.
+     */
+    public long count() {
+        return total.sum();
+    }
+
+    /**
+     * @return The mean of the recorded values or 0 if there are none.
+     */
+    public double mean() {
+        long count = total.sum();
+        return count == 0 ? 0 : (double) sum.sum() / count;
+    }
+
+    /**
+     * @param percentile The percentile between 0 and 100, e.g. 99.9.
+     * @return The highest value in the bucket that contains the percentile or 0 if no value was recorded.
+     */
+    public long percentile(double percentile) {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) count += counts.get(i);
+        if (count == 0) return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) return highestValueOf(i);
+        }
+        return highestValueOf(BUCKETS - 1);
+    }
+
+    /**
+     * @return The highest recorded value, rounded up to the end of its bucket.
+     */
+    public long max() {
+        for (int i = BUCKETS - 1; i >= 0; i--) {
+            if (counts.get(i) != 0) return highestValueOf(i);
+        }
+        return 0;
+    }
+
+    private static int indexOf(long value) {
+        if (value < LINEAR_LIMIT) return (int) value;
+        // Shift the value so that the remaining bits select one of the sub-buckets of its power of two
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return LINEAR_LIMIT + (shift - 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    private static long highestValueOf(int index) {
+        if (index < LINEAR_LIMIT) return index;
+        int shift = (index - LINEAR_LIMIT) / SUB_BUCKETS + 1;
+        long subBucket = (index - LINEAR_LIMIT) % SUB_BUCKETS + SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,58 @@
+package util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/*
+ * Generates unique, increasing file ids without locking. An id is the
+ * current time in milliseconds shifted left by SEQUENCE_BITS plus a
+ * sequence number, so ids stay sortable by creation time and are always
+ * greater than the plain millisecond ids of older versions.
+ */
+public class IdGenerator {
+
+    // Allows about a million ids per millisecond before ids are taken from the next millisecond
+    static final int SEQUENCE_BITS = 20;
+
+    private final AtomicLong lastId;
+    private final LongSupplier clock;
+
+    /**
+     * @param highestId The highest id that was handed out before, e.g. the highest id in the id map.
+     */
+    public IdGenerator(long highestId) {
+        this(highestId, System::currentTimeMillis);
+    }
+
+    /**
+     * @param highestId The highest id that was handed out before.
+     * @param clock     The current time in milliseconds, a test can let it go back.
+     */
+    IdGenerator(long highestId, LongSupplier clock) {
+        this.lastId = new AtomicLong(highestId);
+        this.clock = clock;
+    }
+
+    /**
+     * Create a new id. The id is greater than every id created before, even if the clock goes back or more ids than
+     * the sequence can hold are requested in the same millisecond.
+     *
+     * @return The new id.
+     */
+    public long next() {
+        long timestamp = clock.getAsLong() << SEQUENCE_BITS;
+        return lastId.updateAndGet(last -> Math.max(last + 1, timestamp));
+    }
+
+    /**
+     * @param id The id of a file.
+     * @return The id as long or 0 if it isn't a positive number.
+     */
+    static long parse(String id) {
+        try {
+            return Math.max(Long.parseLong(id), 0);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package util;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.function.BiConsumer;
+
+/*
+ * Storage of the id to filename mapping behind the id map. The
+ * implementation is selected with the "map.index" property.
+ */
+public interface IdIndex {
+
+    byte HASH = 1;
+    byte OFF_HEAP = 2;
+
+    /**
+     * @param id The id of the file.
+     * @return The name of the file or null if the id is unknown.
+     */
+    String get(String id);
+
+    /**
+     * @param id       The id of the file.
+     * @param filename The name of the file.
+     * @return The previous name of the file or null if the id was unknown.
+     */
+    String put(String id, String filename);
+
+    /**
+     * @param id The id of the file.
+     * @return The name of the removed file or null if the id was unknown.
+     */
+    String remove(String id);
+
+    /**
+     * @return The number of ids.
+     */
+    int size();
+
+    /**
+     * Call the action for every id and filename. Changes made in the meantime may or may not be visited.
+     *
+     * @param action The action to call.
+     */
+    void forEach(BiConsumer<String, String> action);
+
+    /**
+     * @return The type of the index as stored in the snapshot.
+     */
+    byte type();
+
+    /**
+     * Write the content of the index to a snapshot, starting at the current position of the channel.
+     *
+     * @param channel The snapshot file.
+     * @throws IOException If an I/O error occurs.
+     */
+    void writeSnapshot(FileChannel channel) throws IOException;
+
+    /**
+     * Replace the content of the index with a snapshot, starting at the current position of the channel.
+     *
+     * @param channel The snapshot file.
+     * @throws IOException If an I/O error occurs or the snapshot is damaged.
+     */
+    void readSnapshot(FileChannel channel) throws IOException;
+
+    /**
+     * Create an empty index.
+     *
+     * @param type The type of the index.
+     * @return The index.
+     */
+    static IdIndex create(byte type) {
+        return switch (type) {
+            case HASH -> new HashIdIndex();
+            case OFF_HEAP -> new OffHeapIdIndex();
+            default -> throw new IllegalArgumentException("Unknown id index type: " + type);
+        };
+    }
+
+    /**
+     * Create an empty index.
+     *
+     * @param name The name of the index type, "hash" or "offheap".
+     * @return The index.
+     */
+    static IdIndex create(String name) {
+        return create(name.equals("offheap") ? OFF_HEAP : HASH);
+    }
+}
@@ -0,0 +1,163 @@
+package util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/*
+ * The map of file ids to file names. Lookups by id are served from the
+ * id index, lookups by name from a reverse index kept next to it, and
+ * every change is written to the id map log before it is acknowledged.
+ */
+public class IdMap implements Closeable {
+
+    private final IdIndex index;
+    private final IdMapLog log;
+    private final ConcurrentHashMap<String, String> idsByName = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListSet<String> sortedNames = new ConcurrentSkipListSet<>();
+    private final IdGenerator idGenerator;
+
+    /**
+     * Restore the map from its log, build the reverse index and continue the ids after the highest one.
+     *
+     * @param index The empty index that holds the map.
+     * @param log   The log the map is persisted in.
+     * @throws IOException If the log can't be read.
+     */
+    public IdMap(IdIndex index, IdMapLog log) throws IOException {
+        this.index = index;
+        this.log = log;
+        log.recover(index);
+        long[] highestId = new long[1];
+        index.forEach((id, filename) -> {
+            idsByName.put(filename, id);
+            sortedNames.add(filename);
+            highestId[0] = Math.max(highestId[0], IdGenerator.parse(id));
+        });
+        this.idGenerator = new IdGenerator(highestId[0]);
+    }
+
+    /**
+     * @return A new id that no other file has.
+     */
+    public String newId() {
+        return Long.toString(idGenerator.next());
+    }
+
+    /**
+     * @param id The id of the file.
+     * @return The name of the file or null if the id is unknown.
+     */
+    public String get(String id) {
+        return index.get(id);
+    }
+
+    /**
+     * @param filename The name of the file.
+     * @return The id of the file or null if the file has no id.
+     */
+    public String findId(String filename) {
+        return idsByName.get(filename);
+    }
+
+    /**
+     * Add a file id and persist the change. An id that still points to a file of the same name is replaced,
+     * because a filename is only reused after the old file was deleted.
+     *
+     * @param id       The id of the file.
+     * @param filename The name of the file.
+     * @throws IOException If the change can't be persisted.
+     */
+    public void put(String id, String filename) throws IOException {
+        awaitSync(putUnsynced(id, filename));
+    }
+
+    /**
+     * Add a file id and write the change to the log without waiting for the disk, so a caller holding the lock of
+     * the name can release it first.
+     *
+     * @param id       The id of the file.
+     * @param filename The name of the file.
+     * @return The sequence number to pass to awaitSync before the change is acknowledged.
+     * @throws IOException If the change can't be written.
+     */
+    public synchronized long putUnsynced(String id, String filename) throws IOException {
+        // Both directions change together
+        String staleId = idsByName.put(filename, id);
+        if (staleId != null) index.remove(staleId);
+        index.put(id, filename);
+        sortedNames.add(filename);
+        // The records are written in the order of the changes, so the log replays to the same map
+        if (staleId != null) log.appendRemove(staleId);
+        return log.appendPut(id, filename);
+    }
+
+    /**
+     * Remove a file id and persist the change.
+     *
+     * @param id The id of the file.
+     * @throws IOException If the change can't be persisted.
+     */
+    public void remove(String id) throws IOException {
+        awaitSync(removeUnsynced(id));
+    }
+
+    /**
+     * Remove a file id and write the change to the log without waiting for the disk, like putUnsynced.
+     *
+     * @param id The id of the file.
+     * @return The sequence number to pass to awaitSync or 0 if the id was unknown.
+     * @throws IOException If the change can't be written.
+     */
+    public synchronized long removeUnsynced(String id) throws IOException {
+        String filename = index.remove(id);
+        if (filename == null) return 0;
+        if (idsByName.remove(filename, id)) sortedNames.remove(filename);
+        return log.appendRemove(id);
+    }
+
+    /**
+     * Wait until the changes written so far are on the disk.
+     *
+     * @param sequence The sequence number returned for the last change of the caller, 0 returns right away.
+     * @throws IOException If the log can't be forced.
+     */
+    public void awaitSync(long sequence) throws IOException {
+        if (sequence == 0) return;
+        long persistStart = System.nanoTime();
+        log.awaitSync(sequence);
+        Metrics.idMapPersisted(persistStart);
+    }
+
+    /**
+     * List the files whose names start with the prefix in alphabetical order.
+     *
+     * @param prefix The prefix of the filenames, an empty prefix matches all files.
+     * @param limit  The maximum number of files to return.
+     * @return The ids of the files by filename.
+     */
+    public Map<String, String> listByPrefix(String prefix, int limit) {
+        Map<String, String> files = new LinkedHashMap<>();
+        for (String filename : sortedNames.tailSet(prefix)) {
+            if (!filename.startsWith(prefix) || files.size() >= limit) break;
+            String id = idsByName.get(filename);
+            if (id != null) files.put(filename, id);
+        }
+        return files;
+    }
+
+    /**
+     * @return The number of file ids.
+     */
+    public int size() {
+        return index.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        log.close();
+    }
+}
@@ -0,0 +1,455 @@
+package util;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+
+/*
+ * Write-ahead log of the id map. Every change is appended as a
+ * checksummed record to map-<generation>.log, concurrent writers share
+ * a single fsync (group commit). Batch records written by older versions
+ * are restored together or not at all. Once the log grows too large, a
+ * background thread switches to a new generation and writes the index
+ * to map.snapshot, so startup only loads the snapshot and replays the
+ * log tail.
+ */
+public class IdMapLog implements Closeable {
+
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+    private static final byte BATCH = 3;
+    private static final int SNAPSHOT_MAGIC = 0x49444d53;
+    private static final String SNAPSHOT_NAME = "map.snapshot";
+    private static final String LEGACY_MAP_NAME = "map.bin";
+
+    private final Path directory;
+    private final boolean groupCommit;
+    private final long compactSize;
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "id-map-compactor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final ReentrantLock syncLock = new ReentrantLock();
+    private final Condition syncDone = syncLock.newCondition();
+    private long synced;
+    private boolean syncing;
+
+    private IdIndex index;
+    private FileChannel channel;
+    private long generation;
+    private long appended;
+    private boolean compacting;
+
+    /**
+     * @param directory   The directory of the snapshot and the log files.
+     * @param groupCommit Whether a change is only acknowledged after it was fsynced.
+     * @param compactSize The size of the log in bytes that triggers a compaction.
+     */
+    public IdMapLog(Path directory, boolean groupCommit, long compactSize) {
+        this.directory = directory;
+        this.groupCommit = groupCommit;
+        this.compactSize = compactSize;
+    }
+
+    /**
+     * Restore the map from the snapshot and the logs written after it, then open the log for new changes.
+     * A map saved by older versions in map.bin is imported if there is no snapshot yet.
+     *
+     * @param index The empty index to fill. Later changes have to be reported to this log.
+     * @throws IOException If the snapshot can't be read or the log can't be opened.
+     */
+    public void recover(IdIndex index) throws IOException {
+        this.index = index;
+        boolean imported = false;
+
+        Path snapshot = directory.resolve(SNAPSHOT_NAME);
+        if (Files.exists(snapshot)) {
+            generation = readSnapshot(snapshot, index);
+        } else if (Files.exists(directory.resolve(LEGACY_MAP_NAME))) {
+            imported = importLegacyMap(directory.resolve(LEGACY_MAP_NAME), index);
+        }
+
+        for (long logGeneration : listLogGenerations()) {
+            if (logGeneration < generation) Files.deleteIfExists(logPath(logGeneration));
+            else {
+                replay(logPath(logGeneration), index);
+                generation = logGeneration;
+            }
+        }
+
+        channel = openLog(generation);
+        if (imported) compact();
+    }
+
+    /**
+     * Record that a file id was added.
+     *
+     * @param id       The id of the file.
+     * @param filename The name of the file.
+     * @throws IOException If the record can't be written.
+     */
+    public void logPut(String id, String filename) throws IOException {
+        awaitSync(appendPut(id, filename));
+    }
+
+    /**
+     * Record that a file id was removed.
+     *
+     * @param id The id of the file.
+     * @throws IOException If the record can't be written.
+     */
+    public void logRemove(String id) throws IOException {
+        awaitSync(appendRemove(id));
+    }
+
+    /**
+     * Write the record of an added file id without waiting for the disk, so it can be written while the change is
+     * applied to the map and the records end up in the order of the changes. Pass the result to awaitSync before
+     * acknowledging the change.
+     *
+     * @param id       The id of the file.
+     * @param filename The name of the file.
+     * @return The sequence number of the record.
+     * @throws IOException If the record can't be written.
+     */
+    public long appendPut(String id, String filename) throws IOException {
+        return append(encode(PUT, id, filename));
+    }
+
+    /**
+     * Write the record of a removed file id without waiting for the disk, like appendPut.
+     *
+     * @param id The id of the file.
+     * @return The sequence number of the record.
+     * @throws IOException If the record can't be written.
+     */
+    public long appendRemove(String id) throws IOException {
+        return append(encode(REMOVE, id, null));
+    }
+
+    /**
+     * Write a snapshot of the map and delete the logs it replaces.
+     *
+     * @throws IOException If the snapshot can't be written.
+     */
+    public void compact() throws IOException {
+        long snapshotGeneration;
+        synchronized (this) {
+            // Changes from now on go to the next generation and are replayed on top of the snapshot
+            rotate();
+            snapshotGeneration = generation;
+        }
+
+        try {
+            writeSnapshot(snapshotGeneration);
+            for (long logGeneration : listLogGenerations()) {
+                if (logGeneration < snapshotGeneration) Files.deleteIfExists(logPath(logGeneration));
+            }
+        } finally {
+            synchronized (this) {
+                compacting = false;
+            }
+        }
+    }
+
+    /**
+     * Compact the log so the next start is fast and close it.
+     *
+     * @throws IOException If the log can't be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        compactor.shutdown();
+        try {
+            compactor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        compact();
+        synchronized (this) {
+            channel.close();
+        }
+    }
+
+    /**
+     * Append a record to the current log file.
+     *
+     * @param record The encoded record.
+     * @return The sequence number of the record.
+     * @throws IOException If the record can't be written.
+     */
+    private synchronized long append(ByteBuffer record) throws IOException {
+        while (record.hasRemaining()) channel.write(record);
+        appended++;
+
+        if (!compacting && channel.size() >= compactSize) {
+            compacting = true;
+            compactor.execute(() -> {
+                try {
+                    compact();
+                } catch (IOException e) {
+                    System.out.println("Error compacting the id map: " + e.getMessage());
+                }
+            });
+        }
+        return appended;
+    }
+
+    /**
+     * Wait until the record with the given sequence number is on the disk. The first waiting thread forces the
+     * log for all records appended so far, the others wait for its result instead of forcing again.
+     *
+     * @param sequence The sequence number of the record.
+     * @throws IOException If the log can't be forced.
+     */
+    public void awaitSync(long sequence) throws IOException {
+        if (!groupCommit) return;
+
+        syncLock.lock();
+        try {
+            while (synced < sequence) {
+                if (syncing) {
+                    syncDone.awaitUninterruptibly();
+                    continue;
+                }
+
+                syncing = true;
+                long target = 0;
+                boolean forced = false;
+                // Never wait for the log while holding the sync lock, rotate() acquires them the other way round
+                syncLock.unlock();
+                try {
+                    FileChannel log;
+                    synchronized (this) {
+                        target = appended;
+                        log = channel;
+                    }
+                    log.force(false);
+                    forced = true;
+                } catch (ClosedChannelException e) {
+                    // The log was rotated in the meantime, which forces it before closing
+                    forced = true;
+                } finally {
+                    syncLock.lock();
+                    syncing = false;
+                    if (forced) synced = Math.max(synced, target);
+                    syncDone.signalAll();
+                }
+            }
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    /**
+     * Force and close the current log and continue with the next generation.
+     */
+    private synchronized void rotate() throws IOException {
+        channel.force(false);
+        channel.close();
+        long target = appended;
+
+        generation++;
+        channel = openLog(generation);
+
+        syncLock.lock();
+        try {
+            synced = Math.max(synced, target);
+            syncDone.signalAll();
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    /**
+     * Write the index to a temporary file and replace the snapshot with it atomically.
+     * The snapshot starts with a header that names the generation and the type of the index.
+     *
+     * @param snapshotGeneration The first log generation that has to be replayed on top of the snapshot.
+     */
+    private void writeSnapshot(long snapshotGeneration) throws IOException {
+        Path snapshot = directory.resolve(SNAPSHOT_NAME);
+        Path tempFile = directory.resolve(SNAPSHOT_NAME + ".tmp");
+
+        try (FileChannel snapshotChannel = FileChannel.open(tempFile, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.allocate(13).putInt(SNAPSHOT_MAGIC).putLong(snapshotGeneration)
+                    .put(index.type()).flip();
+            while (header.hasRemaining()) snapshotChannel.write(header);
+
+            // Entries may change while they are written, the logs of this and later generations repair that
+            index.writeSnapshot(snapshotChannel);
+            snapshotChannel.force(true);
+        }
+        Files.move(tempFile, snapshot, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Load the entries of a snapshot. A snapshot of another index type is copied into the given index.
+     *
+     * @return The first log generation that has to be replayed on top of the snapshot.
+     */
+    private static long readSnapshot(Path snapshot, IdIndex index) throws IOException {
+        try (FileChannel snapshotChannel = FileChannel.open(snapshot, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(13);
+            while (header.hasRemaining()) {
+                if (snapshotChannel.read(header) == -1) throw new IOException("Not an id map snapshot: " + snapshot);
+            }
+            header.flip();
+            if (header.getInt() != SNAPSHOT_MAGIC) throw new IOException("Not an id map snapshot: " + snapshot);
+            long snapshotGeneration = header.getLong();
+            byte type = header.get();
+
+            if (type == index.type()) {
+                index.readSnapshot(snapshotChannel);
+            } else {
+                IdIndex stored = IdIndex.create(type);
+                stored.readSnapshot(snapshotChannel);
+                stored.forEach(index::put);
+            }
+            return snapshotGeneration;
+        }
+    }
+
+    /**
+     * Import the serialized hashmap written by older versions.
+     *
+     * @return True if the map could be imported.
+     */
+    @SuppressWarnings("unchecked")
+    private static boolean importLegacyMap(Path legacyMap, IdIndex index) {
+        try (ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(
+                Files.newInputStream(legacyMap)))) {
+            Object obj = ois.readObject();
+            if (obj instanceof Map) ((Map<String, String>) obj).forEach(index::put);
+            return true;
+        } catch (IOException | ClassNotFoundException e) {
+            System.out.println("The old id map couldn't be imported: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Apply the records of a log file to the map. A damaged or incomplete record at the end of the file is the
+     * result of a crash during a write, so the file is truncated to the last complete record.
+     */
+    private static void replay(Path log, IdIndex index) throws IOException {
+        try (FileChannel logChannel = FileChannel.open(log, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            DataInputStream input = new DataInputStream(new BufferedInputStream(
+                    Channels.newInputStream(logChannel)));
+            long valid = 0;
+            CRC32C checksum = new CRC32C();
+
+            while (true) {
+                byte[] body;
+                int crc;
+                try {
+                    int length = input.readInt();
+                    // A record that would end behind the end of the file is damaged, batch records can be large
+                    if (length <= 0 || length > logChannel.size() - valid - 8) break;
+                    crc = input.readInt();
+                    body = new byte[length];
+                    input.readFully(body);
+                } catch (EOFException e) {
+                    break;
+                }
+
+                checksum.reset();
+                checksum.update(body);
+                if ((int) checksum.getValue() != crc) break;
+
+                apply(body, index);
+                valid += 8 + body.length;
+            }
+
+            if (valid < logChannel.size()) {
+                System.out.println("Dropping an incomplete record at the end of " + log.getFileName());
+                logChannel.truncate(valid);
+            }
+        }
+    }
+
+    private static void apply(byte[] body, IdIndex index) throws IOException {
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(body));
+        byte operation = input.readByte();
+        if (operation != BATCH) {
+            apply(operation, input, index);
+            return;
+        }
+        int count = input.readInt();
+        for (int i = 0; i < count; i++) apply(input.readByte(), input, index);
+    }
+
+    private static void apply(byte operation, DataInputStream input, IdIndex index) throws IOException {
+        String id = input.readUTF();
+        if (operation == PUT) index.put(id, input.readUTF());
+        else if (operation == REMOVE) index.remove(id);
+    }
+
+    /**
+     * Encode a record of a single change.
+     */
+    private static ByteBuffer encode(byte operation, String id, String filename) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream body = new DataOutputStream(bytes);
+        body.writeByte(operation);
+        body.writeUTF(id);
+        if (filename != null) body.writeUTF(filename);
+        return encode(bytes.toByteArray());
+    }
+
+    /**
+     * Encode a record as length, checksum and body.
+     */
+    private static ByteBuffer encode(byte[] bodyBytes) {
+        CRC32C checksum = new CRC32C();
+        checksum.update(bodyBytes);
+
+        ByteBuffer record = ByteBuffer.allocate(8 + bodyBytes.length);
+        record.putInt(bodyBytes.length).putInt((int) checksum.getValue()).put(bodyBytes);
+        return record.flip();
+    }
+
+    private FileChannel openLog(long logGeneration) throws IOException {
+        return FileChannel.open(logPath(logGeneration),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private Path logPath(long logGeneration) {
+        return directory.resolve("map-" + logGeneration + ".log");
+    }
+
+    /**
+     * @return The generations of the log files in the directory in ascending order.
+     */
+    private List<Long> listLogGenerations() throws IOException {
+        List<Long> generations = new ArrayList<>();
+        try (DirectoryStream<Path> logs = Files.newDirectoryStream(directory, "map-*.log")) {
+            for (Path log : logs) {
+                String name = log.getFileName().toString();
+                try {
+                    generations.add(Long.parseLong(name.substring(4, name.length() - 4)));
+                } catch (NumberFormatException e) {
+                    System.out.println("Ignoring unknown log file " + name);
+                }
+            }
+        }
+        generations.sort(null);
+        return generations;
+    }
+}
@@ -0,0 +1,229 @@
+package util;
+
+import javax.management.*;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Counters and latency histograms of the server. Recording only adds to
+ * striped counters and histogram buckets, so it doesn't allocate and
+ * threads don't contend on the request path. The values are computed
+ * on demand and exposed as attributes of the MBean "fileserver:type=Metrics"
+ * and on the admin port.
+ */
+public class Metrics {
+
+    public enum Command {
+        PUT, GET, DELETE, LIST, STAT, OTHER;
+
+        private final Histogram latency = new Histogram();
+        private final LongAdder failures = new LongAdder();
+
+        /**
+         * @param name The command of a request.
+         * @return The command or OTHER if it is unknown.
+         */
+        public static Command of(String name) {
+            return switch (name) {
+                case "PUT", "PUT_Z" -> PUT;
+                case "GET", "GET_Z" -> GET;
+                case "DELETE" -> DELETE;
+                case "LIST", "LIST_PAGE" -> LIST;
+                case "STAT" -> STAT;
+                default -> OTHER;
+            };
+        }
+    }
+
+    private static final LongAdder BYTES_IN = new LongAdder();
+    private static final LongAdder BYTES_OUT = new LongAdder();
+    private static final LongAdder ACCEPTED_CONNECTIONS = new LongAdder();
+    private static final LongAdder ACTIVE_CONNECTIONS = new LongAdder();
+    private static final LongAdder ERRORS = new LongAdder();
+    private static final Histogram ACCEPT_WAIT = new Histogram();
+    private static final Histogram DISK_READ = new Histogram();
+    private static final Histogram DISK_WRITE = new Histogram();
+    private static final Histogram ID_MAP_PERSIST = new Histogram();
+
+    /**
+     * Record a completed request.
+     *
+     * @param command  The command of the request.
+     * @param start    The time the request was received in nanoseconds.
+     * @param response The response to the client, everything except 200 counts as failure.
+     */
+    public static void request(Command command, long start, String response) {
+        command.latency.record(System.nanoTime() - start);
+        if (!response.startsWith("200")) command.failures.increment();
+    }
+
+    public static void bytesIn(long bytes) {
+        BYTES_IN.add(bytes);
+    }
+
+    public static void bytesOut(long bytes) {
+        BYTES_OUT.add(bytes);
+    }
+
+    /**
+     * Record that a connection was accepted.
+     *
+     * @param acceptTime The time the connection was accepted in nanoseconds.
+     */
+    public static void connectionOpened(long acceptTime) {
+        ACCEPT_WAIT.record(System.nanoTime() - acceptTime);
+        ACCEPTED_CONNECTIONS.increment();
+        ACTIVE_CONNECTIONS.increment();
+    }
+
+    public static void connectionClosed() {
+        ACTIVE_CONNECTIONS.decrement();
+    }
+
+    /**
+     * Count an error that was only reported in the log.
+     */
+    public static void error() {
+        ERRORS.increment();
+    }
+
+    /**
+     * @param start The time the file was opened for reading in nanoseconds.
+     */
+    public static void diskRead(long start) {
+        DISK_READ.record(System.nanoTime() - start);
+    }
+
+    /**
+     * @param nanos The time spent writing a chunk of an upload to the disk.
+     */
+    public static void diskWrite(long nanos) {
+        DISK_WRITE.record(nanos);
+    }
+
+    /**
+     * @param start The time the change of the id map was handed to the log in nanoseconds.
+     */
+    public static void idMapPersisted(long start) {
+        ID_MAP_PERSIST.record(System.nanoTime() - start);
+    }
+
+    /**
+     * Compute the current values. Latencies are given in microseconds.
+     *
+     * @return The values by name in a fixed order.
+     */
+    public static Map<String, Number> snapshot() {
+        Map<String, Number> values = new LinkedHashMap<>();
+        for (Command command : Command.values()) {
+            String prefix = command.name().toLowerCase();
+            values.put(prefix + ".requests", command.latency.count());
+            values.put(prefix + ".failures", command.failures.sum());
+            putLatency(values, prefix + ".latency", command.latency);
+        }
+        values.put("bytes.in", BYTES_IN.sum());
+        values.put("bytes.out", BYTES_OUT.sum());
+        values.put("connections.accepted", ACCEPTED_CONNECTIONS.sum());
+        values.put("connections.active", ACTIVE_CONNECTIONS.sum());
+        values.put("errors", ERRORS.sum());
+        values.put("requests.rejected", Admission.rejected());
+        values.put("transfers.active", Admission.activeTransfers());
+        putLatency(values, "accept.wait", ACCEPT_WAIT);
+        putLatency(values, "disk.read", DISK_READ);
+        putLatency(values, "disk.write", DISK_WRITE);
+        putLatency(values, "idmap.persist", ID_MAP_PERSIST);
+
+        FileCache cache = ServerUtils.getFileCache();
+        values.put("cache.hits", cache.hits());
+        values.put("cache.misses", cache.misses());
+        values.put("cache.evictions", cache.evictions());
+        values.put("cache.bytes", cache.size());
+
+        BufferPool buffers = BufferPool.heap();
+        values.put("buffers.bytes", buffers.allocated());
+        values.put("buffers.used", buffers.inUse());
+        values.put("buffers.waits", buffers.waits());
+        return values;
+    }
+
+    /**
+     * @return The current values as "[name] [value]" lines.
+     */
+    public static String report() {
+        StringBuilder report = new StringBuilder();
+        snapshot().forEach((name, value) -> report.append(name).append(' ').append(value).append('\n'));
+        return report.toString();
+    }
+
+    /**
+     * Register the MBean of the metrics with the platform MBean server, so they can be read with JConsole or any
+     * other JMX client.
+     */
+    public static void registerMBean() {
+        try {
+            ObjectName name = new ObjectName("fileserver:type=Metrics");
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (!server.isRegistered(name)) server.registerMBean(new MetricsMBean(), name);
+        } catch (JMException e) {
+            System.out.println("Error registering the metrics MBean: " + e.getMessage());
+        }
+    }
+
+    private static void putLatency(Map<String, Number> values, String prefix, Histogram histogram) {
+        values.put(prefix + ".count", histogram.count());
+        values.put(prefix + ".mean.us", Math.round(histogram.mean() / 1000));
+        values.put(prefix + ".p50.us", histogram.percentile(50) / 1000);
+        values.put(prefix + ".p99.us", histogram.percentile(99) / 1000);
+        values.put(prefix + ".p999.us", histogram.percentile(99.9) / 1000);
+        values.put(prefix + ".max.us", histogram.max() / 1000);
+    }
+
+    /**
+     * Read-only MBean with one attribute per value of the snapshot.
+     */
+    private static class MetricsMBean implements DynamicMBean {
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Number value = snapshot().get(attribute);
+            if (value == null) throw new AttributeNotFoundException(attribute);
+            return value.longValue();
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            Map<String, Number> values = snapshot();
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                Number value = values.get(attribute);
+                if (value != null) list.add(new Attribute(attribute, value.longValue()));
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("The metrics are read-only.");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) throws MBeanException {
+            throw new MBeanException(new UnsupportedOperationException(actionName));
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            MBeanAttributeInfo[] attributes = snapshot().keySet().stream()
+                    .map(name -> new MBeanAttributeInfo(name, "long", name, true, false, false))
+                    .toArray(MBeanAttributeInfo[]::new);
+            return new MBeanInfo(Metrics.class.getName(), "Metrics of the file server", attributes, null, null, null);
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package util;
+
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/*
+ * Striped read-write locks by filename. A request that changes a file
+ * (PUT, DELETE) holds the write lock of its name while it changes the
+ * file store and the id map together, a request that reads a file holds
+ * the read lock until it has opened the file. Requests on different
+ * files only wait for each other if their names fall into the same
+ * stripe, and the content of an opened file stays readable after it is
+ * deleted, so long downloads never block other requests.
+ */
+public class NameLocks {
+
+    private final ReentrantReadWriteLock[] stripes;
+
+    /**
+     * @param stripes The number of locks, rounded up to a power of two.
+     */
+    public NameLocks(int stripes) {
+        int size = Integer.highestOneBit(Math.max(1, stripes - 1)) << 1;
+        this.stripes = new ReentrantReadWriteLock[size];
+        for (int i = 0; i < size; i++) this.stripes[i] = new ReentrantReadWriteLock();
+    }
+
+    /**
+     * @param filename The name of a file.
+     * @return The lock of the stripe of the name.
+     */
+    public ReadWriteLock get(String filename) {
+        int hash = filename.hashCode();
+        // Spread the high bits, names often differ only at the end
+        return stripes[(hash ^ (hash >>> 16)) & (stripes.length - 1)];
+    }
+}
@@ -0,0 +1,363 @@
+package util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.BiConsumer;
+
+/*
+ * Compact id index for millions of files. The ids are kept as primitive
+ * longs in an open-addressing table outside the heap and the filenames
+ * in an append-only arena next to it. The snapshot is an image of both,
+ * so startup maps it into memory instead of deserializing it.
+ * Only numeric ids greater than zero can be stored.
+ */
+public class OffHeapIdIndex implements IdIndex {
+
+    // A slot holds the id and the offset of the filename in the arena
+    private static final int SLOT_SIZE = 12;
+    private static final long EMPTY = 0;
+    private static final long DELETED = -1;
+    private static final int MIN_CAPACITY = 1024;
+    private static final int MAX_CAPACITY = 1 << 27;
+    private static final int MIN_ARENA_SIZE = 64 * 1024;
+    private static final double MAX_LOAD = 0.6;
+
+    private final StampedLock lock = new StampedLock();
+
+    private ByteBuffer table;
+    private ByteBuffer arena;
+    private int capacity;
+    private int size;
+    private int usedSlots;
+    private int arenaEnd;
+    private long liveNameBytes;
+
+    public OffHeapIdIndex() {
+        this(ByteBuffer.allocateDirect(MIN_CAPACITY * SLOT_SIZE), ByteBuffer.allocateDirect(MIN_ARENA_SIZE));
+    }
+
+    private OffHeapIdIndex(ByteBuffer table, ByteBuffer arena) {
+        this.table = table;
+        this.arena = arena;
+        this.capacity = table.capacity() / SLOT_SIZE;
+    }
+
+    @Override
+    public String get(String id) {
+        long key = parseId(id);
+        if (key == EMPTY) return null;
+
+        // Lookups don't block each other, they are repeated under the lock if a change got in between
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                int slot = findSlot(key);
+                String filename = slot < 0 ? null : readName(slot);
+                if (lock.validate(stamp)) return filename;
+            } catch (RuntimeException e) {
+                // Inconsistent state read during a change
+            }
+        }
+
+        stamp = lock.readLock();
+        try {
+            int slot = findSlot(key);
+            return slot < 0 ? null : readName(slot);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public String put(String id, String filename) {
+        long key = parseId(id);
+        if (key == EMPTY) throw new IllegalArgumentException("The off-heap id index only stores numeric ids: " + id);
+        byte[] name = filename.getBytes(StandardCharsets.UTF_8);
+
+        long stamp = lock.writeLock();
+        try {
+            // Make room first, compacting the arena moves the slots
+            ensureArenaSpace(4 + name.length);
+
+            int slot = findSlot(key);
+            if (slot >= 0) {
+                String previous = readName(slot);
+                liveNameBytes -= 4 + arena.getInt(table.getInt(slot * SLOT_SIZE + 8));
+                table.putInt(slot * SLOT_SIZE + 8, appendName(name));
+                return previous;
+            }
+
+            if (usedSlots + 1 > capacity * MAX_LOAD) {
+                // Grow the table unless it is mostly filled with deleted slots
+                rebuild(size + 1 > capacity * MAX_LOAD / 2 ? capacity * 2 : capacity, arena.capacity());
+            }
+            insert(key, appendName(name));
+            return null;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public String remove(String id) {
+        long key = parseId(id);
+        if (key == EMPTY) return null;
+
+        long stamp = lock.writeLock();
+        try {
+            int slot = findSlot(key);
+            if (slot < 0) return null;
+
+            String previous = readName(slot);
+            liveNameBytes -= 4 + arena.getInt(table.getInt(slot * SLOT_SIZE + 8));
+            table.putLong(slot * SLOT_SIZE, DELETED);
+            size--;
+            return previous;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public int size() {
+        long stamp = lock.readLock();
+        try {
+            return size;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Call the action for every id and filename. Changes have to wait until all entries were visited.
+     *
+     * @param action The action to call.
+     */
+    @Override
+    public void forEach(BiConsumer<String, String> action) {
+        long stamp = lock.readLock();
+        try {
+            for (int slot = 0; slot < capacity; slot++) {
+                long key = table.getLong(slot * SLOT_SIZE);
+                if (key != EMPTY && key != DELETED) action.accept(Long.toString(key), readName(slot));
+            }
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public byte type() {
+        return OFF_HEAP;
+    }
+
+    /**
+     * Write a compacted image of the table and the arena without deleted entries. The file regions are mapped
+     * and filled directly, so no copy of the index is made on the heap. Changes only wait for the copy, not for the
+     * disk. The arena is followed by free space up to the end of the file, so the index can grow after it was read
+     * again without being rebuilt first.
+     *
+     * @param channel The snapshot file.
+     * @throws IOException If an I/O error occurs.
+     */
+    @Override
+    public void writeSnapshot(FileChannel channel) throws IOException {
+        MappedByteBuffer snapshotTable;
+        MappedByteBuffer snapshotArena;
+        long stamp = lock.readLock();
+        try {
+            int snapshotCapacity = capacityFor(size);
+            long position = channel.position();
+            ByteBuffer header = ByteBuffer.allocate(12).putInt(snapshotCapacity).putInt(size)
+                    .putInt((int) liveNameBytes).flip();
+            while (header.hasRemaining()) channel.write(header, position + header.position());
+
+            snapshotTable = channel.map(FileChannel.MapMode.READ_WRITE, position + 12,
+                    (long) snapshotCapacity * SLOT_SIZE);
+            // The free space isn't written, so most file systems don't allocate it on the disk
+            snapshotArena = channel.map(FileChannel.MapMode.READ_WRITE,
+                    position + 12 + (long) snapshotCapacity * SLOT_SIZE,
+                    Math.min(Integer.MAX_VALUE, Math.max(MIN_ARENA_SIZE, liveNameBytes * 2)));
+
+            OffHeapIdIndex snapshot = new OffHeapIdIndex(snapshotTable, snapshotArena);
+            copyTo(snapshot);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+        snapshotTable.force();
+        snapshotArena.force();
+        channel.position(channel.size());
+    }
+
+    /**
+     * Map the table and the arena of a snapshot. The mapping is private, so changes are never written back to the
+     * snapshot file. The pages are loaded on demand instead of reading the whole file at startup. The free space
+     * after the arena up to the end of the file is mapped as well, snapshots of older versions have none.
+     *
+     * @param channel The snapshot file, opened for reading and writing.
+     * @throws IOException If an I/O error occurs or the snapshot is damaged.
+     */
+    @Override
+    public void readSnapshot(FileChannel channel) throws IOException {
+        long position = channel.position();
+        ByteBuffer header = ByteBuffer.allocate(12);
+        while (header.hasRemaining()) {
+            if (channel.read(header, position + header.position()) == -1) {
+                throw new IOException("The id map snapshot is damaged.");
+            }
+        }
+        header.flip();
+        int snapshotCapacity = header.getInt();
+        int snapshotSize = header.getInt();
+        int arenaLength = header.getInt();
+        long arenaPosition = position + 12 + (long) snapshotCapacity * SLOT_SIZE;
+        if (Integer.bitCount(snapshotCapacity) != 1 || snapshotSize < 0 || arenaLength < 0
+                || arenaPosition + arenaLength > channel.size()) {
+            throw new IOException("The id map snapshot is damaged.");
+        }
+        long arenaSize = Math.min(Integer.MAX_VALUE, channel.size() - arenaPosition);
+
+        long stamp = lock.writeLock();
+        try {
+            table = channel.map(FileChannel.MapMode.PRIVATE, position + 12, (long) snapshotCapacity * SLOT_SIZE);
+            arena = channel.map(FileChannel.MapMode.PRIVATE, arenaPosition, arenaSize);
+            capacity = snapshotCapacity;
+            size = snapshotSize;
+            usedSlots = snapshotSize;
+            arenaEnd = arenaLength;
+            liveNameBytes = arenaLength;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * @return The position of the id in the table or -1 if it isn't there.
+     */
+    private int findSlot(long key) {
+        int mask = capacity - 1;
+        for (int slot = hash(key) & mask; ; slot = (slot + 1) & mask) {
+            long current = table.getLong(slot * SLOT_SIZE);
+            if (current == key) return slot;
+            if (current == EMPTY) return -1;
+        }
+    }
+
+    /**
+     * Put an id that isn't in the table yet into the first free slot.
+     */
+    private void insert(long key, int nameOffset) {
+        int mask = capacity - 1;
+        int slot = hash(key) & mask;
+        long current;
+        while ((current = table.getLong(slot * SLOT_SIZE)) != EMPTY && current != DELETED) {
+            slot = (slot + 1) & mask;
+        }
+        if (current == EMPTY) usedSlots++;
+        table.putLong(slot * SLOT_SIZE, key);
+        table.putInt(slot * SLOT_SIZE + 8, nameOffset);
+        size++;
+    }
+
+    /**
+     * Make sure the arena can take the given number of bytes. A full arena is compacted and grown, so that at most
+     * half of it is used afterwards.
+     */
+    private void ensureArenaSpace(int required) {
+        if (arenaEnd + required <= arena.capacity()) return;
+
+        long live = liveNameBytes + required;
+        if (live * 2 > Integer.MAX_VALUE) throw new IllegalStateException("The id index is full.");
+        rebuild(capacity, (int) Math.max(MIN_ARENA_SIZE, live * 2));
+    }
+
+    /**
+     * Append a filename to the arena, which must have enough space for it.
+     *
+     * @return The offset of the filename.
+     */
+    private int appendName(byte[] name) {
+        int required = 4 + name.length;
+        int offset = arenaEnd;
+        arena.putInt(offset, name.length);
+        arena.put(offset + 4, name);
+        arenaEnd += required;
+        liveNameBytes += required;
+        return offset;
+    }
+
+    private String readName(int slot) {
+        int offset = table.getInt(slot * SLOT_SIZE + 8);
+        int length = arena.getInt(offset);
+        // Guards optimistic reads against offsets of a concurrent change
+        if (length < 0 || offset + 4 + length > arena.capacity()) throw new IndexOutOfBoundsException(offset);
+        byte[] name = new byte[length];
+        arena.get(offset + 4, name);
+        return new String(name, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Move all entries into new buffers, which drops deleted slots and unused filenames.
+     */
+    private void rebuild(int newCapacity, int newArenaSize) {
+        if (newCapacity > MAX_CAPACITY) throw new IllegalStateException("The id index is full.");
+        OffHeapIdIndex rebuilt = new OffHeapIdIndex(ByteBuffer.allocateDirect(newCapacity * SLOT_SIZE),
+                ByteBuffer.allocateDirect(newArenaSize));
+        copyTo(rebuilt);
+
+        table = rebuilt.table;
+        arena = rebuilt.arena;
+        capacity = rebuilt.capacity;
+        size = rebuilt.size;
+        usedSlots = rebuilt.usedSlots;
+        arenaEnd = rebuilt.arenaEnd;
+        liveNameBytes = rebuilt.liveNameBytes;
+    }
+
+    /**
+     * Insert all entries into an empty index that has enough space for them.
+     */
+    private void copyTo(OffHeapIdIndex target) {
+        for (int slot = 0; slot < capacity; slot++) {
+            long key = table.getLong(slot * SLOT_SIZE);
+            if (key == EMPTY || key == DELETED) continue;
+
+            int offset = table.getInt(slot * SLOT_SIZE + 8);
+            int length = 4 + arena.getInt(offset);
+            target.arena.put(target.arenaEnd, arena, offset, length);
+            target.insert(key, target.arenaEnd);
+            target.arenaEnd += length;
+            target.liveNameBytes += length;
+        }
+    }
+
+    /**
+     * @return The smallest power of two table capacity that keeps the table half empty.
+     */
+    private static int capacityFor(int entries) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < entries * 2L) capacity <<= 1;
+        return capacity;
+    }
+
+    private static int hash(long key) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32));
+    }
+
+    /**
+     * @return The id as long or 0 if it isn't a positive number.
+     */
+    private static long parseId(String id) {
+        try {
+            long key = Long.parseLong(id);
+            return key > 0 ? key : EMPTY;
+        } catch (NumberFormatException e) {
+            return EMPTY;
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package util;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.TreeMap;
+import java.util.UUID;
+
+/*
+ * A download that is kept in the data folder of the client until it is
+ * complete. A small state file next to it records the size and the
+ * version of the file on the server and how many bytes from the
+ * beginning were received, so an interrupted download continues where it
+ * stopped instead of starting again from zero. The version tells a file
+ * that was replaced by one of the same size apart.
+ */
+public class PartialDownload {
+
+    private final Path file;
+    private final Path stateFile;
+    // Parts received behind a gap, by their start, e.g. chunks of a parallel download that finished early
+    private final TreeMap<Long, Long> receivedParts = new TreeMap<>();
+
+    private long fileSize = -1;
+    private long fileVersion = -1;
+    private long validLength;
+
+    /**
+     * Find the partial download of a file or prepare a new one.
+     *
+     * @param directory The data folder of the client.
+     * @param nameOrId  Either "BY_NAME" or "BY_ID".
+     * @param key       The filename or the id of the file on the server.
+     * @throws IOException If the state of an existing download can't be read.
+     */
+    public PartialDownload(String directory, String nameOrId, String key) throws IOException {
+        // The key may contain characters that aren't allowed in filenames
+        String name = ".download-" + UUID.nameUUIDFromBytes((nameOrId + " " + key).getBytes(StandardCharsets.UTF_8));
+        this.file = Paths.get(directory, name + ".part");
+        this.stateFile = Paths.get(directory, name + ".state");
+
+        if (Files.exists(stateFile) && Files.exists(file)) {
+            String[] state = Files.readString(stateFile).trim().split(" ");
+            try {
+                fileSize = Long.parseLong(state[0]);
+                validLength = Math.min(Long.parseLong(state[1]), Files.size(file));
+                fileVersion = Long.parseLong(state[2]);
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                fileSize = -1;
+                fileVersion = -1;
+                validLength = 0;
+            }
+        }
+    }
+
+    /**
+     * @return The number of bytes from the beginning of the file that were already received.
+     */
+    public synchronized long validLength() {
+        return validLength;
+    }
+
+    /**
+     * Start or continue the download. The received bytes are dropped if the file on the server has a different size
+     * or version, because it was replaced in the meantime.
+     *
+     * @param size    The size of the file on the server.
+     * @param version The version of the file on the server.
+     * @return The number of bytes that can be kept.
+     * @throws IOException If the state can't be written.
+     */
+    public synchronized long begin(long size, long version) throws IOException {
+        if (size != fileSize || version != fileVersion) {
+            fileSize = size;
+            fileVersion = version;
+            validLength = 0;
+            receivedParts.clear();
+        }
+        writeState();
+        return validLength;
+    }
+
+    /**
+     * @return A new channel to the partial file, every thread of a parallel download uses its own.
+     * @throws IOException If the file can't be opened.
+     */
+    public FileChannel openChannel() throws IOException {
+        return FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Record a part that was written completely. The state is updated once the part joins the received beginning of
+     * the file.
+     *
+     * @param offset The position of the part in the file.
+     * @param length The length of the part.
+     * @throws IOException If the state can't be written.
+     */
+    public synchronized void received(long offset, long length) throws IOException {
+        receivedParts.merge(offset, offset + length, Math::max);
+        long previous = validLength;
+        while (!receivedParts.isEmpty() && receivedParts.firstKey() <= validLength) {
+            validLength = Math.max(validLength, receivedParts.pollFirstEntry().getValue());
+        }
+        if (validLength != previous) writeState();
+    }
+
+    /**
+     * Move the complete file to its final name.
+     *
+     * @param target The path of the downloaded file.
+     * @throws IOException If the file can't be moved.
+     */
+    public void complete(Path target) throws IOException {
+        // A replaced file may have left bytes behind the end
+        try (FileChannel channel = openChannel()) {
+            channel.truncate(fileSize);
+        }
+        Files.move(file, target, StandardCopyOption.REPLACE_EXISTING);
+        Files.deleteIfExists(stateFile);
+    }
+
+    /**
+     * Delete the received bytes, e.g. because the file on the server changed.
+     *
+     * @throws IOException If the files can't be deleted.
+     */
+    public synchronized void discard() throws IOException {
+        Files.deleteIfExists(file);
+        Files.deleteIfExists(stateFile);
+        fileSize = -1;
+        fileVersion = -1;
+        validLength = 0;
+        receivedParts.clear();
+    }
+
+    private void writeState() throws IOException {
+        Files.writeString(stateFile, fileSize + " " + validLength + " " + fileVersion);
+    }
+}
@@ -0,0 +1,103 @@
+package util;
+
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.stream.Stream;
+
+/*
+ * Every file is stored under its name in the data directory.
+ */
+public class PlainFileStore implements FileStore {
+
+    private final Path directory;
+    private final FileSync sync;
+
+    /**
+     * @param directory The data directory.
+     */
+    public PlainFileStore(Path directory) {
+        this(directory, new FileSync("none", directory));
+    }
+
+    /**
+     * @param directory The data directory.
+     * @param sync      The durability of the stored files.
+     */
+    public PlainFileStore(Path directory, FileSync sync) {
+        this.directory = directory;
+        this.sync = sync;
+    }
+
+    @Override
+    public Path find(String filename) {
+        Path path = directory.resolve(filename);
+        return Files.isRegularFile(path) ? path : null;
+    }
+
+    @Override
+    public boolean add(String filename, Path tempFile, byte[] digest) throws IOException {
+        Path path = directory.resolve(filename);
+        if (!publish(tempFile, path)) return false;
+        sync.sync(List.of(path));
+        return true;
+    }
+
+    @Override
+    public boolean link(String filename, String digest) {
+        return false;
+    }
+
+    @Override
+    public boolean remove(String filename) throws IOException {
+        Path path = find(filename);
+        return path != null && Files.deleteIfExists(path);
+    }
+
+    /**
+     * Temporary files of uploads in progress and the directories of the other layouts start with a dot and are
+     * skipped.
+     */
+    @Override
+    public void forEach(BiConsumer<String, Path> action) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            files.parallel()
+                    .filter(file -> !file.getFileName().toString().startsWith(".") && Files.isRegularFile(file))
+                    .forEach(file -> action.accept(file.getFileName().toString(), file));
+        }
+    }
+
+    @Override
+    public void close() {
+    }
+
+    /**
+     * Publish an upload at its final path unless a file already exists there. The path is created as a hard link to
+     * the upload, which fails atomically if another file was created first, so no file is ever overwritten and a
+     * crash leaves at most the temporary file behind. The temporary file is left for the caller to delete.
+     *
+     * @param tempFile The temporary file holding the uploaded data.
+     * @param path     The final path.
+     * @return False if a file already exists at the path.
+     * @throws IOException If the file can't be published.
+     */
+    static boolean publish(Path tempFile, Path path) throws IOException {
+        try {
+            Files.createLink(path, tempFile);
+            return true;
+        } catch (FileAlreadyExistsException e) {
+            return false;
+        } catch (UnsupportedOperationException | FileSystemException e) {
+            // The file system has no hard links. The callers hold the lock of the name, so only another process
+            // could create the file between the check and the move
+            if (Files.exists(path)) return false;
+            Files.move(tempFile, path, StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.HexFormat;
+
+/*
+ * Proof that a client has the content it offers with PUT_HASH. The
+ * server answers the digest with a random nonce and a random range of
+ * the content, and the client has to send the SHA-256 digest of the
+ * nonce followed by the bytes of that range. Knowing the digest of a
+ * file is not enough to claim it, and since the server challenges every
+ * digest, known or not, the answer doesn't reveal whether it has the
+ * content either.
+ */
+public class PossessionChallenge {
+
+    // The largest range the client has to read and hash
+    private static final int PROOF_LENGTH = 64 * 1024;
+    private static final int NONCE_LENGTH = 16;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final byte[] nonce;
+    private final long offset;
+    private final long length;
+
+    private PossessionChallenge(byte[] nonce, long offset, long length) {
+        this.nonce = nonce;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    /**
+     * Create a challenge for a content of the given size.
+     *
+     * @param size The size of the content claimed by the client.
+     * @return The challenge.
+     */
+    public static PossessionChallenge create(long size) {
+        byte[] nonce = new byte[NONCE_LENGTH];
+        RANDOM.nextBytes(nonce);
+        long length = Math.min(size, PROOF_LENGTH);
+        long offset = size > length ? RANDOM.nextLong(size - length + 1) : 0;
+        return new PossessionChallenge(nonce, offset, length);
+    }
+
+    /**
+     * @param response The response of the server, "100 [nonce] [offset] [length]".
+     * @return The challenge sent by the server.
+     * @throws IOException If the response isn't a challenge.
+     */
+    public static PossessionChallenge parse(String response) throws IOException {
+        String[] tokens = response.split(" ");
+        try {
+            return new PossessionChallenge(HexFormat.of().parseHex(tokens[1]), Long.parseLong(tokens[2]),
+                    Long.parseLong(tokens[3]));
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+            throw new IOException("Invalid challenge: " + response);
+        }
+    }
+
+    /**
+     * @return The response that sends the challenge to the client.
+     */
+    public String response() {
+        return "100 " + HexFormat.of().formatHex(nonce) + " " + offset + " " + length;
+    }
+
+    /**
+     * Compute the answer to the challenge from a copy of the content.
+     *
+     * @param file The file holding the content.
+     * @return The hex encoded proof.
+     * @throws IOException If the file can't be read or is shorter than the range.
+     */
+    public String prove(Path file) throws IOException {
+        MessageDigest digest = FileStore.newDigest();
+        digest.update(nonce);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate((int) length);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, offset + buffer.position()) == -1) {
+                    throw new EOFException("The file is shorter than the challenge.");
+                }
+            }
+            digest.update(buffer.flip());
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * Check the answer of the client against the stored content.
+     *
+     * @param file  The stored content.
+     * @param proof The proof sent by the client.
+     * @return Whether the proof matches.
+     * @throws IOException If the content can't be read.
+     */
+    public boolean verify(Path file, String proof) throws IOException {
+        try {
+            return MessageDigest.isEqual(HexFormat.of().parseHex(prove(file)), HexFormat.of().parseHex(proof));
+        } catch (IllegalArgumentException e) {
+            return false;
+        } catch (EOFException e) {
+            // The stored content is shorter than the client claimed
+            return false;
+        }
+    }
+}
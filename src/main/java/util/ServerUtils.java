@@ -3,140 +3,710 @@ package util;
 import server.Server;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.HashMap;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.locks.Lock;
 
 public class ServerUtils {
 
+    // Response to an upload that failed while it was received, the connection is closed after it. It is also the
+    // status of a batch item that couldn't be stored or deleted, the connection stays usable then
+    public static final String FAILED = "500";
     private static final String FILE_PATH = SetupUtils.setUpFileStorage("/server/data/");
-    private static final String ID_MAP_PATH = SetupUtils.setUpFileStorage("/server/config/") + "map.bin";
+    private static final String ID_MAP_DIRECTORY = SetupUtils.setUpFileStorage("/server/config/");
+    private static final String TEMP_FILE_PREFIX = ".upload-";
+    private static final int LIST_LIMIT = 1000;
+    // Bytes sent by one transferTo call, so the bandwidth of the client is charged while the file goes out
+    private static final long TRANSFER_SLICE = 1024 * 1024;
+    private static final FileCache FILE_CACHE = new FileCache(SetupUtils.readLong("cache.size", 67108864),
+            SetupUtils.readLong("cache.max.file.size", 1048576));
+    private static final Map<String, ChunkedUpload> UPLOADS = new ConcurrentHashMap<>();
+    private static final int MAX_UPLOADS = (int) SetupUtils.readLong("upload.max.sessions", 1000);
+    private static final int MAX_CHUNKS = (int) SetupUtils.readLong("upload.max.chunks", 65536);
+    // Abandoned uploads are dropped in the background, so their files are closed even if no upload follows
+    private static final ScheduledExecutorService UPLOAD_EXPIRY = Executors.newSingleThreadScheduledExecutor(
+            runnable -> {
+                Thread thread = new Thread(runnable, "upload-expiry");
+                thread.setDaemon(true);
+                return thread;
+            });
+    private static final FileSync FILE_SYNC = new FileSync(SetupUtils.readProperty("storage.sync", "none"),
+            Paths.get(FILE_PATH));
+    private static final FileStore FILE_STORE = openFileStore();
+    private static final FileCatalog CATALOG = buildCatalog();
+    private static final NameLocks NAME_LOCKS = new NameLocks(1024);
+    // Checksums of stored files are computed one after another, in the order STAT asked for them
+    private static final ExecutorService CHECKSUMS = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "checksum");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final Set<String> PENDING_CHECKSUMS = ConcurrentHashMap.newKeySet();
+
+    static {
+        UPLOAD_EXPIRY.scheduleWithFixedDelay(ServerUtils::expireUploads, 10, 10, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Open the map that stores file names and their ids.
+     * It is restored from its snapshot and log in the config directory.
+     *
+     * @return The id map.
+     * @throws IOException If the id map can't be restored.
+     */
+    public static IdMap getIdMap() throws IOException {
+        boolean groupCommit = !SetupUtils.readProperty("map.log.sync", "group").equals("none");
+        long compactSize = SetupUtils.readLong("map.log.compact.size", 16777216);
+        IdIndex index = IdIndex.create(SetupUtils.readProperty("map.index", "hash"));
+        return new IdMap(index, new IdMapLog(Paths.get(ID_MAP_DIRECTORY), groupCommit, compactSize));
+    }
 
     /**
-     * The object representing the map is serialized and saved to the hard drive.
-     * It represents a hashmap that stores file names and their ids.
+     * Write a snapshot of the id map and close its log.
      *
-     * @param obj The id map to be saved.
+     * @param idMap The id map to be saved.
      */
-    public static void saveIdMap(Object obj) {
+    public static void saveIdMap(IdMap idMap) {
         try {
-            FileOutputStream fos = new FileOutputStream(ID_MAP_PATH);
-            BufferedOutputStream bos = new BufferedOutputStream(fos);
-            ObjectOutputStream oos = new ObjectOutputStream(bos);
-            oos.writeObject(obj);
-            oos.close();
+            idMap.close();
         } catch (IOException e) {
             e.printStackTrace();
+            Metrics.error();
         }
     }
 
     /**
-     * The id map is deserialized and returned.
+     * Close the file store, e.g. to write a snapshot of its metadata.
+     */
+    public static void closeFileStore() {
+        try {
+            FILE_STORE.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+            Metrics.error();
+        }
+    }
+
+    /**
+     * @return The cache of small files that are sent to clients.
+     */
+    public static FileCache getFileCache() {
+        return FILE_CACHE;
+    }
+
+    /**
+     * Send a file to the client.
+     * Small files are served from the file cache. Larger files are streamed from the disk to the socket with
+     * FileChannel.transferTo, so the size of the file doesn't affect the heap usage.
+     * If the client asks for compression with "GET_Z", the file is read from the disk and sent in compressed blocks.
      *
-     * @return The id map as hashmap or null if it doesn't exist.
+     * @param requestTokens The tokens of the request representing the user's request.
+     * @param output        The output stream to the client.
+     * @param channel       The channel of the socket to the client.
+     * @param idMap         The id map.
+     * @return The response to the client ("200 [version]" if the file was sent, followed by "deflate" if it was sent
+     * compressed, 404 if it wasn't).
      */
-    public static Object getIdMap() {
-        Object obj;
+    public static String getFile(String[] requestTokens, DataOutputStream output, WritableByteChannel channel,
+                                 IdMap idMap) {
+        String response = "";
+        try {
+            String filename = resolveFilename(requestTokens, idMap);
+            boolean compressed = isCompressedResponse(requestTokens, filename);
+            long version = fileVersion(filename);
+            ByteBuffer cached = compressed ? null : findCachedFile(filename);
+            response = sendFile(filename, version, cached, compressed, output, channel);
+        } catch (IOException e) {
+            System.out.println("Error reading the file: " + e.getMessage());
+            Metrics.error();
+        }
+
+        return response;
+    }
+
+    /**
+     * Send the status, the size and the content of a file or 404 if it doesn't exist.
+     *
+     * @param filename   The name of the file.
+     * @param version    The version of the file, looked up before the content.
+     * @param cached     The content of the file from the file cache or null to stream it from the disk.
+     * @param compressed Whether the file is sent in compressed blocks.
+     * @param output     The output stream to the client.
+     * @param channel    The channel of the socket to the client.
+     * @return The status that was sent.
+     * @throws IOException If an I/O error occurs.
+     */
+    private static String sendFile(String filename, long version, ByteBuffer cached, boolean compressed,
+                                   DataOutputStream output, WritableByteChannel channel) throws IOException {
+        FileChannel fileChannel = cached == null ? openFile(filename) : null;
+        if (cached != null) {
+            String response = "200 " + version;
+            output.writeUTF(response);
+            output.writeLong(cached.remaining());
+            output.flush();
+            Transfer.sent(cached.remaining());
+            Admission.throttle(cached.remaining());
+            while (cached.hasRemaining()) channel.write(cached);
+            return response;
+        }
+        if (fileChannel == null) {
+            output.writeUTF("404");
+            return "404";
+        }
+
+        try (fileChannel) {
+            long size = fileChannel.size();
+            String response = "200 " + version + (compressed ? " " + BlockCodec.NAME : "");
+            output.writeUTF(response);
+            output.writeLong(size);
+            output.flush();
+            Transfer.sent(size);
+            if (compressed) sendCompressed(fileChannel, 0, size, output);
+            else transferFully(fileChannel, 0, size, channel);
+            return response;
+        }
+    }
 
+    /**
+     * Send many files at once. The request is "GET_BATCH BY_NAME|BY_ID [count]" followed by the filenames or ids.
+     * The response is "200" and the count, followed by the response to a GET for every file without the version,
+     * batches aren't continued after an interruption. The next files are read from the disk while the current one
+     * is sent.
+     *
+     * @param requestTokens The tokens of the request.
+     * @param input         The input stream from the client.
+     * @param output        The output stream to the client.
+     * @param channel       The channel of the socket to the client.
+     * @param idMap         The id map.
+     * @return The response to the client.
+     * @throws IOException If an I/O error occurs or the count is invalid.
+     */
+    public static String getFiles(String[] requestTokens, DataInputStream input, DataOutputStream output,
+                                  WritableByteChannel channel, IdMap idMap) throws IOException {
+        FileBatch batch = new FileBatch(requestTokens.length < 3 ? "" : requestTokens[2], idMap);
         try {
-            FileInputStream fis = new FileInputStream(ID_MAP_PATH);
-            BufferedInputStream bis = new BufferedInputStream(fis);
-            ObjectInputStream ois = new ObjectInputStream(bis);
-            obj = ois.readObject();
-            ois.close();
-        } catch (IOException | ClassNotFoundException e) {
-            System.out.println("No id map found! Creating new one...");
-            obj = new HashMap<>();
-            saveIdMap(obj);
+            for (int i = 0; i < batch.size(); i++) batch.read(requestTokens[1], input.readUTF());
+
+            String response = "200 " + batch.size();
+            output.writeUTF(response);
+            while (batch.hasNext()) sendItem(batch.next(), output, channel);
+            return response;
+        } finally {
+            batch.close();
         }
+    }
 
-        return obj instanceof HashMap ? obj : new HashMap<>();
+    /**
+     * Send the status, the size and the content of a file of a GET_BATCH or 404 if it doesn't exist.
+     *
+     * @param item    The file with the part of its content that was read ahead.
+     * @param output  The output stream to the client.
+     * @param channel The channel of the socket to the client.
+     * @throws IOException If an I/O error occurs.
+     */
+    private static void sendItem(FileBatch.Item item, DataOutputStream output, WritableByteChannel channel)
+            throws IOException {
+        if (item.head() == null) {
+            output.writeUTF("404");
+            return;
+        }
+        try (FileChannel rest = item.rest()) {
+            output.writeUTF("200");
+            output.writeLong(item.size());
+            output.flush();
+            Transfer.sent(item.size());
+            ByteBuffer head = item.head();
+            Admission.throttle(head.remaining());
+            while (head.hasRemaining()) channel.write(head);
+            if (rest != null) transferFully(rest, head.limit(), item.size() - head.limit(), channel);
+        }
     }
 
     /**
-     * Send a file to the client.
+     * Write a whole region of a file to a blocking channel. A single transferTo call may send less than requested.
+     * Every slice is charged to the bandwidth of the client before it is sent.
+     *
+     * @param fileChannel The file to send.
+     * @param position    The position of the region in the file.
+     * @param size        The number of bytes to send.
+     * @param channel     The channel to the client.
+     * @throws IOException If an I/O error occurs.
+     */
+    private static void transferFully(FileChannel fileChannel, long position, long size, WritableByteChannel channel)
+            throws IOException {
+        long end = position + size;
+        while (position < end) {
+            long slice = Math.min(TRANSFER_SLICE, end - position);
+            Admission.throttle(slice);
+            long sliceEnd = position + slice;
+            while (position < sliceEnd) position += fileChannel.transferTo(position, sliceEnd - position, channel);
+        }
+    }
+
+    /**
+     * Write a region of a file to the client in compressed blocks.
+     *
+     * @param fileChannel The file to send.
+     * @param position    The position of the region in the file.
+     * @param size        The number of bytes to send.
+     * @param output      The output stream to the client.
+     * @throws IOException If an I/O error occurs.
+     */
+    private static void sendCompressed(FileChannel fileChannel, long position, long size, DataOutputStream output)
+            throws IOException {
+        BlockCodec codec = new BlockCodec();
+        try {
+            long end = position + size;
+            while (position < end) {
+                int length = (int) Math.min(BlockCodec.BLOCK_SIZE, end - position);
+                ByteBuffer frame = codec.encode(fileChannel, position, length);
+                Admission.throttle(frame.limit());
+                output.write(frame.array(), 0, frame.limit());
+                position += length;
+            }
+        } finally {
+            codec.close();
+        }
+    }
+
+    /**
+     * Check whether a file is sent compressed. The client asks for it with the "_Z" variant of GET and GET_RANGE,
+     * the server agrees unless compression is disabled or the file is already compressed.
+     *
+     * @param requestTokens The tokens of the request.
+     * @param filename      The name of the requested file.
+     * @return Whether the response contains compressed blocks.
+     */
+    public static boolean isCompressedResponse(String[] requestTokens, String filename) {
+        // Read on every request, so the setting can be changed while the server runs
+        boolean enabled = !SetupUtils.readProperty("server.compression", "deflate").equals("none");
+        return enabled && requestTokens[0].endsWith("_Z") && filename != null
+                && BlockCodec.isCompressible(filename);
+    }
+
+    /**
+     * @param requestTokens The tokens of a PUT or CHUNK_PUT request.
+     * @return Whether the client sends the content in compressed blocks, which it does with the "_Z" variant.
+     */
+    public static boolean isCompressedUpload(String[] requestTokens) {
+        return requestTokens[0].endsWith("_Z");
+    }
+
+    /**
+     * Receive a file from the client.
+     * The upload is streamed in fixed-size chunks into a temporary file, which replaces the
+     * target atomically once the whole file has arrived and is deleted if the transfer fails.
+     * With "PUT_Z" the content arrives in compressed blocks.
+     *
+     * @param requestTokens The tokens of the request representing the user's request.
+     * @param input         The input stream from the client.
+     * @param idMap         The id map.
+     * @return The response to the client (200 if the file was added, 403 if it wasn't or 500 if it couldn't be
+     * received).
+     */
+    public static String addFile(String[] requestTokens, DataInputStream input, IdMap idMap) {
+        String response = "";
+        Path tempFile = null;
+        try {
+            // Read in file size, file data
+            long size = input.readLong();
+            tempFile = createTempFile();
+            // The digest is computed while the data streams in, so the file isn't read again
+            MessageDigest digest = newDigest();
+
+            try (FileChannel fileChannel = FileChannel.open(tempFile, StandardOpenOption.WRITE)) {
+                if (isCompressedUpload(requestTokens)) receiveCompressed(input, fileChannel, 0, size, digest);
+                else Transfer.receive(input, fileChannel, 0, size, digest);
+            }
+            Transfer.received(size);
+
+            response = commitFile(requestTokens, tempFile, digest == null ? null : digest.digest(), idMap);
+        } catch (IOException e) {
+            System.out.println("Error receiving the file: " + e.getMessage());
+            Metrics.error();
+            response = FAILED;
+        } finally {
+            deleteTempFile(tempFile);
+        }
+
+        return response;
+    }
+
+    /**
+     * Receive many files at once. The request is "PUT_BATCH [count]" followed by the name (or "*"), the size and the
+     * content of every file. A file is stored while the next one is received, the ids of all files are persisted
+     * together once the last one is stored.
+     *
+     * @param requestTokens The tokens of the request.
+     * @param input         The input stream from the client.
+     * @param output        The output stream to the client.
+     * @param idMap         The id map.
+     * @return The response to the client, "200" and the count, followed by the response to a PUT for every file.
+     * @throws IOException If an I/O error occurs or the count is invalid.
+     */
+    public static String addFiles(String[] requestTokens, DataInputStream input, DataOutputStream output,
+                                  IdMap idMap) throws IOException {
+        FileBatch batch = new FileBatch(requestTokens.length < 2 ? "" : requestTokens[1], idMap);
+        try {
+            for (int i = 0; i < batch.size(); i++) {
+                String filename = input.readUTF();
+                long size = input.readLong();
+                Path tempFile = createTempFile();
+                try {
+                    MessageDigest digest = newDigest();
+                    try (FileChannel fileChannel = FileChannel.open(tempFile, StandardOpenOption.WRITE)) {
+                        Transfer.receive(input, fileChannel, 0, size, digest);
+                    }
+                    Transfer.received(size);
+                    batch.add(filename, tempFile, digest == null ? null : digest.digest());
+                } catch (IOException e) {
+                    deleteTempFile(tempFile);
+                    throw e;
+                }
+            }
+        } catch (IOException e) {
+            // The files stored before the failure keep their ids
+            batch.commit(null);
+            throw e;
+        }
+        return batch.commit(output);
+    }
+
+    /**
+     * Decode compressed blocks from the client into a region of a file.
+     *
+     * @param input       The input stream from the client.
+     * @param fileChannel The file to write to or null to discard the bytes.
+     * @param position    The position in the file to write to.
+     * @param size        The number of raw bytes to receive.
+     * @param digest      The digest to update with the raw bytes or null.
+     * @throws IOException If an I/O error occurs, a block is invalid or the stream ends too early.
+     */
+    private static void receiveCompressed(DataInputStream input, FileChannel fileChannel, long position, long size,
+                                          MessageDigest digest) throws IOException {
+        BlockCodec codec = new BlockCodec();
+        try {
+            byte[] block = codec.block();
+            long remaining = size;
+            while (remaining > 0) {
+                int length = codec.read(input, block, remaining);
+                Admission.throttle(length);
+                remaining -= length;
+                if (digest != null) digest.update(block, 0, length);
+                if (fileChannel == null) continue;
+
+                ByteBuffer buffer = ByteBuffer.wrap(block, 0, length);
+                long writeStart = System.nanoTime();
+                while (buffer.hasRemaining()) position += fileChannel.write(buffer, position);
+                Metrics.diskWrite(System.nanoTime() - writeStart);
+            }
+        } finally {
+            codec.close();
+        }
+    }
+
+    /**
+     * Send a part of a file to the client. The request is "GET_RANGE [offset]:[length] BY_NAME|BY_ID [key]", without
+     * a length the rest of the file is sent. The part is streamed with FileChannel.transferTo like a whole file or
+     * in compressed blocks for "GET_RANGE_Z".
      *
      * @param requestTokens The tokens of the request representing the user's request.
      * @param output        The output stream to the client.
+     * @param channel       The channel of the socket to the client.
      * @param idMap         The id map.
-     * @return The response to the client (200 if the file was sent, 404 if it wasn't).
+     * @return The response to the client (200, the size and the version of the whole file, followed by "deflate" if
+     * the part is compressed, the length and the content of the part, 404 if the file doesn't exist or 416 if the
+     * range is outside the file).
      */
-    public static String getFile(String[] requestTokens, DataOutputStream output, HashMap<String, String> idMap) {
-        String filename, response = "";
+    public static String getFileRange(String[] requestTokens, DataOutputStream output, WritableByteChannel channel,
+                                      IdMap idMap) {
+        String response = "404";
         try {
-            if (requestTokens[1].equals("BY_ID")) {
-                if (idMap.containsKey(requestTokens[2])) filename = idMap.get(requestTokens[2]);
-                else {
-                    response = "404";
+            String filename = findRangeFilename(requestTokens, idMap);
+            long version = fileVersion(filename);
+            FileChannel rangeChannel = openFile(filename);
+            if (rangeChannel == null) {
+                output.writeUTF(response);
+                return response;
+            }
+
+            try (FileChannel fileChannel = rangeChannel) {
+                long size = fileChannel.size();
+                long[] range = resolveRange(requestTokens[1], size);
+                if (range == null) {
+                    response = "416";
                     output.writeUTF(response);
                     return response;
                 }
-            } else {
-                filename = requestTokens[2];
-            }
-            String path = FILE_PATH + filename;
-            File f = new File(path);
 
-            if (f.exists() && !f.isDirectory()) {
-                response = "200";
+                boolean compressed = isCompressedResponse(requestTokens, filename);
+                response = "200 " + size + " " + version + (compressed ? " " + BlockCodec.NAME : "");
                 output.writeUTF(response);
-                byte[] fileBytes = Files.readAllBytes(Paths.get(path));
-                output.writeInt(fileBytes.length);
-                output.write(fileBytes);
+                output.writeLong(range[1]);
                 output.flush();
-            } else {
-                response = "404";
-                output.writeUTF(response);
+                Transfer.sent(range[1]);
+                if (compressed) sendCompressed(fileChannel, range[0], range[1], output);
+                else transferFully(fileChannel, range[0], range[1], channel);
             }
         } catch (IOException e) {
             System.out.println("Error reading the file: " + e.getMessage());
+            Metrics.error();
         }
-
         return response;
     }
 
     /**
-     * Receive a file from the client.
+     * Find the name of the file of a GET_RANGE request.
      *
-     * @param requestTokens The tokens of the request representing the user's request.
-     * @param input         The input stream from the client.
+     * @param requestTokens The tokens of the request.
      * @param idMap         The id map.
-     * @return The response to the client (200 if the file was added, 403 if it wasn't).
+     * @return The filename or null if the request was made by an unknown id or is incomplete.
      */
-    public static String addFile(String[] requestTokens, DataInputStream input, HashMap<String, String> idMap) {
-        String response = "";
+    public static String findRangeFilename(String[] requestTokens, IdMap idMap) {
+        if (requestTokens.length < 3) return null;
+        String[] target = requestTokens[2].split(" ", 2);
+        if (target.length < 2) return null;
+        return resolveFilename(new String[]{"GET", target[0], target[1]}, idMap);
+    }
+
+    /**
+     * Resolve the range of a GET_RANGE request.
+     *
+     * @param range    The range as "[offset]:[length]" or "[offset]:" for the rest of the file.
+     * @param fileSize The size of the file.
+     * @return The offset and the length, which is cut at the end of the file, or null if the range is invalid.
+     */
+    public static long[] resolveRange(String range, long fileSize) {
+        String[] parts = range.split(":", -1);
+        if (parts.length != 2) return null;
         try {
-            String filename;
-            String fileId = System.currentTimeMillis() + "";
+            long offset = Long.parseLong(parts[0]);
+            long length = parts[1].isEmpty() ? fileSize - offset : Long.parseLong(parts[1]);
+            if (offset < 0 || offset > fileSize || length < 0) return null;
+            return new long[]{offset, Math.min(length, fileSize - offset)};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
 
-            if (requestTokens[1].equals("*")) filename = fileId + ".dat";
-            else filename = requestTokens[1];
+    /**
+     * Start an upload that is sent in chunks, possibly over several connections at the same time.
+     * The request is "CHUNK_BEGIN [size] [chunk size] [filename]", the filename may be "*" like for PUT.
+     * Uploads that don't receive chunks for longer than the upload timeout are dropped.
+     *
+     * @param requestTokens The tokens of the request.
+     * @return The response to the client (200 and the id of the upload, 403 if the file already exists, the sizes
+     * are invalid or the file has more chunks than allowed or 429 if too many uploads are running).
+     * @throws IOException If the temporary file can't be created.
+     */
+    public static String beginUpload(String[] requestTokens) throws IOException {
+        if (requestTokens.length < 3) return "403";
+        String[] rest = requestTokens[2].split(" ", 2);
+        if (rest.length < 2) return "403";
 
-            String path = FILE_PATH + filename;
-            File f = new File(path);
+        long size;
+        int chunkSize;
+        try {
+            size = Long.parseLong(requestTokens[1]);
+            chunkSize = Integer.parseInt(rest[0]);
+        } catch (NumberFormatException e) {
+            return "403";
+        }
+        String filename = rest[1];
+        if (size < 0 || chunkSize <= 0 || (size - 1) / chunkSize >= MAX_CHUNKS) return "403";
+        if (!filename.equals("*") && findFile(filename) != null) return "403";
 
-            // Read in file size, file data
-            int size = input.readInt();
-            byte[] fileBytes = new byte[size];
-            input.readFully(fileBytes, 0, fileBytes.length);
+        // Counting and adding the upload together keeps the number of open temporary files at the limit
+        synchronized (UPLOADS) {
+            if (UPLOADS.size() >= MAX_UPLOADS) expireUploads();
+            if (UPLOADS.size() >= MAX_UPLOADS) return Admission.REJECTED;
+            String uploadId = UUID.randomUUID().toString();
+            Path tempFile = createTempFile();
+            try {
+                UPLOADS.put(uploadId, new ChunkedUpload(uploadId, filename, tempFile, size, chunkSize));
+            } catch (IOException e) {
+                deleteTempFile(tempFile);
+                throw e;
+            }
+            return "200 " + uploadId;
+        }
+    }
 
-            if (!f.exists() && !f.isDirectory()) {
-                Files.write(Paths.get(path), fileBytes);
-                response = "200 " + fileId;
+    /**
+     * Receive a chunk of an upload. The request is "CHUNK_PUT [upload id] [index]" followed by the length and the
+     * content of the chunk. The chunk is written at its offset, so chunks can arrive in any order. With
+     * "CHUNK_PUT_Z" the content arrives in compressed blocks.
+     *
+     * @param requestTokens The tokens of the request.
+     * @param input         The input stream from the client.
+     * @return The response to the client (200 if the chunk was stored, 403 if the chunk doesn't belong to the file,
+     * 404 if the upload is unknown or 500 if it couldn't be received).
+     */
+    public static String addChunk(String[] requestTokens, DataInputStream input) {
+        String response = "";
+        try {
+            long length = input.readLong();
+            ChunkedUpload upload = requestTokens.length < 3 ? null : findUpload(requestTokens[1]);
+            response = checkChunk(upload, requestTokens, length);
+            if (!response.equals("200")) {
+                // Skip the chunk to stay in sync with the client
+                if (isCompressedUpload(requestTokens)) receiveCompressed(input, null, 0, length, null);
+                else Transfer.receive(input, null, 0, length, null);
+                return response;
+            }
 
-                // Update idMap with new file id and filename
-                idMap.put(fileId, filename);
-                Server.idMap = idMap;
+            int index = Integer.parseInt(requestTokens[2]);
+            if (isCompressedUpload(requestTokens)) {
+                receiveCompressed(input, upload.channel(), upload.offsetOf(index), length, null);
             } else {
-                response = "403";
+                Transfer.receive(input, upload.channel(), upload.offsetOf(index), length, null);
             }
+            upload.markReceived(index);
+            Transfer.received(length);
         } catch (IOException e) {
-            e.printStackTrace();
+            System.out.println("Error receiving the chunk: " + e.getMessage());
+            Metrics.error();
+            response = FAILED;
+        }
+        return response;
+    }
+
+    /**
+     * Check whether a chunk can be stored before it is received.
+     *
+     * @param upload        The upload named by the request, looked up once by the caller, or null if it is unknown.
+     * @param requestTokens The tokens of a CHUNK_PUT request.
+     * @param length        The length of the chunk.
+     * @return 200 if the chunk is expected, 403 if it doesn't belong to the file or 404 if the upload is unknown.
+     */
+    public static String checkChunk(ChunkedUpload upload, String[] requestTokens, long length) {
+        if (upload == null) return "404";
+        try {
+            return upload.isValidChunk(Integer.parseInt(requestTokens[2]), length) ? "200" : "403";
+        } catch (NumberFormatException e) {
+            return "403";
+        }
+    }
+
+    /**
+     * @param uploadId The id of an upload.
+     * @return The upload or null if it is unknown, was committed or expired.
+     */
+    public static ChunkedUpload findUpload(String uploadId) {
+        return UPLOADS.get(uploadId);
+    }
+
+    /**
+     * Send the chunks an upload is still missing. The request is "CHUNK_STATUS [upload id]".
+     * The response is "200" and the number of missing chunks, followed by their indexes.
+     *
+     * @param requestTokens The tokens of the request.
+     * @param output        The output stream to the client.
+     * @return The response to the client (200 and the number of missing chunks or 404 if the upload is unknown).
+     * @throws IOException If an I/O error occurs.
+     */
+    public static String uploadStatus(String[] requestTokens, DataOutputStream output) throws IOException {
+        ChunkedUpload upload = requestTokens.length < 2 ? null : findUpload(requestTokens[1]);
+        if (upload == null) {
+            output.writeUTF("404");
+            return "404";
         }
 
+        int[] missing = upload.missingChunks();
+        String response = "200 " + missing.length;
+        output.writeUTF(response);
+        for (int index : missing) output.writeInt(index);
         return response;
     }
 
+    /**
+     * Store a completely received upload like a PUT. The request is "CHUNK_COMMIT [upload id]".
+     *
+     * @param requestTokens The tokens of the request.
+     * @param idMap         The id map.
+     * @return The response to the client (200 and the id of the file, 403 if chunks are missing or the file already
+     * exists or 404 if the upload is unknown).
+     * @throws IOException If the file can't be moved or the change of the id map can't be persisted.
+     */
+    public static String commitUpload(String[] requestTokens, IdMap idMap) throws IOException {
+        ChunkedUpload upload = requestTokens.length < 2 ? null : findUpload(requestTokens[1]);
+        if (upload == null) return "404";
+        if (!upload.isComplete()) return "403";
+        if (!UPLOADS.remove(upload.id(), upload)) return "404";
+
+        try {
+            upload.close();
+            return commitFile(new String[]{"PUT", upload.filename()}, upload.tempFile(), null, idMap);
+        } finally {
+            deleteTempFile(upload.tempFile());
+        }
+    }
+
+    /**
+     * Drop the uploads that didn't receive chunks for longer than the upload timeout. Runs every few seconds in
+     * the background and when the number of uploads reaches its limit.
+     */
+    private static void expireUploads() {
+        long now = System.currentTimeMillis();
+        long timeout = SetupUtils.readLong("upload.timeout", 3600000);
+        for (ChunkedUpload upload : UPLOADS.values()) {
+            if (upload.isExpired(now, timeout) && UPLOADS.remove(upload.id(), upload)) {
+                try {
+                    upload.close();
+                } catch (IOException e) {
+                    System.out.println("Error closing the upload: " + e.getMessage());
+                }
+                deleteTempFile(upload.tempFile());
+            }
+        }
+    }
+
+    /**
+     * Delete many files at once. The request is "DELETE_BATCH BY_NAME|BY_ID [count]" followed by the filenames or
+     * ids. The files are deleted in parallel, their ids are removed from the id map together.
+     *
+     * @param requestTokens The tokens of the request.
+     * @param input         The input stream from the client.
+     * @param output        The output stream to the client.
+     * @param idMap         The id map.
+     * @return The response to the client, "200" and the count, followed by the response to a DELETE for every file.
+     * @throws IOException If an I/O error occurs or the count is invalid.
+     */
+    public static String deleteFiles(String[] requestTokens, DataInputStream input, DataOutputStream output,
+                                     IdMap idMap) throws IOException {
+        FileBatch batch = new FileBatch(requestTokens.length < 3 ? "" : requestTokens[2], idMap);
+        try {
+            for (int i = 0; i < batch.size(); i++) batch.remove(requestTokens[1], input.readUTF());
+        } catch (IOException e) {
+            batch.commit(null);
+            throw e;
+        }
+        return batch.commit(output);
+    }
+
     /**
      * Delete a file from the server.
      *
@@ -145,57 +715,514 @@ public class ServerUtils {
      * @param idMap         The id map.
      * @return The response to the client (200 if the file was deleted, 404 if it wasn't).
      */
-    @SuppressWarnings("ResultOfMethodCallIgnored")
-    public static String deleteFile(String[] requestTokens, DataOutputStream output, HashMap<String, String> idMap) {
+    public static String deleteFile(String[] requestTokens, DataOutputStream output, IdMap idMap) {
         String response = "";
         try {
-            String filename, fileId;
-            if (requestTokens[1].equals("BY_ID")) {
-                if (idMap.containsKey(requestTokens[2])) {
-                    filename = idMap.get(requestTokens[2]);
-                    fileId = requestTokens[2];
-                } else {
-                    response = "404";
-                    output.writeUTF(response);
-                    return response;
-                }
-            } else {
-                filename = requestTokens[2];
-                fileId = findById(idMap, requestTokens[2]);
-            }
-
-            String path = FILE_PATH + filename;
-            File f = new File(path);
-
-            if (f.exists() && !f.isDirectory()) {
-                f.delete();
-                idMap.remove(fileId);
-                response = "200";
-            } else {
-                response = "404";
-            }
+            response = removeFile(requestTokens, idMap);
             output.writeUTF(response);
         } catch (IOException e) {
             System.out.println("Error deleting the file: " + e.getMessage());
+            Metrics.error();
         }
         return response;
     }
 
     /**
-     * Find the file id in the id map in a linear search.
+     * Get the name of the file a GET or DELETE request refers to.
+     *
+     * @param requestTokens The tokens of the request representing the user's request.
+     * @param idMap         The id map.
+     * @return The filename or null if the request was made by an unknown id.
+     */
+    public static String resolveFilename(String[] requestTokens, IdMap idMap) {
+        if (requestTokens[1].equals("BY_ID")) return idMap.get(requestTokens[2]);
+        else return requestTokens[2];
+    }
+
+    /**
+     * Get a stored file from the data directory.
      *
-     * @param idMap The id map.
-     * @param key   The key to search for.
-     * @return The file id or and empty string if it wasn't found.
+     * @param filename The name of the file.
+     * @return The file or null if it doesn't exist.
      */
-    public static String findById(HashMap<String, String> idMap, String key) {
-        String value = "";
-        for (String id : idMap.keySet()) {
-            if (id.equals(key)) {
-                value = idMap.get(id);
-                break;
+    public static File findFile(String filename) {
+        if (filename == null) return null;
+        Path path = FILE_STORE.find(filename);
+        return path == null ? null : path.toFile();
+    }
+
+    /**
+     * Get the content of a stored file from the file cache. A file that isn't cached yet is read and cached if it is
+     * small enough.
+     *
+     * @param filename The name of the file.
+     * @return The content of the file or null if it doesn't exist or is too large to be cached.
+     * @throws IOException If the file can't be read.
+     */
+    public static ByteBuffer findCachedFile(String filename) throws IOException {
+        if (filename == null) return null;
+        ByteBuffer content = FILE_CACHE.get(filename);
+        if (content != null) return content;
+        // Larger files are streamed, the catalog knows their size without opening them
+        FileCatalog.Entry entry = CATALOG.get(filename);
+        if (entry == null || !FILE_CACHE.fits(entry.size())) return null;
+
+        Lock lock = NAME_LOCKS.get(filename).readLock();
+        lock.lock();
+        try {
+            File f = findFile(filename);
+            return f == null ? null : FILE_CACHE.load(filename, f.toPath());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Find the version of a stored file, the time its name was stored. A client keeps it with an interrupted download
+     * and only continues the download while the file has the same version. It is looked up before the content is
+     * read, so the content of a file that is replaced in between comes with the old version and isn't continued.
+     *
+     * @param filename The name of the file.
+     * @return The version or 0 if the file doesn't exist.
+     */
+    public static long fileVersion(String filename) {
+        FileCatalog.Entry entry = filename == null ? null : CATALOG.get(filename);
+        return entry == null ? 0 : entry.modified();
+    }
+
+    /**
+     * Open a stored file for reading. A DELETE of the file waits until it is opened, the opened content stays
+     * readable until the channel is closed, even if the file is deleted in the meantime.
+     *
+     * @param filename The name of the file.
+     * @return The channel of the file or null if it doesn't exist.
+     * @throws IOException If the file can't be opened.
+     */
+    public static FileChannel openFile(String filename) throws IOException {
+        if (filename == null) return null;
+        Lock lock = NAME_LOCKS.get(filename).readLock();
+        lock.lock();
+        try {
+            File f = findFile(filename);
+            return f == null ? null : FileChannel.open(f.toPath(), StandardOpenOption.READ);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Open the file store selected with "storage.mode".
+     *
+     * @return The file store.
+     */
+    private static FileStore openFileStore() {
+        try {
+            return FileStore.open(SetupUtils.readProperty("storage.mode", "plain"), Paths.get(FILE_PATH),
+                    Paths.get(ID_MAP_DIRECTORY), FILE_SYNC);
+        } catch (IOException e) {
+            throw new UncheckedIOException("The file store can't be opened.", e);
+        }
+    }
+
+    private static FileCatalog buildCatalog() {
+        try {
+            return FileCatalog.scan(FILE_STORE);
+        } catch (IOException e) {
+            throw new UncheckedIOException("The catalog of the stored files can't be built.", e);
+        }
+    }
+
+    /**
+     * Create an empty temporary file in the data directory for an upload in progress.
+     * It lives on the same file system as the stored files, so it can be renamed atomically.
+     *
+     * @return The path of the temporary file.
+     * @throws IOException If the file can't be created.
+     */
+    public static Path createTempFile() throws IOException {
+        return Files.createTempFile(Paths.get(FILE_PATH), TEMP_FILE_PREFIX, ".part");
+    }
+
+    /**
+     * Delete the temporary files of uploads that were in progress when the server stopped, they can't be continued.
+     * Only a starting server may call it, the files of its own uploads would be deleted otherwise.
+     *
+     * @throws IOException If the data directory can't be listed.
+     */
+    public static void deleteStaleTempFiles() throws IOException {
+        try (DirectoryStream<Path> tempFiles = Files.newDirectoryStream(Paths.get(FILE_PATH),
+                TEMP_FILE_PREFIX + "*.part")) {
+            for (Path tempFile : tempFiles) deleteTempFile(tempFile);
+        }
+    }
+
+    /**
+     * Delete a temporary upload file if it is still there.
+     *
+     * @param tempFile The temporary file or null if none was created.
+     */
+    public static void deleteTempFile(Path tempFile) {
+        if (tempFile == null) return;
+        try {
+            Files.deleteIfExists(tempFile);
+        } catch (IOException e) {
+            System.out.println("Error deleting the temporary file: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return The digest to compute while an upload is received or null if the file store doesn't need it, the
+     * checksum in the catalog is then computed when a STAT asks for it.
+     */
+    public static MessageDigest newDigest() {
+        return FILE_STORE.usesDigests() ? FileStore.newDigest() : null;
+    }
+
+    /**
+     * Move a completely received upload to its final name in the file store and register its id.
+     *
+     * @param requestTokens The tokens of the request representing the user's request.
+     * @param tempFile      The temporary file holding the uploaded data.
+     * @param digest        The digest computed while the upload was received or null.
+     * @param idMap         The id map.
+     * @return The response to the client (200 and the id if the file was added, 403 if it wasn't).
+     * @throws IOException If the file can't be moved or the change of the id map can't be persisted.
+     */
+    public static String commitFile(String[] requestTokens, Path tempFile, byte[] digest, IdMap idMap)
+            throws IOException {
+        LongAccumulator logged = new LongAccumulator(Math::max, 0);
+        String response = commitFile(requestTokens, tempFile, digest, idMap, logged);
+        // Wait for the log outside the lock, so requests on the same name don't wait as well
+        idMap.awaitSync(logged.get());
+        return response;
+    }
+
+    /**
+     * Move a completely received upload to its final name in the file store and register its id without waiting
+     * for the log of the id map, so several changes can wait for it at once.
+     *
+     * @param requestTokens The tokens of the request, the filename or "*" follows the command.
+     * @param tempFile      The temporary file holding the uploaded data.
+     * @param digest        The digest computed while the upload was received or null.
+     * @param idMap         The id map.
+     * @param logged        Collects the sequence number of the log record, which has to be awaited before the
+     *                      response is sent.
+     * @return The response to the client (200 and the id if the file was added, 403 if it wasn't).
+     * @throws IOException If the file can't be moved or the change of the id map can't be written.
+     */
+    public static String commitFile(String[] requestTokens, Path tempFile, byte[] digest, IdMap idMap,
+                                    LongAccumulator logged) throws IOException {
+        String filename;
+        String fileId = idMap.newId();
+
+        if (requestTokens[1].equals("*")) filename = fileId + ".dat";
+        else filename = requestTokens[1];
+
+        // The file and its id appear together for requests on the same name. The file is synced by the store before
+        // its id is logged, so the log never refers to a file that may still be lost
+        Lock lock = NAME_LOCKS.get(filename).writeLock();
+        lock.lock();
+        try {
+            if (!storeFile(filename, tempFile, digest)) return "403";
+            // Update idMap with new file id and filename
+            logged.accumulate(idMap.putUnsynced(fileId, filename));
+            Server.idMap = idMap;
+        } finally {
+            lock.unlock();
+        }
+        return "200 " + fileId;
+    }
+
+    /**
+     * Move a completely received upload into the file store.
+     *
+     * @param filename The name of the file.
+     * @param tempFile The temporary file holding the uploaded data.
+     * @param digest   The digest of the content or null if it wasn't computed.
+     * @return False if a file with the name already exists.
+     * @throws IOException If the file can't be stored.
+     */
+    public static boolean storeFile(String filename, Path tempFile, byte[] digest) throws IOException {
+        Lock lock = NAME_LOCKS.get(filename).writeLock();
+        lock.lock();
+        try {
+            String checksum = digest == null ? null : HexFormat.of().formatHex(digest);
+            if (checksum != null) FileCatalog.writeChecksum(tempFile, checksum);
+            if (!FILE_STORE.add(filename, tempFile, digest)) return false;
+            FILE_CACHE.invalidate(filename);
+            CATALOG.put(filename, FILE_STORE.find(filename), checksum != null ? checksum : FILE_STORE.digest(filename));
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Remove a file from the file store, its id is left to the caller.
+     *
+     * @param filename The name of the file.
+     * @return False if the file doesn't exist.
+     * @throws IOException If the change can't be persisted.
+     */
+    public static boolean deleteStoredFile(String filename) throws IOException {
+        Lock lock = NAME_LOCKS.get(filename).writeLock();
+        lock.lock();
+        try {
+            if (!FILE_STORE.remove(filename)) return false;
+            FILE_CACHE.invalidate(filename);
+            CATALOG.remove(filename);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Challenge a client that offers the digest of a content instead of the content.
+     * The request is "PUT_HASH [hex encoded SHA-256 digest] [size] [filename]", the filename may be "*" like for PUT.
+     * Every offer is challenged, whether the content is stored or not.
+     *
+     * @param requestTokens The tokens of the request.
+     * @return The challenge the client has to answer or null if the request is invalid.
+     */
+    public static PossessionChallenge challengeDuplicate(String[] requestTokens) {
+        if (requestTokens.length < 3) return null;
+        String[] target = requestTokens[2].split(" ", 2);
+        try {
+            long size = Long.parseLong(target[0]);
+            return target.length < 2 || size < 0 ? null : PossessionChallenge.create(size);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Store a file whose content the server already has, so the client doesn't have to send it. The client has to
+     * prove that it has the content by answering the challenge, knowing its digest isn't enough.
+     *
+     * @param requestTokens The tokens of the request, see challengeDuplicate.
+     * @param challenge     The challenge sent to the client.
+     * @param proof         The answer of the client.
+     * @param idMap         The id map.
+     * @return The response to the client (200 and the id if the file was added, 403 if the file already exists or
+     * 404 if the content is unknown or the proof is wrong and the content has to be sent with PUT).
+     * @throws IOException If the change can't be persisted.
+     */
+    public static String addDuplicate(String[] requestTokens, PossessionChallenge challenge, String proof,
+                                      IdMap idMap) throws IOException {
+        String[] target = requestTokens[2].split(" ", 2);
+        long size = Long.parseLong(target[0]);
+        String fileId = idMap.newId();
+        String filename = target[1].equals("*") ? fileId + ".dat" : target[1];
+        long sequence;
+        Lock lock = NAME_LOCKS.get(filename).writeLock();
+        lock.lock();
+        try {
+            if (findFile(filename) != null) return "403";
+            Path content = FILE_STORE.content(requestTokens[1]);
+            if (content == null || Files.size(content) != size || !challenge.verify(content, proof)) return "404";
+            if (!FILE_STORE.link(filename, requestTokens[1])) return "404";
+
+            FILE_CACHE.invalidate(filename);
+            CATALOG.put(filename, FILE_STORE.find(filename), FILE_STORE.digest(filename));
+            sequence = idMap.putUnsynced(fileId, filename);
+            Server.idMap = idMap;
+        } catch (NoSuchFileException e) {
+            // The last file with the content was deleted in the meantime
+            return "404";
+        } finally {
+            lock.unlock();
+        }
+        idMap.awaitSync(sequence);
+        return "200 " + fileId;
+    }
+
+    /**
+     * Remove a file from the file store and the id map.
+     *
+     * @param requestTokens The tokens of the request representing the user's request.
+     * @param idMap         The id map.
+     * @return The response to the client (200 if the file was deleted, 404 if it wasn't).
+     * @throws IOException If the change of the id map can't be persisted.
+     */
+    public static String removeFile(String[] requestTokens, IdMap idMap) throws IOException {
+        LongAccumulator logged = new LongAccumulator(Math::max, 0);
+        String response = removeFile(requestTokens, idMap, logged);
+        idMap.awaitSync(logged.get());
+        return response;
+    }
+
+    /**
+     * Remove a file from the file store and the id map without waiting for the log of the id map, like commitFile.
+     *
+     * @param requestTokens The tokens of the request representing the user's request.
+     * @param idMap         The id map.
+     * @param logged        Collects the sequence number of the log record, which has to be awaited before the
+     *                      response is sent.
+     * @return The response to the client (200 if the file was deleted, 404 if it wasn't).
+     * @throws IOException If the change of the id map can't be written.
+     */
+    public static String removeFile(String[] requestTokens, IdMap idMap, LongAccumulator logged)
+            throws IOException {
+        String filename = resolveFilename(requestTokens, idMap);
+        if (filename == null) return "404";
+
+        // Waits for PUTs of the name and for GETs that are opening the file
+        Lock lock = NAME_LOCKS.get(filename).writeLock();
+        lock.lock();
+        try {
+            // The id may have changed while waiting, the id of the file that is deleted is removed
+            String fileId = findById(idMap, filename);
+            if (requestTokens[1].equals("BY_ID") && !fileId.equals(requestTokens[2])) return "404";
+
+            if (!deleteStoredFile(filename)) return "404";
+            if (!fileId.isEmpty()) logged.accumulate(idMap.removeUnsynced(fileId));
+        } finally {
+            lock.unlock();
+        }
+        return "200";
+    }
+
+    /**
+     * Find the id of a file by its name.
+     *
+     * @param idMap    The id map.
+     * @param filename The name of the file.
+     * @return The file id or an empty string if the file has no id.
+     */
+    public static String findById(IdMap idMap, String filename) {
+        String id = idMap.findId(filename);
+        return id == null ? "" : id;
+    }
+
+    /**
+     * Send the names and ids of the files whose names start with a prefix.
+     * The response is "200" and the number of files, followed by the id and the name of each file.
+     *
+     * @param requestTokens The tokens of the request, everything after the command is the prefix.
+     * @param output        The output stream to the client.
+     * @param idMap         The id map.
+     * @return The response to the client.
+     * @throws IOException If an I/O error occurs.
+     */
+    public static String listFiles(String[] requestTokens, DataOutputStream output, IdMap idMap)
+            throws IOException {
+        String prefix = String.join(" ", Arrays.copyOfRange(requestTokens, 1, requestTokens.length));
+        Map<String, String> files = idMap.listByPrefix(prefix, LIST_LIMIT);
+
+        String response = "200 " + files.size();
+        output.writeUTF(response);
+        for (Map.Entry<String, String> file : files.entrySet()) {
+            output.writeUTF(file.getValue());
+            output.writeUTF(file.getKey());
+        }
+        return response;
+    }
+
+    /**
+     * Send a page of the files whose names start with a prefix from the catalog, in the order of their names.
+     * The request is "LIST_PAGE [limit] [cursor] [prefix]", the cursor is "-" for the first page and the cursor sent
+     * with the previous page otherwise. The response is "200 [number of files] [cursor of the next page or -]",
+     * followed by the name, the id (empty if the file has none), the size and the time of the last modification of
+     * each file.
+     *
+     * @param requestTokens The tokens of the request.
+     * @param output        The output stream to the client.
+     * @param idMap         The id map.
+     * @return The response to the client or "400" if the limit or the cursor is invalid.
+     * @throws IOException If an I/O error occurs.
+     */
+    public static String listPage(String[] requestTokens, DataOutputStream output, IdMap idMap) throws IOException {
+        String[] page = requestTokens.length < 3 ? null : requestTokens[2].split(" ", 2);
+        int limit = 0;
+        String after = null;
+        try {
+            if (page != null) {
+                limit = Integer.parseInt(requestTokens[1]);
+                if (!page[0].equals("-")) after = new String(HexFormat.of().parseHex(page[0]), StandardCharsets.UTF_8);
             }
+        } catch (IllegalArgumentException e) {
+            // Not a number or not a cursor
+            limit = 0;
+        }
+        if (limit <= 0 || limit > LIST_LIMIT) {
+            output.writeUTF("400");
+            return "400";
+        }
+        String prefix = page.length > 1 ? page[1] : "";
+
+        // One more file tells whether there is a next page
+        List<Map.Entry<String, FileCatalog.Entry>> files = CATALOG.list(prefix, after, limit + 1);
+        String cursor = "-";
+        if (files.size() > limit) {
+            files = files.subList(0, limit);
+            cursor = HexFormat.of().formatHex(files.get(limit - 1).getKey().getBytes(StandardCharsets.UTF_8));
+        }
+
+        String response = "200 " + files.size() + " " + cursor;
+        output.writeUTF(response);
+        for (Map.Entry<String, FileCatalog.Entry> file : files) {
+            output.writeUTF(file.getKey());
+            output.writeUTF(findById(idMap, file.getKey()));
+            output.writeLong(file.getValue().size());
+            output.writeLong(file.getValue().modified());
         }
-        return value;
+        return response;
+    }
+
+    /**
+     * Look up the metadata of a file in the catalog, without reading the file.
+     * The request is "STAT BY_NAME [filename]" or "STAT BY_ID [id]".
+     *
+     * @param requestTokens The tokens of the request.
+     * @param idMap         The id map.
+     * @return The response to the client, "200 [size] [time of the last modification in milliseconds] [id or -]
+     * [hex encoded SHA-256 checksum or -]" or "404" if the file doesn't exist.
+     */
+    public static String statFile(String[] requestTokens, IdMap idMap) {
+        if (requestTokens.length < 3) return "404";
+        String filename = resolveFilename(requestTokens, idMap);
+        FileCatalog.Entry entry = filename == null ? null : CATALOG.get(filename);
+        if (entry == null) return "404";
+
+        if (entry.checksum() == null) computeChecksum(filename, entry);
+        String fileId = findById(idMap, filename);
+        return "200 " + entry.size() + " " + entry.modified() + " " + (fileId.isEmpty() ? "-" : fileId) + " "
+                + (entry.checksum() == null ? "-" : entry.checksum());
+    }
+
+    /**
+     * Compute the checksum of a file in the background and keep it in the catalog and in the file, so STAT reports it
+     * from now on without reading the file again.
+     *
+     * @param filename The name of the file.
+     * @param entry    The entry of the file in the catalog.
+     */
+    private static void computeChecksum(String filename, FileCatalog.Entry entry) {
+        if (!PENDING_CHECKSUMS.add(filename)) return;
+        CHECKSUMS.execute(() -> {
+            try {
+                Path path = FILE_STORE.find(filename);
+                if (path == null) return;
+                String checksum = HexFormat.of().formatHex(FileStore.digestOf(path));
+                Lock lock = NAME_LOCKS.get(filename).readLock();
+                lock.lock();
+                try {
+                    // A file stored under the name in the meantime has a new entry, the checksum isn't its own
+                    if (CATALOG.get(filename) != entry) return;
+                    FileCatalog.writeChecksum(path, checksum);
+                    CATALOG.putChecksum(filename, entry, checksum);
+                } finally {
+                    lock.unlock();
+                }
+            } catch (NoSuchFileException e) {
+                // Deleted in the meantime
+            } catch (IOException e) {
+                System.out.println("Error computing the checksum: " + e.getMessage());
+                Metrics.error();
+            } finally {
+                PENDING_CHECKSUMS.remove(filename);
+            }
+        });
     }
 }
@@ -1,18 +1,27 @@
 package util;
 
 import java.io.*;
-import java.util.Properties;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Scanner;
+import java.util.Set;
 
 /*
  * This class handles the initial configuration of database
  * and its environment. It sets up file path, ip address
- * and port.
+ * and port. The config file is parsed once into a snapshot
+ * that serves all lookups and is replaced when the file
+ * changes. Without a console nothing is prompted, the
+ * defaults are used instead.
  */
 public class SetupUtils {
-    private static final Scanner scanner = new Scanner(System.in);
-    private static final Properties PROPERTIES = new Properties();
-    private static final String FILE_NAME = System.getProperty("user.dir") + File.separator + "app.config";
+    private static final Path CONFIG_FILE = Paths.get(System.getProperty("user.dir"), "app.config");
+    // Settings that are read on every use, so a reload applies them to the running server
+    private static final Set<String> LIVE_SETTINGS = Set.of("server.compression", "upload.timeout");
+    private static final boolean HEADLESS = System.console() == null;
+    private static volatile Config config = loadConfig(null);
+    private static Scanner scanner;
 
     /**
      * Prompt the user to specify an address the server is running on.
@@ -25,8 +34,8 @@ public class SetupUtils {
             if (property.isBlank()) throw new RuntimeException();
             else return property;
         } catch (Exception e) {
-            System.out.print("Please enter the IP address of your server or press enter for default (127.0.0.1): ");
-            String address = scanner.nextLine();
+            String address = prompt("Please enter the IP address of your server or press enter for default "
+                    + "(127.0.0.1): ");
 
             if (address.isBlank()) address = "127.0.0.1"; // default
 
@@ -49,9 +58,8 @@ public class SetupUtils {
             int portNumber;
 
             while (true) {
-                System.out.print("Please enter the port your server should be listening " +
+                String port = prompt("Please enter the port your server should be listening " +
                         "or press enter for default (23456): ");
-                String port = scanner.nextLine();
 
                 if (port.isBlank()) {
                     portNumber = 23456; // default
@@ -110,54 +118,157 @@ public class SetupUtils {
      *
      * @param property The property to read.
      * @return The property value.
+     * @throws IOException If the property is empty or not set.
      */
     public static String readProperty(String property) throws IOException {
-        String value;
-        // Try to read configuration file
-        try (FileInputStream fis = new FileInputStream(FILE_NAME)) {
-            PROPERTIES.load(fis);
-            value = PROPERTIES.getProperty(property);
+        String value = config.get(property);
+        if (value == null) throw new IOException("The property " + property + " is not set.");
+        return value;
+    }
+
+    /**
+     * Reads an optional property from the properties file.
+     *
+     * @param property     The property to read.
+     * @param defaultValue The value to return if the property is not set.
+     * @return The property value or the default value.
+     */
+    public static String readProperty(String property, String defaultValue) {
+        String value = config.get(property);
+        return value != null ? value : defaultValue;
+    }
+
+    /**
+     * Reads an optional whole number from the properties file.
+     *
+     * @param property     The property to read.
+     * @param defaultValue The value to return if the property is not set.
+     * @return The property value or the default value.
+     */
+    public static int readInt(String property, int defaultValue) {
+        return (int) readLong(property, defaultValue);
+    }
+
+    /**
+     * Reads an optional whole number from the properties file.
+     *
+     * @param property     The property to read.
+     * @param defaultValue The value to return if the property is not set.
+     * @return The property value or the default value.
+     */
+    public static long readLong(String property, long defaultValue) {
+        String value = config.get(property);
+        return value != null ? Long.parseLong(value) : defaultValue;
+    }
+
+    /**
+     * Reload the config file whenever it changes. The new values of the settings that are read on every use apply
+     * right away, the others at the next start.
+     */
+    public static void watchConfig() {
+        WatchService watchService;
+        Path directory = CONFIG_FILE.toAbsolutePath().getParent();
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+            directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException e) {
+            System.out.println("Error watching the config file: " + e.getMessage());
+            return;
+        }
+
+        Thread watcher = new Thread(() -> {
+            while (true) {
+                WatchKey key;
+                try {
+                    key = watchService.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                boolean changed = key.pollEvents().stream()
+                        .anyMatch(event -> CONFIG_FILE.getFileName().equals(event.context()));
+                key.reset();
+                if (changed) reloadConfig();
+            }
+        }, "config-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    /**
+     * Replace the snapshot of the config file and report the changed settings.
+     */
+    private static synchronized void reloadConfig() {
+        Config previous = config;
+        config = loadConfig(previous);
+        Set<String> changes = previous.changes(config);
+        if (changes.isEmpty()) return;
+
+        List<String> restart = new ArrayList<>();
+        for (String change : changes) {
+            if (!LIVE_SETTINGS.contains(change)) restart.add(change);
+        }
+        System.out.println("Reloaded the config file, changed: " + String.join(", ", changes)
+                + (restart.isEmpty() ? "" : ". Restart to apply " + String.join(", ", restart) + "."));
+    }
+
+    /**
+     * @param previous The snapshot in use, which is kept if the file can't be read or has invalid values, or null at
+     *                 the start.
+     * @return The new snapshot.
+     */
+    private static Config loadConfig(Config previous) {
+        try {
+            return Config.load(CONFIG_FILE, previous);
+        } catch (IOException e) {
+            System.out.println("Error reading the config file: " + e.getMessage());
+            return previous != null ? previous : Config.empty();
         }
+    }
 
-        // Check if property is set
-        if (value == null || value.equals("")) throw new IOException();
-        else return value;
+    /**
+     * Ask the user for a value on the console.
+     *
+     * @param message The question.
+     * @return The answer or an empty string for the default if there is no console.
+     */
+    private static String prompt(String message) {
+        if (HEADLESS) {
+            System.out.println(message + "(no console, using the default)");
+            return "";
+        }
+        if (scanner == null) scanner = new Scanner(System.in);
+        System.out.print(message);
+        return scanner.nextLine();
     }
 
     /**
-     * Writes a property to the properties file.
+     * Writes a property to the properties file. Only the line of the property is replaced, or appended if there is
+     * none, the rest of the file is kept as it is.
      *
      * @param property The property to write.
      * @param value    The value to write.
      */
-    @SuppressWarnings("resource")
-    private static void writeProperty(String property, String value) {
-        /*
-         * IOExceptions get checked here because if there is no file,
-         * a new config gets written.
-         */
-        try (FileInputStream fis = new FileInputStream(FILE_NAME)) {
-            PROPERTIES.load(fis);
-        } catch (FileNotFoundException e) {
-            System.out.println("File not found: " + FILE_NAME + "\nCreating new file");
-            try {
-                PROPERTIES.setProperty(property, "");
-                new FileOutputStream(FILE_NAME);
-            } catch (IOException ioe) {
-                ioe.printStackTrace();
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
-        } finally {
-            // Create new config file
-            if (PROPERTIES.getProperty(property) == null || PROPERTIES.getProperty(property).isEmpty()) {
-                PROPERTIES.setProperty(property, value);
-                try {
-                    PROPERTIES.store(new FileOutputStream(FILE_NAME), null);
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
+    private static synchronized void writeProperty(String property, String value) {
+        try {
+            List<String> lines = Files.exists(CONFIG_FILE) ? Files.readAllLines(CONFIG_FILE) : new ArrayList<>();
+            String line = property + "=" + value.replace("\\", "\\\\");
+            int index = -1;
+            for (int i = 0; i < lines.size() && index < 0; i++) {
+                String trimmed = lines.get(i).trim();
+                if (trimmed.startsWith(property + "=") || trimmed.startsWith(property + " ")) index = i;
             }
+            if (index >= 0) lines.set(index, line);
+            else lines.add(line);
+
+            // Written next to the file and renamed, so the watcher never reads half a file
+            Path tempFile = CONFIG_FILE.resolveSibling(CONFIG_FILE.getFileName() + ".tmp");
+            Files.write(tempFile, lines);
+            Files.move(tempFile, CONFIG_FILE, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.out.println("Error writing the config file: " + e.getMessage());
         }
+        // Values the start dropped as invalid are dropped again instead of rejecting the file
+        config = loadConfig(null);
     }
 }
@@ -0,0 +1,159 @@
+package util;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/*
+ * Every file is stored under its name in one of 65536 directories, two
+ * levels of 256 below data/.shards chosen by a hash of the name, e.g.
+ * .shards/4e/a1/report.pdf. The directories stay small however many
+ * files there are, which keeps lookups and creations fast.
+ * Files of a flat data directory are still found until migrate() has
+ * moved them, which can run while the server is serving requests.
+ */
+public class ShardedFileStore implements FileStore {
+
+    private static final String SHARD_DIRECTORY = ".shards";
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final Path shardDirectory;
+    private final PlainFileStore flatFiles;
+    private final Path flatDirectory;
+    private final FileSync sync;
+
+    /**
+     * @param directory The data directory.
+     */
+    public ShardedFileStore(Path directory) {
+        this(directory, new FileSync("none", directory));
+    }
+
+    /**
+     * @param directory The data directory.
+     * @param sync      The durability of the stored files.
+     */
+    public ShardedFileStore(Path directory, FileSync sync) {
+        this.flatDirectory = directory;
+        this.shardDirectory = directory.resolve(SHARD_DIRECTORY);
+        this.flatFiles = new PlainFileStore(directory, sync);
+        this.sync = sync;
+    }
+
+    @Override
+    public Path find(String filename) {
+        Path path = shardPath(filename);
+        if (Files.isRegularFile(path)) return path;
+        Path flatPath = flatFiles.find(filename);
+        if (flatPath != null) return flatPath;
+        // The migration may have moved the file between both lookups
+        return Files.isRegularFile(path) ? path : null;
+    }
+
+    @Override
+    public boolean add(String filename, Path tempFile, byte[] digest) throws IOException {
+        if (find(filename) != null) return false;
+        Path path = shardPath(filename);
+        Files.createDirectories(path.getParent());
+        if (!PlainFileStore.publish(tempFile, path)) return false;
+        // The shard directories may be new as well
+        sync.sync(List.of(path));
+        return true;
+    }
+
+    @Override
+    public boolean link(String filename, String digest) {
+        return false;
+    }
+
+    @Override
+    public boolean remove(String filename) throws IOException {
+        Path path = shardPath(filename);
+        if (Files.deleteIfExists(path) || flatFiles.remove(filename)) return true;
+        // The migration may have moved the file between both attempts
+        return Files.deleteIfExists(path);
+    }
+
+    /**
+     * Move the files of a flat data directory into their shards. Temporary files of uploads in progress and hidden
+     * directories are skipped.
+     *
+     * @return The number of moved files.
+     * @throws IOException If the data directory can't be listed.
+     */
+    public long migrate() throws IOException {
+        long moved = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(flatDirectory,
+                file -> Files.isRegularFile(file) && !file.getFileName().toString().startsWith("."))) {
+            for (Path file : files) {
+                Path path = shardPath(file.getFileName().toString());
+                if (Files.exists(path)) {
+                    System.out.println("Skipping " + file.getFileName() + ", it also exists in " + path.getParent());
+                    continue;
+                }
+                try {
+                    Files.createDirectories(path.getParent());
+                    Files.move(file, path, StandardCopyOption.ATOMIC_MOVE);
+                    moved++;
+                } catch (NoSuchFileException e) {
+                    // Deleted in the meantime
+                }
+            }
+        }
+        return moved;
+    }
+
+    /**
+     * The files that weren't migrated yet come first, so a file that also exists in its shard is found there like
+     * find() does. The first level of shards is read in parallel.
+     */
+    @Override
+    public void forEach(BiConsumer<String, Path> action) throws IOException {
+        flatFiles.forEach(action);
+        if (Files.isDirectory(shardDirectory)) {
+            try (Stream<Path> shards = Files.list(shardDirectory)) {
+                shards.toList().parallelStream().forEach(shard -> {
+                    try (Stream<Path> files = Files.walk(shard, 2)) {
+                        files.filter(file -> shard.relativize(file).getNameCount() == 2 && Files.isRegularFile(file))
+                                .forEach(file -> action.accept(file.getFileName().toString(), file));
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+    }
+
+    /**
+     * @param filename The name of the file.
+     * @return The path of the file in its shard.
+     */
+    private Path shardPath(String filename) {
+        CRC32C crc = new CRC32C();
+        crc.update(filename.getBytes(StandardCharsets.UTF_8));
+        int hash = (int) crc.getValue();
+        return shardDirectory.resolve(hex(hash >>> 24)).resolve(hex(hash >>> 16)).resolve(filename);
+    }
+
+    /**
+     * @return The lowest byte as two hex digits.
+     */
+    private static String hex(int value) {
+        return new String(new char[]{HEX_DIGITS[(value >>> 4) & 0xf], HEX_DIGITS[value & 0xf]});
+    }
+}
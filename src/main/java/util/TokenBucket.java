@@ -0,0 +1,64 @@
+package util;
+
+/*
+ * Token bucket that refills at a fixed rate up to a burst size. Requests
+ * take a token each and are turned away when none is left. Transferred
+ * bytes are charged buffer by buffer and may drive the bucket into debt,
+ * the transfer pauses until the refill has paid it back, so a large file
+ * is spread out at the rate instead of passing as one burst.
+ */
+public class TokenBucket {
+
+    private final double tokensPerNano;
+    private final double burst;
+    private double tokens;
+    private long refilled = System.nanoTime();
+
+    /**
+     * @param perSecond The number of tokens added per second.
+     * @param burst     The maximum number of tokens, the bucket starts full.
+     */
+    public TokenBucket(long perSecond, long burst) {
+        this.tokensPerNano = perSecond / 1e9;
+        this.burst = burst;
+        this.tokens = burst;
+    }
+
+    /**
+     * Take a token if one is left.
+     *
+     * @return False if the bucket is empty or in debt.
+     */
+    public synchronized boolean tryTake() {
+        refill();
+        if (tokens < 1) return false;
+        tokens--;
+        return true;
+    }
+
+    /**
+     * Take tokens whether or not there are enough of them.
+     *
+     * @param count The number of tokens.
+     * @return The time in nanoseconds until the refill has paid back the debt, 0 if the bucket isn't in debt.
+     */
+    public synchronized long charge(long count) {
+        refill();
+        tokens -= count;
+        return tokens >= 0 ? 0 : (long) Math.ceil(-tokens / tokensPerNano);
+    }
+
+    /**
+     * @return Whether the bucket is full, so it doesn't remember anything about its client.
+     */
+    public synchronized boolean isFull() {
+        refill();
+        return tokens >= burst;
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(burst, tokens + (now - refilled) * tokensPerNano);
+        refilled = now;
+    }
+}
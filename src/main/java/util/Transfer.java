@@ -0,0 +1,147 @@
+package util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+
+/*
+ * The copy loops of the client and the server. Every copy borrows one
+ * buffer from the shared buffer pool and gives it back when it is done,
+ * so a transfer takes a bounded amount of memory whatever the size of
+ * the file, and many concurrent transfers wait for a buffer instead of
+ * exhausting the memory. Every buffer is charged to the bandwidth of the
+ * client the server is serving, and the copy pauses while the client is
+ * over its limit.
+ */
+public class Transfer {
+
+    /**
+     * Count bytes received from a client.
+     *
+     * @param bytes The number of bytes.
+     */
+    public static void received(long bytes) {
+        Metrics.bytesIn(bytes);
+    }
+
+    /**
+     * Count bytes sent to a client.
+     *
+     * @param bytes The number of bytes.
+     */
+    public static void sent(long bytes) {
+        Metrics.bytesOut(bytes);
+    }
+
+    /**
+     * Copy an exact number of bytes from a stream into a region of a file. The stream of a socket honours its read
+     * timeout, so a client that stops sending in the middle of an upload doesn't hold the thread and the buffer
+     * forever.
+     *
+     * @param input       The stream to read from.
+     * @param fileChannel The file to write to or null to discard the bytes.
+     * @param position    The position in the file to write to.
+     * @param size        The number of bytes to copy.
+     * @param digest      The digest to update with the bytes or null.
+     * @throws IOException If an I/O error occurs, the read times out or the stream ends too early.
+     */
+    public static void receive(InputStream input, FileChannel fileChannel, long position, long size,
+                               MessageDigest digest) throws IOException {
+        BufferPool pool = BufferPool.heap();
+        ByteBuffer buffer = pool.acquire(size);
+        try {
+            byte[] bytes = buffer.array();
+            long remaining = size;
+            while (remaining > 0) {
+                int read = input.read(bytes, 0, (int) Math.min(bytes.length, remaining));
+                if (read == -1) throw new EOFException("The upload was interrupted.");
+                Admission.throttle(read);
+                remaining -= read;
+                if (digest != null) digest.update(bytes, 0, read);
+                if (fileChannel == null) continue;
+
+                buffer.clear().limit(read);
+                long writeStart = System.nanoTime();
+                while (buffer.hasRemaining()) position += fileChannel.write(buffer, position);
+                Metrics.diskWrite(System.nanoTime() - writeStart);
+            }
+        } finally {
+            pool.release(buffer);
+        }
+    }
+
+    /**
+     * Copy a whole file to a stream.
+     *
+     * @param file   The file to send.
+     * @param size   The size of the file, announced to the receiver before.
+     * @param output The stream to write to.
+     * @throws IOException If an I/O error occurs or the file became shorter.
+     */
+    public static void send(Path file, long size, OutputStream output) throws IOException {
+        try (FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.READ)) {
+            send(fileChannel, 0, size, output);
+        }
+    }
+
+    /**
+     * Copy a region of a file to a stream.
+     *
+     * @param fileChannel The file to read from.
+     * @param position    The position of the region in the file.
+     * @param length      The length of the region.
+     * @param output      The stream to write to.
+     * @throws IOException If an I/O error occurs or the file ends before the region.
+     */
+    public static void send(FileChannel fileChannel, long position, long length, OutputStream output)
+            throws IOException {
+        BufferPool pool = BufferPool.heap();
+        ByteBuffer buffer = pool.acquire(length);
+        try {
+            long end = position + length;
+            while (position < end) {
+                buffer.clear();
+                if (end - position < buffer.capacity()) buffer.limit((int) (end - position));
+                int read = fileChannel.read(buffer, position);
+                if (read == -1) throw new EOFException("The file was truncated during the upload.");
+                Admission.throttle(read);
+                output.write(buffer.array(), 0, read);
+                position += read;
+            }
+        } finally {
+            pool.release(buffer);
+        }
+    }
+
+    /**
+     * Copy an exact number of bytes from one stream to another.
+     *
+     * @param input  The stream to read from.
+     * @param output The stream to write to or null to discard the bytes.
+     * @param size   The number of bytes to copy.
+     * @throws IOException If an I/O error occurs or the input ends too early.
+     */
+    public static void copy(InputStream input, OutputStream output, long size) throws IOException {
+        BufferPool pool = BufferPool.heap();
+        ByteBuffer buffer = pool.acquire(size);
+        try {
+            byte[] bytes = buffer.array();
+            long remaining = size;
+            while (remaining > 0) {
+                int read = input.read(bytes, 0, (int) Math.min(bytes.length, remaining));
+                if (read == -1) throw new EOFException("The download was interrupted.");
+                Admission.throttle(read);
+                if (output != null) output.write(bytes, 0, read);
+                remaining -= read;
+            }
+        } finally {
+            pool.release(buffer);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/*
+ * Stress test of the id generator: many threads take ids at the same
+ * time, with the real clock and with a clock that jumps back, and no id
+ * may be handed out twice.
+ */
+class IdGeneratorTest {
+
+    private static final int THREADS = 16;
+    private static final int IDS_PER_THREAD = 50_000;
+
+    @Test
+    void concurrentIdsAreUnique() throws Exception {
+        assertUniqueAndIncreasing(new IdGenerator(0));
+    }
+
+    @Test
+    void idsStayUniqueWhenTheClockGoesBack() throws Exception {
+        // Every call moves the clock forward, but every 1000th call sets it back by a minute
+        AtomicLong calls = new AtomicLong();
+        long start = System.currentTimeMillis();
+        LongSupplier clock = () -> {
+            long call = calls.incrementAndGet();
+            return call % 1000 == 0 ? start - 60_000 : start + call / 100;
+        };
+        assertUniqueAndIncreasing(new IdGenerator(0, clock));
+    }
+
+    @Test
+    void idsContinueAfterTheHighestRestoredId() {
+        long restored = (System.currentTimeMillis() + 3_600_000) << IdGenerator.SEQUENCE_BITS;
+        IdGenerator generator = new IdGenerator(restored);
+        assertEquals(restored + 1, generator.next());
+        assertEquals(restored + 2, generator.next());
+    }
+
+    @Test
+    void parseIgnoresInvalidIds() {
+        assertEquals(42, IdGenerator.parse("42"));
+        assertEquals(0, IdGenerator.parse("-5"));
+        assertEquals(0, IdGenerator.parse("file"));
+    }
+
+    /**
+     * Take ids from several threads at once and check that every thread sees increasing ids and that no id was
+     * handed out twice.
+     */
+    private static void assertUniqueAndIncreasing(IdGenerator generator) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            Callable<long[]> task = () -> {
+                long[] ids = new long[IDS_PER_THREAD];
+                for (int i = 0; i < ids.length; i++) ids[i] = generator.next();
+                return ids;
+            };
+            List<Future<long[]>> results = executor.invokeAll(IntStream.range(0, THREADS).mapToObj(i -> task).toList());
+
+            Set<Long> ids = new HashSet<>();
+            for (Future<long[]> result : results) {
+                long[] threadIds = result.get();
+                for (int i = 0; i < threadIds.length; i++) {
+                    if (i > 0) assertTrue(threadIds[i] > threadIds[i - 1], "Ids of a thread have to increase");
+                    ids.add(threadIds[i]);
+                }
+            }
+            assertEquals(THREADS * IDS_PER_THREAD, ids.size(), "Unique ids");
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
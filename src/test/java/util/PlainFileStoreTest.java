@@ -0,0 +1,83 @@
+package util;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/*
+ * Races of uploads that publish the same name at once: exactly one of
+ * them may win and its content may never be overwritten.
+ */
+class PlainFileStoreTest {
+
+    private static final int THREADS = 16;
+    private static final int ROUNDS = 200;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void onlyOneUploadPublishesAName() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            for (int round = 0; round < ROUNDS; round++) {
+                Path path = directory.resolve("file-" + round);
+                List<Path> tempFiles = new ArrayList<>();
+                for (int i = 0; i < THREADS; i++) {
+                    Path tempFile = Files.createTempFile(directory, ".upload-", ".part");
+                    Files.writeString(tempFile, "upload " + i);
+                    tempFiles.add(tempFile);
+                }
+
+                CountDownLatch start = new CountDownLatch(1);
+                List<Callable<Boolean>> uploads = new ArrayList<>();
+                for (Path tempFile : tempFiles) {
+                    uploads.add(() -> {
+                        start.await();
+                        return PlainFileStore.publish(tempFile, path);
+                    });
+                }
+                List<Future<Boolean>> results = new ArrayList<>();
+                for (Callable<Boolean> upload : uploads) results.add(executor.submit(upload));
+                start.countDown();
+
+                int winner = -1;
+                for (int i = 0; i < THREADS; i++) {
+                    if (!results.get(i).get()) continue;
+                    assertEquals(-1, winner, "Only one upload may publish " + path.getFileName());
+                    winner = i;
+                }
+                assertTrue(winner >= 0, "One upload has to publish " + path.getFileName());
+                assertEquals("upload " + winner, Files.readString(path));
+                for (Path tempFile : tempFiles) Files.deleteIfExists(tempFile);
+                assertEquals("upload " + winner, Files.readString(path), "The published file outlives the upload");
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void publishingDoesNotReplaceAFile() throws Exception {
+        Path path = directory.resolve("existing");
+        Files.writeString(path, "stored");
+        Path tempFile = Files.createTempFile(directory, ".upload-", ".part");
+        Files.writeString(tempFile, "upload");
+
+        assertFalse(PlainFileStore.publish(tempFile, path));
+        assertEquals("stored", Files.readString(path));
+    }
+}
@@ -0,0 +1,111 @@
+package util;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/*
+ * Stress test of the requests that change files: PUT, DELETE and their
+ * batches race on a few names, and afterwards every stored file has to
+ * have an id and every id a stored file, in memory and after the id map
+ * is restored. The server keeps its files below the working directory,
+ * which is build/test-work when the tests run with gradle.
+ */
+class ServerUtilsTest {
+
+    private static final int THREADS = 8;
+    private static final int OPERATIONS = 500;
+    private static final int NAMES = 8;
+
+    private final String prefix = "stress-" + System.nanoTime() + "-";
+    private IdMap idMap;
+
+    @BeforeEach
+    void openIdMap() throws IOException {
+        idMap = ServerUtils.getIdMap();
+    }
+
+    @AfterEach
+    void closeIdMap() throws IOException {
+        if (idMap != null) idMap.close();
+    }
+
+    @Test
+    void filesAndIdsStayConsistent() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Callable<Void>> workers = new ArrayList<>();
+            for (int i = 0; i < THREADS; i++) {
+                workers.add(() -> {
+                    for (int operation = 0; operation < OPERATIONS; operation++) changeRandomFile();
+                    return null;
+                });
+            }
+            for (Future<Void> worker : executor.invokeAll(workers)) worker.get();
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertConsistent(idMap);
+        idMap.close();
+        idMap = ServerUtils.getIdMap();
+        assertConsistent(idMap);
+    }
+
+    private void changeRandomFile() throws IOException {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        String filename = prefix + random.nextInt(NAMES);
+        switch (random.nextInt(4)) {
+            case 0 -> {
+                Path tempFile = upload(filename);
+                try {
+                    ServerUtils.commitFile(new String[]{"PUT", filename}, tempFile, null, idMap);
+                } finally {
+                    ServerUtils.deleteTempFile(tempFile);
+                }
+            }
+            case 1 -> ServerUtils.removeFile(new String[]{"DELETE", "BY_NAME", filename}, idMap);
+            case 2 -> {
+                FileBatch batch = new FileBatch("3", idMap);
+                for (int i = 0; i < batch.size(); i++) {
+                    String name = prefix + random.nextInt(NAMES);
+                    batch.add(name, upload(name), null);
+                }
+                batch.commit(null);
+            }
+            default -> {
+                FileBatch batch = new FileBatch("3", idMap);
+                for (int i = 0; i < batch.size(); i++) batch.remove("BY_NAME", prefix + random.nextInt(NAMES));
+                batch.commit(null);
+            }
+        }
+    }
+
+    private static Path upload(String filename) throws IOException {
+        Path tempFile = ServerUtils.createTempFile();
+        Files.writeString(tempFile, filename);
+        return tempFile;
+    }
+
+    private void assertConsistent(IdMap map) {
+        for (int i = 0; i < NAMES; i++) {
+            String filename = prefix + i;
+            boolean stored = ServerUtils.findFile(filename) != null;
+            boolean hasId = map.findId(filename) != null;
+            assertEquals(stored, hasId, filename + " is stored if and only if it has an id");
+        }
+    }
+}